@@ -2,6 +2,10 @@ package org.comic_conmuseum.fan_forge.backend;
 
 import org.comic_conmuseum.fan_forge.backend.models.*;
 import org.comic_conmuseum.fan_forge.backend.persistence.*;
+import org.comic_conmuseum.fan_forge.backend.tasks.CountReconciliationTask;
+import org.comic_conmuseum.fan_forge.backend.tasks.FeedIndexRebuildTask;
+import org.comic_conmuseum.fan_forge.backend.tasks.SurveyAggregateRebuildTask;
+import org.comic_conmuseum.fan_forge.backend.tasks.TagCatalogRebuildTask;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -11,6 +15,7 @@ import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
 import org.springframework.boot.autoconfigure.web.servlet.error.ErrorMvcAutoConfiguration;
 import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.scheduling.annotation.EnableScheduling;
 
 import java.sql.SQLException;
 import java.time.Instant;
@@ -19,6 +24,7 @@ import java.util.*;
 import java.util.stream.IntStream;
 
 @SpringBootApplication(exclude = {ErrorMvcAutoConfiguration.class})
+@EnableScheduling
 public class Application implements CommandLineRunner {
     private static final Logger LOG = LoggerFactory.getLogger("application");
 
@@ -46,19 +52,31 @@ public class Application implements CommandLineRunner {
     
     private final ExhibitQueryBean exhibits;
     private final SupportQueryBean supports;
+    private final SurveyRollupQueryBean surveyRollups;
     private final ArtifactQueryBean artifacts;
     private final CommentQueryBean comments;
     private final S3Bean s3;
+    private final CountReconciliationTask countReconciliation;
+    private final FeedIndexRebuildTask feedIndexRebuild;
+    private final TagCatalogRebuildTask tagCatalogRebuild;
+    private final SurveyAggregateRebuildTask surveyAggregateRebuild;
     private final ConfigurableApplicationContext ctx;
     
     @Autowired
-    public Application(ExhibitQueryBean exhibits, SupportQueryBean supports, ArtifactQueryBean artifacts,
-                       CommentQueryBean comments, S3Bean s3, ConfigurableApplicationContext ctx) {
+    public Application(ExhibitQueryBean exhibits, SupportQueryBean supports, SurveyRollupQueryBean surveyRollups,
+                       ArtifactQueryBean artifacts, CommentQueryBean comments, S3Bean s3, CountReconciliationTask countReconciliation,
+                       FeedIndexRebuildTask feedIndexRebuild, TagCatalogRebuildTask tagCatalogRebuild,
+                       SurveyAggregateRebuildTask surveyAggregateRebuild, ConfigurableApplicationContext ctx) {
         this.exhibits = exhibits;
         this.supports = supports;
+        this.surveyRollups = surveyRollups;
         this.artifacts = artifacts;
         this.comments = comments;
         this.s3 = s3;
+        this.countReconciliation = countReconciliation;
+        this.feedIndexRebuild = feedIndexRebuild;
+        this.tagCatalogRebuild = tagCatalogRebuild;
+        this.surveyAggregateRebuild = surveyAggregateRebuild;
         this.ctx = ctx;
     }
 
@@ -110,12 +128,12 @@ public class Application implements CommandLineRunner {
 
             for (int sIdx = 0; sIdx < supporters.length; ++sIdx) {
                 if ((eIdx & sIdx) == sIdx) {
-                    Map<String, Boolean> predictions = new HashMap<>();
-                    predictions.put("male", (sIdx + eIdx) % 2 == 0);
-                    predictions.put("female", (sIdx + eIdx) % 3 == 0);
-                    predictions.put("kids", (sIdx + eIdx) % 4 == 0);
-                    predictions.put("teenagers", (sIdx + eIdx) % 5 == 0);
-                    predictions.put("adults", (sIdx + eIdx) % 6 == 0);
+                    EnumSet<Survey.Population> predictions = EnumSet.noneOf(Survey.Population.class);
+                    if ((sIdx + eIdx) % 2 == 0) predictions.add(Survey.Population.MALE);
+                    if ((sIdx + eIdx) % 3 == 0) predictions.add(Survey.Population.FEMALE);
+                    if ((sIdx + eIdx) % 4 == 0) predictions.add(Survey.Population.KIDS);
+                    if ((sIdx + eIdx) % 5 == 0) predictions.add(Survey.Population.TEENAGERS);
+                    if ((sIdx + eIdx) % 6 == 0) predictions.add(Survey.Population.ADULTS);
                     supports.createSupport(
                             exhibitId, new Survey(
                                     ((sIdx + eIdx) % 9) + 1, predictions,
@@ -157,8 +175,15 @@ public class Application implements CommandLineRunner {
             // Order is important! Some tables depend on others.
             exhibits.setupTable(resetOnStart);
             supports.setupTable(resetOnStart);
+            surveyRollups.setupTable(resetOnStart);
             artifacts.setupTable(resetOnStart);
             comments.setupTable(resetOnStart);
+            // Fills in the counts on any exhibits that existed before they were denormalized
+            countReconciliation.reconcile();
+            // Does nothing unless ff.feed-index.enabled; until this runs, feeds come straight from the DB
+            feedIndexRebuild.rebuild();
+            tagCatalogRebuild.rebuild();
+            surveyAggregateRebuild.rebuild();
             LOG.info("Done initializing DB");
         } catch (Exception e) {
             LOG.error("Failed while initializing DB", e);
@@ -0,0 +1,264 @@
+package org.comic_conmuseum.fan_forge.backend.cache;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.BiPredicate;
+import java.util.function.UnaryOperator;
+import java.util.function.ToLongFunction;
+
+/**
+ * A small thread-safe LRU cache with a total weight limit and a TTL. The
+ * weight of each value is up to the caller (e.g. its size in bytes), so it
+ * can bound memory use rather than just the number of entries.
+ *
+ * Everything goes through one lock. That's fine for the sizes and hit
+ * rates we deal with; it's not meant to be a general-purpose cache.
+ */
+public class BoundedCache<K, V> {
+    private static class Slot<V> {
+        final V value;
+        final long weight;
+        final long expiresAt;
+
+        Slot(V value, long weight, long expiresAt) {
+            this.value = value;
+            this.weight = weight;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    /** A snapshot of how the cache has been doing since it was created */
+    public static class Stats {
+        public final long hits;
+        public final long misses;
+        public final long evictions;
+        public final long invalidations;
+        public final long entries;
+        public final long weight;
+        public final long maxWeight;
+        /** How many times a missing value was loaded, if the owner records that */
+        public final long loads;
+        public final long loadMillis;
+
+        Stats(long hits, long misses, long evictions, long invalidations, long entries, long weight,
+              long maxWeight, long loads, long loadMillis) {
+            this.hits = hits;
+            this.misses = misses;
+            this.evictions = evictions;
+            this.invalidations = invalidations;
+            this.entries = entries;
+            this.weight = weight;
+            this.maxWeight = maxWeight;
+            this.loads = loads;
+            this.loadMillis = loadMillis;
+        }
+
+        public double getHitRate() {
+            return hits + misses == 0 ? 0 : (double) hits / (hits + misses);
+        }
+
+        public double getAverageLoadMillis() {
+            return loads == 0 ? 0 : (double) loadMillis / loads;
+        }
+    }
+
+    private final long maxWeight;
+    private final long ttlMillis;
+    private final ToLongFunction<V> weigher;
+    private final BiConsumer<? super K, ? super V> onRemoved;
+    // access-ordered, so the first entry is always the least recently used
+    private final LinkedHashMap<K, Slot<V>> slots = new LinkedHashMap<>(16, 0.75f, true);
+    private long weight = 0;
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+    private long invalidations = 0;
+    private long loads = 0;
+    private long loadNanos = 0;
+
+    /**
+     * @param maxWeight The most total weight to hold. Anything heavier than
+     *                  this on its own is never cached.
+     * @param ttlMillis How long an entry lives after it's put in, or 0 for
+     *                  no limit.
+     * @param weigher   How heavy a value is.
+     */
+    public BoundedCache(long maxWeight, long ttlMillis, ToLongFunction<V> weigher) {
+        this(maxWeight, ttlMillis, weigher, (key, value) -> { });
+    }
+
+    /**
+     * Like the other constructor, but calls {@code onRemoved} for every
+     * value that leaves the cache for any reason, including being replaced.
+     * It's called with the lock held, so it should be quick.
+     */
+    public BoundedCache(long maxWeight, long ttlMillis, ToLongFunction<V> weigher,
+                        BiConsumer<? super K, ? super V> onRemoved) {
+        this.maxWeight = maxWeight;
+        this.ttlMillis = ttlMillis;
+        this.weigher = weigher;
+        this.onRemoved = onRemoved;
+    }
+
+    /** The cached value, or null if there isn't one (or it's expired) */
+    public synchronized V get(K key) {
+        Slot<V> slot = slots.get(key);
+        if (slot != null && isExpired(slot, System.currentTimeMillis())) {
+            remove(key);
+            slot = null;
+        }
+        if (slot == null) {
+            ++misses;
+            return null;
+        }
+        ++hits;
+        return slot.value;
+    }
+
+    /** Returns whether it was cached, which it isn't if it's heavier than the whole cache */
+    public synchronized boolean put(K key, V value) {
+        long w = weigher.applyAsLong(value);
+        if (w > maxWeight) {
+            return false;
+        }
+        remove(key);
+        long expiresAt = ttlMillis > 0 ? System.currentTimeMillis() + ttlMillis : Long.MAX_VALUE;
+        slots.put(key, new Slot<>(value, w, expiresAt));
+        weight += w;
+        evict();
+        return true;
+    }
+
+    /** Drops every entry the predicate matches, and returns how many that was */
+    public synchronized int invalidateIf(BiPredicate<? super K, ? super V> predicate) {
+        int removed = 0;
+        Iterator<Map.Entry<K, Slot<V>>> it = slots.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<K, Slot<V>> entry = it.next();
+            if (predicate.test(entry.getKey(), entry.getValue().value)) {
+                weight -= entry.getValue().weight;
+                it.remove();
+                onRemoved.accept(entry.getKey(), entry.getValue().value);
+                ++removed;
+            }
+        }
+        invalidations += removed;
+        return removed;
+    }
+
+    /**
+     * Replaces every value with what {@code update} returns for it, without
+     * counting as a use or resetting the TTL. Returning null drops it.
+     */
+    public synchronized void updateAll(BiFunction<? super K, ? super V, ? extends V> update) {
+        Iterator<Map.Entry<K, Slot<V>>> it = slots.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<K, Slot<V>> entry = it.next();
+            Slot<V> old = entry.getValue();
+            V updated = update.apply(entry.getKey(), old.value);
+            weight -= old.weight;
+            if (updated != old.value) {
+                onRemoved.accept(entry.getKey(), old.value);
+            }
+            if (updated == null) {
+                it.remove();
+                ++invalidations;
+            } else {
+                Slot<V> slot = new Slot<>(updated, weigher.applyAsLong(updated), old.expiresAt);
+                entry.setValue(slot);
+                weight += slot.weight;
+            }
+        }
+        evict();
+    }
+
+    /**
+     * Atomically replaces the value for {@code key}, if there is one, like
+     * {@link #updateAll}. Returns whether there was.
+     */
+    public synchronized boolean update(K key, UnaryOperator<V> update) {
+        Slot<V> old = slots.get(key);
+        if (old == null) {
+            return false;
+        }
+        V updated = update.apply(old.value);
+        weight -= old.weight;
+        if (updated != old.value) {
+            onRemoved.accept(key, old.value);
+        }
+        if (updated == null) {
+            slots.remove(key);
+            ++invalidations;
+        } else {
+            Slot<V> slot = new Slot<>(updated, weigher.applyAsLong(updated), old.expiresAt);
+            slots.put(key, slot);
+            weight += slot.weight;
+            evict();
+        }
+        return true;
+    }
+
+    /** A copy of the keys currently cached, least recently used first */
+    public synchronized List<K> keys() {
+        return new ArrayList<>(slots.keySet());
+    }
+
+    public synchronized void invalidate(K key) {
+        if (remove(key)) {
+            ++invalidations;
+        }
+    }
+
+    /** Records how long it took to load a value that was missing, for the stats */
+    public synchronized void recordLoad(long nanos) {
+        ++loads;
+        loadNanos += nanos;
+    }
+
+    public synchronized void clear() {
+        invalidations += slots.size();
+        slots.forEach((key, slot) -> onRemoved.accept(key, slot.value));
+        slots.clear();
+        weight = 0;
+    }
+
+    public synchronized Stats stats() {
+        return new Stats(hits, misses, evictions, invalidations, slots.size(), weight, maxWeight,
+                loads, loadNanos / 1_000_000);
+    }
+
+    private boolean isExpired(Slot<V> slot, long now) {
+        return slot.expiresAt <= now;
+    }
+
+    private boolean remove(K key) {
+        Slot<V> old = slots.remove(key);
+        if (old != null) {
+            weight -= old.weight;
+            onRemoved.accept(key, old.value);
+            return true;
+        }
+        return false;
+    }
+
+    private void evict() {
+        long now = System.currentTimeMillis();
+        Iterator<Map.Entry<K, Slot<V>>> it = slots.entrySet().iterator();
+        while (weight > maxWeight && it.hasNext()) {
+            Map.Entry<K, Slot<V>> entry = it.next();
+            Slot<V> slot = entry.getValue();
+            it.remove();
+            weight -= slot.weight;
+            onRemoved.accept(entry.getKey(), slot.value);
+            // expired entries would have been dropped anyway, so they don't count as evictions
+            if (!isExpired(slot, now)) {
+                ++evictions;
+            }
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package org.comic_conmuseum.fan_forge.backend.cache;
+
+import org.comic_conmuseum.fan_forge.backend.endpoints.responses.ExhibitFull;
+import org.comic_conmuseum.fan_forge.backend.persistence.events.ArtifactEvent;
+import org.comic_conmuseum.fan_forge.backend.persistence.events.CommentEvent;
+import org.comic_conmuseum.fan_forge.backend.persistence.events.ExhibitEvent;
+import org.comic_conmuseum.fan_forge.backend.persistence.events.SupportEvent;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.event.TransactionalEventListener;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Caches exhibits' details pages, by ID, without anything specific to the
+ * user looking at them. An exhibit is dropped as soon as a write to it, its
+ * artifacts (including the cover), comments, or support count commits.
+ */
+@Component
+public class ExhibitCache {
+    private static final Logger LOG = LoggerFactory.getLogger("cache.exhibit");
+
+    // same idea as in SupportedSetCache: a write to one exhibit shouldn't keep all the others from being cached
+    private static final int STAMP_STRIPES = 64;
+
+    private final BoundedCache<Long, ExhibitFull> exhibits;
+    private final AtomicLongArray stamps = new AtomicLongArray(STAMP_STRIPES);
+
+    @Autowired
+    public ExhibitCache(@Value("${ff.exhibit-cache.max-entries}") long maxEntries,
+                        @Value("${ff.exhibit-cache.ttl-ms}") long ttlMillis) {
+        this.exhibits = new BoundedCache<>(maxEntries, ttlMillis, exhibit -> 1);
+    }
+
+    /** The cached details, with `supported` unset, or null */
+    public ExhibitFull get(long eid) {
+        return exhibits.get(eid);
+    }
+
+    /**
+     * Call this <em>before</em> loading the exhibit from the DB, and pass
+     * it to {@link #put}.
+     */
+    public long stamp(long eid) {
+        return stamps.get(stripeOf(eid));
+    }
+
+    /**
+     * Caches the details, unless the exhibit may have been written since
+     * {@code stamp} was taken. {@code loadNanos} is how long loading it took.
+     */
+    public void put(long eid, ExhibitFull exhibit, long stamp, long loadNanos) {
+        exhibits.recordLoad(loadNanos);
+        int stripe = stripeOf(eid);
+        if (stamps.get(stripe) != stamp) {
+            return;
+        }
+        exhibits.put(eid, exhibit);
+        // a write may have slipped in between the check and the put
+        if (stamps.get(stripe) != stamp) {
+            exhibits.invalidate(eid);
+        }
+    }
+
+    /** For writes that go around the events, like the count reconciliation */
+    public void invalidateAll() {
+        for (int i = 0; i < STAMP_STRIPES; ++i) {
+            stamps.incrementAndGet(i);
+        }
+        exhibits.clear();
+        LOG.info("Dropped all cached exhibits");
+    }
+
+    public BoundedCache.Stats stats() {
+        return exhibits.stats();
+    }
+
+    @TransactionalEventListener(fallbackExecution = true)
+    public void exhibitChanged(ExhibitEvent event) {
+        invalidate(event.eid);
+    }
+
+    @TransactionalEventListener(fallbackExecution = true)
+    public void supportChanged(SupportEvent event) {
+        // the supporter's own `supported` flag isn't cached here, just the count
+        if (event.supportCount != null) {
+            invalidate(event.eid);
+        }
+    }
+
+    @TransactionalEventListener(fallbackExecution = true)
+    public void commentChanged(CommentEvent event) {
+        invalidate(event.eid);
+    }
+
+    @TransactionalEventListener(fallbackExecution = true)
+    public void artifactChanged(ArtifactEvent event) {
+        invalidate(event.eid);
+    }
+
+    private void invalidate(long eid) {
+        stamps.incrementAndGet(stripeOf(eid));
+        exhibits.invalidate(eid);
+        LOG.debug("Dropped exhibit {}", eid);
+    }
+
+    private static int stripeOf(long eid) {
+        return (int) ((eid & 0x7fffffffffffffffL) % STAMP_STRIPES);
+    }
+}
@@ -0,0 +1,99 @@
+package org.comic_conmuseum.fan_forge.backend.cache;
+
+import org.comic_conmuseum.fan_forge.backend.persistence.FeedFilter;
+import org.comic_conmuseum.fan_forge.backend.persistence.events.ExhibitEvent;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.event.TransactionalEventListener;
+
+import java.util.List;
+
+/**
+ * Caches the total number of exhibits matching each feed filter. Instead of
+ * being dropped on writes, the counts are adjusted as exhibits are created,
+ * deleted, or retagged in or out of a filter, so they stay warm. Anything
+ * that goes around the query beans is fixed by the periodic recount.
+ *
+ * Since the counts are adjusted rather than dropped, writers have to call
+ * {@link #writing} first; see WriteStamps.
+ */
+@Component
+public class FeedCountCache {
+    private static final Logger LOG = LoggerFactory.getLogger("cache.feed_count");
+
+    private final BoundedCache<FeedFilter, Long> counts;
+    /** Just the one stripe, since any exhibit write can change any filter's count */
+    private final WriteStamps stamps = new WriteStamps(1);
+
+    @Autowired
+    public FeedCountCache(@Value("${ff.count-cache.max-entries}") long maxEntries) {
+        this.counts = new BoundedCache<>(maxEntries, 0, count -> 1);
+    }
+
+    /** The cached count, or null */
+    public Long get(FeedFilter filter) {
+        return counts.get(filter);
+    }
+
+    /**
+     * Call this <em>before</em> counting in the DB, and pass it to {@link #put}.
+     */
+    public long stamp() {
+        return stamps.stamp(0);
+    }
+
+    /**
+     * Call this <em>before</em> creating, deleting, or retagging an
+     * exhibit, and close it after publishing the ExhibitEvent.
+     */
+    public WriteStamps.Write writing() {
+        return stamps.writing(0);
+    }
+
+    /**
+     * Caches the count, unless an exhibit was written since {@code stamp}
+     * was taken, or is being written now.
+     */
+    public void put(FeedFilter filter, long count, long stamp) {
+        if (!stamps.unchanged(0, stamp)) {
+            return;
+        }
+        counts.put(filter, count);
+        // a write may have slipped in between the check and the put
+        if (!stamps.unchanged(0, stamp)) {
+            counts.invalidate(filter);
+        }
+    }
+
+    /** The filters that currently have a count, for recounting */
+    public List<FeedFilter> filters() {
+        return counts.keys();
+    }
+
+    public BoundedCache.Stats stats() {
+        return counts.stats();
+    }
+
+    @TransactionalEventListener(fallbackExecution = true)
+    public void exhibitChanged(ExhibitEvent event) {
+        // the stamp was already bumped by the writer; see writing
+        counts.updateAll((filter, count) -> count + delta(filter, event));
+        LOG.debug("Adjusted counts for exhibit {} {}", event.eid, event.kind);
+    }
+
+    private static long delta(FeedFilter filter, ExhibitEvent event) {
+        switch (event.kind) {
+            case CREATED:
+                return filter.matches(event.author, event.tags) ? 1 : 0;
+            case DELETED:
+                return filter.matches(event.author, event.tags) ? -1 : 0;
+            default:
+                boolean before = filter.matches(event.author, event.previousTags);
+                boolean after = filter.matches(event.author, event.tags);
+                return before == after ? 0 : after ? 1 : -1;
+        }
+    }
+}
@@ -0,0 +1,216 @@
+package org.comic_conmuseum.fan_forge.backend.cache;
+
+import org.comic_conmuseum.fan_forge.backend.persistence.ExhibitQueryBean;
+import org.comic_conmuseum.fan_forge.backend.persistence.FeedFilter;
+import org.comic_conmuseum.fan_forge.backend.persistence.events.ArtifactEvent;
+import org.comic_conmuseum.fan_forge.backend.persistence.events.CommentEvent;
+import org.comic_conmuseum.fan_forge.backend.persistence.events.ExhibitEvent;
+import org.comic_conmuseum.fan_forge.backend.persistence.events.ScoresEvent;
+import org.comic_conmuseum.fan_forge.backend.persistence.events.SupportEvent;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.event.TransactionalEventListener;
+
+import java.util.Arrays;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Caches the serialized JSON of anonymous feed pages. Anonymous pages
+ * don't have the per-user `supported` flag, so everyone gets the same
+ * bytes and there's no point in building them more than once.
+ *
+ * Entries are dropped as soon as a write that could change them commits:
+ * <ul>
+ *     <li>Creating or deleting an exhibit drops every page of every feed
+ *     whose filter it matches, since the total count and every offset
+ *     shift. Updates only do that if the exhibit's tags moved it in or out
+ *     of the filter.</li>
+ *     <li>New or removed supports drop the popular pages it matches, since
+ *     they're ordered by support count.</li>
+ *     <li>Rescoring drops every trending and comments page, since any
+ *     score moving can shift the rest of the feed.</li>
+ *     <li>Anything else that's shown in the feed (title, cover, counts)
+ *     just drops the pages the exhibit is on.</li>
+ * </ul>
+ * On top of that, there's a TTL, for the writes that don't go through the
+ * query beans.
+ */
+@Component
+public class FeedResponseCache {
+    private static final Logger LOG = LoggerFactory.getLogger("cache.feed");
+
+    public static class Key {
+        private final ExhibitQueryBean.FeedType type;
+        private final FeedFilter filter;
+        private final String cursor;
+        private final long startIdx;
+        private final int pageSize;
+        private final boolean includeCount;
+
+        public Key(ExhibitQueryBean.FeedType type, FeedFilter filter, String cursor, long startIdx, int pageSize,
+                   boolean includeCount) {
+            this.type = type;
+            this.filter = filter;
+            this.cursor = cursor;
+            // startIdx is ignored when there's a cursor, so don't let it split the cache
+            this.startIdx = cursor == null ? startIdx : 0;
+            this.pageSize = pageSize;
+            this.includeCount = includeCount;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Key)) return false;
+            Key other = (Key) o;
+            return type == other.type && filter.equals(other.filter) && Objects.equals(cursor, other.cursor)
+                    && startIdx == other.startIdx && pageSize == other.pageSize
+                    && includeCount == other.includeCount;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(type, filter, cursor, startIdx, pageSize, includeCount);
+        }
+    }
+
+    public static class Page {
+        public final byte[] json;
+        public final String etag;
+        /** Sorted, for binarySearch */
+        private final long[] eids;
+
+        private Page(byte[] json, String etag, long[] eids) {
+            this.json = json;
+            this.etag = etag;
+            this.eids = eids;
+        }
+
+        boolean contains(long eid) {
+            return Arrays.binarySearch(eids, eid) >= 0;
+        }
+    }
+
+    private final boolean enabled;
+    private final BoundedCache<Key, Page> pages;
+    /** Bumped on every invalidation, so pages built from data that's since changed don't get cached */
+    private final AtomicLong generation = new AtomicLong();
+
+    @Autowired
+    public FeedResponseCache(@Value("${ff.feed-cache.max-bytes}") long maxBytes,
+                             @Value("${ff.feed-cache.ttl-ms}") long ttlMillis) {
+        this.enabled = maxBytes > 0;
+        this.pages = new BoundedCache<>(maxBytes, ttlMillis, page -> page.json.length + page.etag.length() + 8L * page.eids.length);
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /** The cached page, or null */
+    public Page get(Key key) {
+        if (!enabled) {
+            return null;
+        }
+        return pages.get(key);
+    }
+
+    /**
+     * Call this <em>before</em> reading the page from the DB, and pass it to
+     * {@link #put}.
+     */
+    public long stamp() {
+        return generation.get();
+    }
+
+    /**
+     * Caches the page, unless something was invalidated since {@code stamp}
+     * was taken -- the page might have been read before that write committed.
+     */
+    public void put(Key key, byte[] json, String etag, long[] eids, long stamp) {
+        if (!enabled || generation.get() != stamp) {
+            return;
+        }
+        long[] sorted = eids.clone();
+        Arrays.sort(sorted);
+        pages.put(key, new Page(json, etag, sorted));
+        // an invalidation may have slipped in between the check and the put
+        if (generation.get() != stamp) {
+            pages.invalidate(key);
+        }
+    }
+
+    public BoundedCache.Stats stats() {
+        return pages.stats();
+    }
+
+    @TransactionalEventListener(fallbackExecution = true)
+    public void exhibitChanged(ExhibitEvent event) {
+        if (!enabled) {
+            return;
+        }
+        generation.incrementAndGet();
+        int dropped;
+        if (event.kind == ExhibitEvent.Kind.UPDATED) {
+            dropped = pages.invalidateIf((key, page) ->
+                    page.contains(event.eid)
+                            || key.filter.matches(event.author, event.tags)
+                               != key.filter.matches(event.author, event.previousTags));
+        } else {
+            dropped = pages.invalidateIf((key, page) -> key.filter.matches(event.author, event.tags));
+        }
+        LOG.debug("Exhibit {} {}; dropped {} pages", event.eid, event.kind, dropped);
+    }
+
+    @TransactionalEventListener(fallbackExecution = true)
+    public void supportChanged(SupportEvent event) {
+        if (!enabled || event.supportCount == null) {
+            // updating a survey doesn't change anything in the feed
+            return;
+        }
+        generation.incrementAndGet();
+        int dropped = pages.invalidateIf((key, page) ->
+                page.contains(event.eid)
+                        || (key.type == ExhibitQueryBean.FeedType.popular
+                            && key.filter.matches(event.exhibitAuthor, event.exhibitTags)));
+        LOG.debug("Support on {} {}; dropped {} pages", event.eid, event.kind, dropped);
+    }
+
+    @TransactionalEventListener(fallbackExecution = true)
+    public void scoresChanged(ScoresEvent event) {
+        if (!enabled) {
+            return;
+        }
+        generation.incrementAndGet();
+        int dropped = pages.invalidateIf((key, page) ->
+                key.type == ExhibitQueryBean.FeedType.trending || key.type == ExhibitQueryBean.FeedType.comments);
+        LOG.debug("{} exhibits rescored; dropped {} pages", event.eids.size(), dropped);
+    }
+
+    @TransactionalEventListener(fallbackExecution = true)
+    public void commentChanged(CommentEvent event) {
+        if (!enabled || event.kind == CommentEvent.Kind.UPDATED) {
+            // only the count is in the feed
+            return;
+        }
+        dropPagesWith(event.eid);
+    }
+
+    @TransactionalEventListener(fallbackExecution = true)
+    public void artifactChanged(ArtifactEvent event) {
+        if (!enabled) {
+            return;
+        }
+        dropPagesWith(event.eid);
+    }
+
+    private void dropPagesWith(long eid) {
+        generation.incrementAndGet();
+        int dropped = pages.invalidateIf((key, page) -> page.contains(eid));
+        LOG.debug("Dropped {} pages containing {}", dropped, eid);
+    }
+}
@@ -0,0 +1,294 @@
+package org.comic_conmuseum.fan_forge.backend.cache;
+
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.S3Object;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Keeps copies of images from S3 on local disk, by S3 key, least recently
+ * used first out once they go over {@code ff.image-cache.max-bytes}. Each
+ * image is a randomly named file with a `.meta` sidecar next to it holding
+ * the key, content type, and S3's ETag and last-modified time, so the
+ * cache survives restarts.
+ *
+ * When lots of requests miss on the same image at once, only one of them
+ * fetches it from S3; the rest wait for it.
+ */
+@Component
+public class ImageDiskCache {
+    private static final Logger LOG = LoggerFactory.getLogger("cache.image");
+
+    private static final String META_SUFFIX = ".meta";
+    private static final String TEMP_SUFFIX = ".tmp";
+    /**
+     * How long dropped files stick around before they're actually deleted,
+     * since a response could still be sending one.
+     */
+    private static final long DELETE_DELAY_SECONDS = 60;
+    // same idea as in ExhibitCache
+    private static final int STAMP_STRIPES = 64;
+
+    /** A cached image. The file shouldn't be touched, just read. */
+    public static class Image {
+        public final String key;
+        public final Path file;
+        public final String contentType;
+        public final long length;
+        /** S3's ETag for it, or null if it didn't have one */
+        public final String etag;
+        /** When it was last written to S3, in epoch millis, or -1 if that's unknown */
+        public final long lastModified;
+
+        Image(String key, Path file, String contentType, long length, String etag, long lastModified) {
+            this.key = key;
+            this.file = file;
+            this.contentType = contentType;
+            this.length = length;
+            this.etag = etag;
+            this.lastModified = lastModified;
+        }
+
+        Path meta() {
+            return file.resolveSibling(file.getFileName() + META_SUFFIX);
+        }
+    }
+
+    private final Path dir;
+    private final boolean enabled;
+    private final BoundedCache<String, Image> images;
+    private final ConcurrentMap<String, CompletableFuture<Image>> loading = new ConcurrentHashMap<>();
+    private final AtomicLongArray stamps = new AtomicLongArray(STAMP_STRIPES);
+    private final ScheduledExecutorService deleter = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "image-cache-deleter");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    @Autowired
+    public ImageDiskCache(@Value("${ff.image-cache.dir}") String dir,
+                          @Value("${ff.image-cache.max-bytes}") long maxBytes) {
+        this.dir = Paths.get(dir);
+        this.images = new BoundedCache<>(maxBytes, 0, image -> image.length, (key, image) -> deleteLater(image));
+        this.enabled = maxBytes > 0 && load();
+    }
+
+    /** If it's not, images should just be streamed from S3 */
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /** The cached image, or null if it isn't cached */
+    public Image get(String key) {
+        return images.get(key);
+    }
+
+    /**
+     * The cached image, or if it's not cached, whatever {@code fetch} gets
+     * from S3 after it's been saved to disk. The returned file may not stay
+     * cached, but it won't be deleted for at least a minute.
+     */
+    public Image get(String key, Supplier<S3Object> fetch) throws IOException {
+        Image cached = images.get(key);
+        return cached != null ? cached : load(key, fetch);
+    }
+
+    /** Like {@link #get(String, Supplier)}, but for when it's already known not to be cached */
+    public Image load(String key, Supplier<S3Object> fetch) throws IOException {
+        CompletableFuture<Image> mine = new CompletableFuture<>();
+        CompletableFuture<Image> theirs = loading.putIfAbsent(key, mine);
+        if (theirs != null) {
+            return await(theirs);
+        }
+        try {
+            Image image = fetch(key, fetch);
+            mine.complete(image);
+            return image;
+        } catch (IOException | RuntimeException e) {
+            mine.completeExceptionally(e);
+            throw e;
+        } finally {
+            loading.remove(key, mine);
+        }
+    }
+
+    /** Drops the image, e.g. because it's been replaced in S3 */
+    public void invalidate(String key) {
+        stamps.incrementAndGet(stripeOf(key));
+        // anyone already waiting gets the old one, but nobody new will
+        loading.remove(key);
+        images.invalidate(key);
+        LOG.debug("Dropped image {}", key);
+    }
+
+    public BoundedCache.Stats stats() {
+        return images.stats();
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        deleter.shutdown();
+    }
+
+    private Image fetch(String key, Supplier<S3Object> fetch) throws IOException {
+        long start = System.nanoTime();
+        long stamp = stamps.get(stripeOf(key));
+        Path file = dir.resolve(UUID.randomUUID().toString());
+        Path temp = file.resolveSibling(file.getFileName() + TEMP_SUFFIX);
+        Image image;
+        try (S3Object obj = fetch.get(); InputStream in = obj.getObjectContent()) {
+            long length = Files.copy(in, temp);
+            Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE);
+            ObjectMetadata meta = obj.getObjectMetadata();
+            image = new Image(
+                    key,
+                    file,
+                    meta.getContentType() == null ? "application/octet-stream" : meta.getContentType(),
+                    length,
+                    meta.getETag(),
+                    meta.getLastModified() == null ? -1 : meta.getLastModified().getTime()
+            );
+            writeMeta(image);
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(temp);
+            Files.deleteIfExists(file);
+            throw e;
+        }
+        images.recordLoad(System.nanoTime() - start);
+        LOG.info("Cached image {} ({} bytes)", key, image.length);
+
+        int stripe = stripeOf(key);
+        if (stamps.get(stripe) != stamp || !images.put(key, image)) {
+            // either it's stale or it's too big to cache, but it still has to be sent this time
+            deleteLater(image);
+        } else if (stamps.get(stripe) != stamp) {
+            // an invalidation may have slipped in between the check and the put
+            images.invalidate(key);
+        }
+        return image;
+    }
+
+    private static Image await(CompletableFuture<Image> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for image");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+    }
+
+    private static void writeMeta(Image image) throws IOException {
+        Properties meta = new Properties();
+        meta.setProperty("key", image.key);
+        meta.setProperty("content-type", image.contentType);
+        meta.setProperty("length", String.valueOf(image.length));
+        if (image.etag != null) {
+            meta.setProperty("etag", image.etag);
+        }
+        meta.setProperty("last-modified", String.valueOf(image.lastModified));
+        Path temp = image.file.resolveSibling(image.meta().getFileName() + TEMP_SUFFIX);
+        try (OutputStream out = Files.newOutputStream(temp)) {
+            meta.store(out, null);
+        }
+        Files.move(temp, image.meta(), StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Indexes whatever was cached before the last restart, and cleans up
+     * anything half-written. Returns false if the directory isn't usable.
+     */
+    private boolean load() {
+        List<Path> files;
+        try {
+            Files.createDirectories(dir);
+            try (Stream<Path> listed = Files.list(dir)) {
+                files = listed.collect(Collectors.toList());
+            }
+        } catch (IOException e) {
+            LOG.warn("Can't use {} for caching images; they'll all come straight from S3", dir, e);
+            return false;
+        }
+        List<Image> found = new ArrayList<>();
+        Set<Path> keep = new HashSet<>();
+        for (Path path : files) {
+            String name = path.getFileName().toString();
+            if (!name.endsWith(META_SUFFIX)) {
+                continue;
+            }
+            Path file = path.resolveSibling(name.substring(0, name.length() - META_SUFFIX.length()));
+            Properties meta = new Properties();
+            try (InputStream in = Files.newInputStream(path)) {
+                meta.load(in);
+                long length = Long.parseLong(meta.getProperty("length"));
+                if (meta.getProperty("key") != null && Files.size(file) == length) {
+                    found.add(new Image(
+                            meta.getProperty("key"),
+                            file,
+                            meta.getProperty("content-type"),
+                            length,
+                            meta.getProperty("etag"),
+                            Long.parseLong(meta.getProperty("last-modified", "-1"))
+                    ));
+                    keep.add(file);
+                    keep.add(path);
+                }
+            } catch (IOException | RuntimeException e) {
+                LOG.info("Skipping unreadable cached image {}", file);
+            }
+        }
+        for (Path path : files) {
+            if (!keep.contains(path)) {
+                delete(path);
+            }
+        }
+        // oldest first, so they're the first to be evicted
+        found.sort(Comparator.comparing(image -> image.file.toFile().lastModified()));
+        for (Image image : found) {
+            if (!images.put(image.key, image)) {
+                deleteLater(image);
+            }
+        }
+        LOG.info("Found {} cached images in {}", images.stats().entries, dir);
+        return true;
+    }
+
+    private void deleteLater(Image image) {
+        deleter.schedule(() -> {
+            delete(image.meta());
+            delete(image.file);
+        }, DELETE_DELAY_SECONDS, TimeUnit.SECONDS);
+    }
+
+    private static void delete(Path path) {
+        try {
+            Files.deleteIfExists(path);
+        } catch (IOException e) {
+            LOG.warn("Failed to delete {}", path, e);
+        }
+    }
+
+    private static int stripeOf(String key) {
+        return (key.hashCode() & 0x7fffffff) % STAMP_STRIPES;
+    }
+}
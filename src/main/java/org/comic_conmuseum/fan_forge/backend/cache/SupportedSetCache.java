@@ -0,0 +1,133 @@
+package org.comic_conmuseum.fan_forge.backend.cache;
+
+import org.comic_conmuseum.fan_forge.backend.persistence.events.SupportEvent;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.event.TransactionalEventListener;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Caches the set of exhibits each user supports, so the `supported` flag on
+ * a whole feed page can be filled in without going to the DB. Sets are
+ * kept up to date as the user supports and unsupports things, and the
+ * least recently used ones are dropped when the cache gets too big.
+ */
+@Component
+public class SupportedSetCache {
+    private static final Logger LOG = LoggerFactory.getLogger("cache.supported");
+
+    /**
+     * An immutable set of exhibit IDs, as a sorted array. Most users support
+     * a handful of exhibits, so this is about as small as it gets.
+     */
+    public static class SupportedSet {
+        private final int[] eids;
+
+        /** @param eids The IDs, in ascending order */
+        public SupportedSet(int[] eids) {
+            this.eids = eids;
+        }
+
+        public boolean contains(long eid) {
+            return Arrays.binarySearch(eids, (int) eid) >= 0;
+        }
+
+        public int size() {
+            return eids.length;
+        }
+
+        SupportedSet with(long eid) {
+            int idx = Arrays.binarySearch(eids, (int) eid);
+            if (idx >= 0) {
+                return this;
+            }
+            int at = -idx - 1;
+            int[] added = new int[eids.length + 1];
+            System.arraycopy(eids, 0, added, 0, at);
+            added[at] = (int) eid;
+            System.arraycopy(eids, at, added, at + 1, eids.length - at);
+            return new SupportedSet(added);
+        }
+
+        SupportedSet without(long eid) {
+            int at = Arrays.binarySearch(eids, (int) eid);
+            if (at < 0) {
+                return this;
+            }
+            int[] removed = new int[eids.length - 1];
+            System.arraycopy(eids, 0, removed, 0, at);
+            System.arraycopy(eids, at + 1, removed, at, eids.length - at - 1);
+            return new SupportedSet(removed);
+        }
+    }
+
+    // Supports are written often enough that one global stamp would keep
+    // most sets from being cached, so each user hashes to one of these.
+    private static final int STAMP_STRIPES = 64;
+
+    private final BoundedCache<String, SupportedSet> sets;
+    private final AtomicLongArray stamps = new AtomicLongArray(STAMP_STRIPES);
+
+    @Autowired
+    public SupportedSetCache(@Value("${ff.supported-cache.max-bytes}") long maxBytes,
+                             @Value("${ff.supported-cache.ttl-ms}") long ttlMillis) {
+        // rough overhead of the array, the slot, and the user ID
+        this.sets = new BoundedCache<>(maxBytes, ttlMillis, set -> 64 + 4L * set.size());
+    }
+
+    /** The user's cached set, or null */
+    public SupportedSet get(String user) {
+        return sets.get(user);
+    }
+
+    /**
+     * Call this <em>before</em> loading the user's set from the DB, and pass
+     * it to {@link #put}.
+     */
+    public long stamp(String user) {
+        return stamps.get(stripeOf(user));
+    }
+
+    /**
+     * Caches the set, unless one of the user's supports may have changed
+     * since {@code stamp} was taken.
+     */
+    public void put(String user, SupportedSet set, long stamp) {
+        int stripe = stripeOf(user);
+        if (stamps.get(stripe) != stamp) {
+            return;
+        }
+        sets.put(user, set);
+        // a write may have slipped in between the check and the put
+        if (stamps.get(stripe) != stamp) {
+            sets.invalidate(user);
+        }
+    }
+
+    public BoundedCache.Stats stats() {
+        return sets.stats();
+    }
+
+    @TransactionalEventListener(fallbackExecution = true)
+    public void supportChanged(SupportEvent event) {
+        if (event.kind == SupportEvent.Kind.UPDATED) {
+            return;
+        }
+        stamps.incrementAndGet(stripeOf(event.supporter));
+        boolean cached = sets.update(event.supporter, set -> event.kind == SupportEvent.Kind.CREATED
+                ? set.with(event.eid)
+                : set.without(event.eid));
+        if (cached) {
+            LOG.debug("Updated supported set of {} for {} {}", event.supporter, event.kind, event.eid);
+        }
+    }
+
+    private static int stripeOf(String user) {
+        return (user.hashCode() & 0x7fffffff) % STAMP_STRIPES;
+    }
+}
@@ -0,0 +1,122 @@
+package org.comic_conmuseum.fan_forge.backend.cache;
+
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Striped stamps for the caches that apply each write's change to what
+ * they have, instead of dropping it. Those can't keep anything that was
+ * loaded while a write was in flight: if the load ran after the write
+ * committed but before its AFTER_COMMIT listener, it already includes the
+ * write, and the listener would count it a second time.
+ *
+ * So writers call {@link #writing} <em>before</em> they write, and loaders
+ * take a {@link #stamp} before loading and only keep what they loaded if
+ * it's still {@link #unchanged} afterwards.
+ */
+public class WriteStamps {
+    private final AtomicLongArray stamps;
+    /** How many writes to each stripe haven't finished yet */
+    private final AtomicIntegerArray writers;
+
+    public WriteStamps(int stripes) {
+        this.stamps = new AtomicLongArray(stripes);
+        this.writers = new AtomicIntegerArray(stripes);
+    }
+
+    public int stripes() {
+        return stamps.length();
+    }
+
+    /** Call this <em>before</em> loading anything in the stripe from the DB */
+    public long stamp(int stripe) {
+        return stamps.get(stripe);
+    }
+
+    /**
+     * True if no write to the stripe has started or finished since
+     * {@code stamp} was taken, and none is still going. Check it both
+     * before and after keeping what was loaded, since a write could start
+     * in between.
+     */
+    public boolean unchanged(int stripe, long stamp) {
+        return writers.get(stripe) == 0 && stamps.get(stripe) == stamp;
+    }
+
+    /** For changes that aren't writes, like an exhibit being dropped entirely */
+    public void bump(int stripe) {
+        stamps.incrementAndGet(stripe);
+    }
+
+    /**
+     * Marks a write to the stripes as started. In a transaction, it's
+     * finished once the transaction commits or rolls back, after all of its
+     * AFTER_COMMIT listeners have run; otherwise, once the returned Write is
+     * closed, which has to be after the write's event has been published.
+     */
+    public Write writing(int... stripes) {
+        for (int stripe : stripes) {
+            writers.incrementAndGet(stripe);
+            stamps.incrementAndGet(stripe);
+        }
+        Write write = new Write(stripes);
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            // This has the lowest precedence, and transactional event listeners default to 0, so it
+            // runs after they do. Otherwise loads could be kept again before the change was applied.
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+                @Override
+                public void afterCompletion(int status) {
+                    write.finish();
+                }
+            });
+        } else {
+            write.finishOnClose = true;
+        }
+        return write;
+    }
+
+    /** Like {@link #writing}, for when it's not known ahead of time which stripes will be written */
+    public Write writingAll() {
+        int[] all = new int[stripes()];
+        for (int i = 0; i < all.length; ++i) {
+            all[i] = i;
+        }
+        return writing(all);
+    }
+
+    /**
+     * Meant to be held in a try-with-resources around the write. Nothing in
+     * the body ever uses it, so those methods need {@code @SuppressWarnings("try")}.
+     */
+    public class Write implements AutoCloseable {
+        private final int[] stripes;
+        private boolean finishOnClose;
+        private boolean finished;
+
+        private Write(int[] stripes) {
+            this.stripes = stripes;
+        }
+
+        private synchronized void finish() {
+            if (finished) {
+                return;
+            }
+            finished = true;
+            for (int stripe : stripes) {
+                // bumped again so nothing loaded while the write was going can be kept after it's done
+                stamps.incrementAndGet(stripe);
+                writers.decrementAndGet(stripe);
+            }
+        }
+
+        @Override
+        public void close() {
+            if (finishOnClose) {
+                finish();
+            }
+        }
+    }
+}
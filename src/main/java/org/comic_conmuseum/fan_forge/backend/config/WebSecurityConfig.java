@@ -29,7 +29,9 @@ public class WebSecurityConfig extends WebSecurityConfigurerAdapter {
             new AntPathRequestMatcher("/login", "POST"),
             // Getting model details and the feeds is available to everyone
             new AntPathRequestMatcher("/exhibit/*", "GET"),
+            new AntPathRequestMatcher("/exhibits", "GET"),
             new AntPathRequestMatcher("/artifact/*", "GET"),
+            new AntPathRequestMatcher("/exhibit/*/comments", "GET"),
             new AntPathRequestMatcher("/comment/*", "GET"),
             new AntPathRequestMatcher("/feed/*", "GET"),
             // Healthcheck is used for automatic deployment and monitoring, and
@@ -6,7 +6,7 @@ import org.comic_conmuseum.fan_forge.backend.endpoints.inputs.ArtifactCreation;
 import org.comic_conmuseum.fan_forge.backend.models.Artifact;
 import org.comic_conmuseum.fan_forge.backend.models.User;
 import org.comic_conmuseum.fan_forge.backend.persistence.ArtifactQueryBean;
-import org.comic_conmuseum.fan_forge.backend.persistence.S3Bean;
+import org.comic_conmuseum.fan_forge.backend.persistence.ImageUploads;
 import org.comic_conmuseum.fan_forge.backend.persistence.TransactionWrapper;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -19,6 +19,8 @@ import org.springframework.web.multipart.MultipartHttpServletRequest;
 
 import java.io.IOException;
 import java.sql.SQLException;
+import java.util.Collections;
+import java.util.List;
 
 @RestController
 public class ArtifactEndpoints {
@@ -26,13 +28,13 @@ public class ArtifactEndpoints {
     private static final ObjectReader CREATE_PARAMS_READER = new ObjectMapper().readerFor(ArtifactCreation.class);
 
     private final ArtifactQueryBean artifacts;
-    private final S3Bean s3;
+    private final ImageUploads uploads;
     private final TransactionWrapper transactions;
 
     @Autowired
-    public ArtifactEndpoints(ArtifactQueryBean artifacts, S3Bean s3, TransactionWrapper transactions) {
+    public ArtifactEndpoints(ArtifactQueryBean artifacts, ImageUploads uploads, TransactionWrapper transactions) {
         this.artifacts = artifacts;
-        this.s3 = s3;
+        this.uploads = uploads;
         this.transactions = transactions;
     }
 
@@ -53,20 +55,22 @@ public class ArtifactEndpoints {
         Artifact full = data.build(user);
         full.setCover(false);
         
+        String imageParamName = "image";
+        if (null != data.getImage()) {
+            imageParamName = data.getImage();
+        }
+        MultipartFile file = req.getFile(imageParamName);
+        if (file == null) {
+            return ResponseEntity.badRequest().build();
+        }
+        
         long id;
-        try (TransactionWrapper.Transaction t = transactions.start()) {
-            id = artifacts.create(full, data.getParent(), user);
-            String imageParamName = "image";
-            if (null != data.getImage()) {
-                imageParamName = data.getImage();
-            }
-            MultipartFile file = req.getFile(imageParamName);
-            if (file == null) {
-                return ResponseEntity.badRequest().build();
+        try (ImageUploads.Staged images = uploads.stage(Collections.singletonList(file))) {
+            try (TransactionWrapper.Transaction t = transactions.start()) {
+                id = artifacts.create(full, data.getParent(), user);
+                t.commit();
             }
-            s3.putImage(id, file);
-        
-            t.commit();
+            images.promote(Collections.singletonList(id));
         }
         return ResponseEntity.ok(id);
     }
@@ -80,13 +84,14 @@ public class ArtifactEndpoints {
         full.setCover(false);
         full.setId(id);
         
-        try (TransactionWrapper.Transaction t = transactions.start()) {
-            artifacts.update(full);
-            MultipartFile file = req.getFile("image");
-            if (file != null) {
-                s3.putImage(id, file);
+        MultipartFile file = req.getFile("image");
+        List<MultipartFile> files = file == null ? Collections.emptyList() : Collections.singletonList(file);
+        try (ImageUploads.Staged images = uploads.stage(files)) {
+            try (TransactionWrapper.Transaction t = transactions.start()) {
+                artifacts.update(full);
+                t.commit();
             }
-            t.commit();
+            images.promote(file == null ? Collections.emptyList() : Collections.singletonList(id));
         }
         return getArtifact(id);
     }
@@ -0,0 +1,52 @@
+package org.comic_conmuseum.fan_forge.backend.endpoints;
+
+import org.comic_conmuseum.fan_forge.backend.cache.BoundedCache;
+import org.comic_conmuseum.fan_forge.backend.cache.ExhibitCache;
+import org.comic_conmuseum.fan_forge.backend.cache.FeedCountCache;
+import org.comic_conmuseum.fan_forge.backend.cache.FeedResponseCache;
+import org.comic_conmuseum.fan_forge.backend.cache.ImageDiskCache;
+import org.comic_conmuseum.fan_forge.backend.cache.SupportedSetCache;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.RestController;
+
+import java.util.HashMap;
+import java.util.Map;
+
+@RestController
+public class CacheEndpoints {
+    private static final Logger LOG = LoggerFactory.getLogger("endpoints.cache");
+
+    private final FeedResponseCache feedCache;
+    private final FeedCountCache countCache;
+    private final SupportedSetCache supportedCache;
+    private final ExhibitCache exhibitCache;
+    private final ImageDiskCache imageCache;
+
+    @Autowired
+    public CacheEndpoints(FeedResponseCache feedCache, FeedCountCache countCache,
+                          SupportedSetCache supportedCache, ExhibitCache exhibitCache,
+                          ImageDiskCache imageCache) {
+        this.feedCache = feedCache;
+        this.countCache = countCache;
+        this.supportedCache = supportedCache;
+        this.exhibitCache = exhibitCache;
+        this.imageCache = imageCache;
+    }
+
+    @RequestMapping(value = "/admin/cache-stats", method = RequestMethod.GET)
+    public ResponseEntity<Map<String, BoundedCache.Stats>> getCacheStats() { // auth handled by WebSecurityConfig
+        LOG.info("Getting cache stats");
+        Map<String, BoundedCache.Stats> stats = new HashMap<>();
+        stats.put("feed", feedCache.stats());
+        stats.put("feedCount", countCache.stats());
+        stats.put("supported", supportedCache.stats());
+        stats.put("exhibit", exhibitCache.stats());
+        stats.put("image", imageCache.stats());
+        return ResponseEntity.ok(stats);
+    }
+}
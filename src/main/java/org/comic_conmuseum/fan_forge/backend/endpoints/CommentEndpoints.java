@@ -2,8 +2,10 @@ package org.comic_conmuseum.fan_forge.backend.endpoints;
 
 import org.comic_conmuseum.fan_forge.backend.endpoints.inputs.CommentCreation;
 import org.comic_conmuseum.fan_forge.backend.endpoints.responses.CommentView;
+import org.comic_conmuseum.fan_forge.backend.endpoints.responses.ErrorResponse;
 import org.comic_conmuseum.fan_forge.backend.models.Comment;
 import org.comic_conmuseum.fan_forge.backend.models.User;
+import org.comic_conmuseum.fan_forge.backend.persistence.CommentCursor;
 import org.comic_conmuseum.fan_forge.backend.persistence.CommentQueryBean;
 import org.comic_conmuseum.fan_forge.backend.persistence.TransactionWrapper;
 import org.slf4j.Logger;
@@ -33,6 +35,28 @@ public class CommentEndpoints {
         return ResponseEntity.ok(new CommentView(comments.get(id)));
     }
     
+    @RequestMapping(value = "/exhibit/{id}/comments", method = RequestMethod.GET)
+    public ResponseEntity getThreads(@PathVariable long id,
+                                     @RequestParam(required = false) Long parent,
+                                     @RequestParam(required = false) String cursor,
+                                     @RequestParam(defaultValue = "10") int pageSize,
+                                     @RequestParam(defaultValue = "2") int depth) {
+        CommentCursor after = null;
+        if (cursor != null) {
+            after = CommentCursor.decode(cursor);
+            if (after == null) {
+                LOG.info("Invalid comment cursor: {}", cursor);
+                return ResponseEntity.badRequest().body(new ErrorResponse(
+                        "Invalid cursor -- must be the `next` of an earlier page of comments",
+                        "Pass the cursor exactly as it was returned, or leave it out to start over"
+                ));
+            }
+        }
+        pageSize = Math.max(1, Math.min(pageSize, CommentQueryBean.MAX_PAGE_SIZE));
+        depth = Math.max(0, Math.min(depth, CommentQueryBean.MAX_DEPTH));
+        return ResponseEntity.ok(comments.getThreads(id, parent, after, pageSize, depth));
+    }
+    
     @RequestMapping(value = "/comment", method = RequestMethod.POST)
     public ResponseEntity<Long> createComment(@RequestBody CommentCreation data,
                                               @AuthenticationPrincipal User user) throws SQLException {
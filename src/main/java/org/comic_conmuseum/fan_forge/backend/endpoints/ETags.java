@@ -0,0 +1,67 @@
+package org.comic_conmuseum.fan_forge.backend.endpoints;
+
+import org.comic_conmuseum.fan_forge.backend.models.User;
+import org.springframework.http.CacheControl;
+import org.springframework.util.DigestUtils;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * Builds the ETags for exhibits and feed pages, from exhibit versions.
+ * Both depend on who's asking, since the `supported` flags do.
+ */
+final class ETags {
+    private ETags() {}
+
+    /**
+     * Clients have to check back every time, but can keep the body around
+     * for a 304. Without this, Spring Security sends `no-store`, which rules
+     * that out.
+     */
+    static CacheControl cacheControl(User user) {
+        CacheControl noCache = CacheControl.noCache();
+        return user.isAnonymous() ? noCache : noCache.cachePrivate();
+    }
+
+    static String forExhibit(long eid, long version, User user) {
+        return "\"e" + eid + "-" + version + "-" + userTag(user) + "\"";
+    }
+
+    /** The pages' eids and versions have to be in feed order */
+    static String forFeedPage(List<Long> eids, List<Long> versions, Long count, String next, User user) {
+        StringBuilder state = new StringBuilder();
+        for (int i = 0; i < eids.size(); ++i) {
+            state.append(eids.get(i)).append(':').append(versions.get(i)).append(',');
+        }
+        state.append(count).append(',').append(next);
+        byte[] bytes = state.toString().getBytes(StandardCharsets.UTF_8);
+        return "\"f" + DigestUtils.md5DigestAsHex(bytes) + "-" + userTag(user) + "\"";
+    }
+
+    /** Whether any of the tags in an If-None-Match header is the given one */
+    static boolean matches(String ifNoneMatch, String etag) {
+        if (ifNoneMatch == null) {
+            return false;
+        }
+        for (String candidate : ifNoneMatch.split(",")) {
+            candidate = candidate.trim();
+            // a weak match is good enough for If-None-Match
+            if (candidate.startsWith("W/")) {
+                candidate = candidate.substring(2);
+            }
+            if (candidate.equals("*") || candidate.equals(etag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String userTag(User user) {
+        if (user.isAnonymous()) {
+            return "a";
+        }
+        byte[] id = user.getId().getBytes(StandardCharsets.UTF_8);
+        return DigestUtils.md5DigestAsHex(id).substring(0, 12);
+    }
+}
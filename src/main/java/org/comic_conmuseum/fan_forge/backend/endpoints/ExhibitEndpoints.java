@@ -2,8 +2,11 @@ package org.comic_conmuseum.fan_forge.backend.endpoints;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.ObjectReader;
+import org.comic_conmuseum.fan_forge.backend.cache.FeedResponseCache;
+import org.comic_conmuseum.fan_forge.backend.cache.SupportedSetCache;
 import org.comic_conmuseum.fan_forge.backend.endpoints.inputs.ArtifactCreation;
 import org.comic_conmuseum.fan_forge.backend.endpoints.inputs.ExhibitCreation;
+import org.comic_conmuseum.fan_forge.backend.endpoints.responses.ErrorResponse;
 import org.comic_conmuseum.fan_forge.backend.endpoints.responses.ExhibitFull;
 import org.comic_conmuseum.fan_forge.backend.endpoints.responses.Feed;
 import org.comic_conmuseum.fan_forge.backend.models.Artifact;
@@ -13,6 +16,9 @@ import org.comic_conmuseum.fan_forge.backend.persistence.*;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.security.core.annotation.AuthenticationPrincipal;
 import org.springframework.web.bind.annotation.*;
@@ -35,29 +41,38 @@ public class ExhibitEndpoints {
     private final SupportQueryBean supports;
     private final ArtifactQueryBean artifacts;
     private final CommentQueryBean comments;
-    private final S3Bean s3;
+    private final ImageUploads uploads;
     private final TransactionWrapper transactions;
+    private final FeedResponseCache feedCache;
+    private final ObjectMapper mapper;
     
     @Autowired
     public ExhibitEndpoints(ExhibitQueryBean exhibitQueryBean, SupportQueryBean supportQueryBean,
-                            ArtifactQueryBean artifacts, CommentQueryBean comments, S3Bean s3,
-                            TransactionWrapper transactionWrapperBean) {
+                            ArtifactQueryBean artifacts, CommentQueryBean comments, ImageUploads uploads,
+                            TransactionWrapper transactionWrapperBean, FeedResponseCache feedCache,
+                            ObjectMapper mapper) {
         this.exhibits = exhibitQueryBean;
         this.supports = supportQueryBean;
         this.artifacts = artifacts;
         this.comments = comments;
-        this.s3 = s3;
+        this.uploads = uploads;
         this.transactions = transactionWrapperBean;
+        this.feedCache = feedCache;
+        this.mapper = mapper;
     }
 
     // TODO separate out into its own class?
     @RequestMapping(value = "/feed/{type}", method = RequestMethod.GET)
-    public ResponseEntity<Feed> getFeed(@PathVariable("type") String feedName,
-                                        @RequestParam(defaultValue = "0") long startIdx,
-                                        @RequestParam(defaultValue = "10") int pageSize,
-                                        // `filters` also includes other stuff, but that'll be filtered out by getFeed
-                                        @RequestParam Map<String, String> filters,
-                                        @AuthenticationPrincipal User user) {
+    public ResponseEntity getFeed(@PathVariable("type") String feedName,
+                                  @RequestParam(defaultValue = "0") long startIdx,
+                                  @RequestParam(required = false) String cursor,
+                                  @RequestParam(defaultValue = "10") int pageSize,
+                                  @RequestParam(defaultValue = "true") boolean includeCount,
+                                  // `filters` also includes other stuff, but that'll be filtered out by getFeed
+                                  @RequestParam Map<String, String> filters,
+                                  @RequestHeader(value = HttpHeaders.IF_NONE_MATCH, required = false)
+                                          String ifNoneMatch,
+                                  @AuthenticationPrincipal User user) throws IOException {
         ExhibitQueryBean.FeedType feed = ExhibitQueryBean.FeedType.parse(feedName);
         if (feed == null) {
             LOG.info("Unknown feed: {}", feedName);
@@ -66,36 +81,115 @@ public class ExhibitEndpoints {
             // to a real endpoint
             return ResponseEntity.notFound().build();
         }
+        FeedCursor after = null;
+        if (cursor != null) {
+            after = FeedCursor.decode(cursor);
+            if (after == null || after.getType() != feed) {
+                LOG.info("Invalid cursor for {} feed: {}", feed, cursor);
+                return ResponseEntity.badRequest().body(new ErrorResponse(
+                        "Invalid cursor -- must be the `next` of an earlier page of the same feed",
+                        "Pass the cursor exactly as it was returned, or leave it out to start over"
+                ));
+            }
+        }
         if (pageSize > ExhibitQueryBean.MAX_PAGE_SIZE) {
             pageSize = ExhibitQueryBean.MAX_PAGE_SIZE;
         }
+        FeedFilter filter = FeedFilter.of(filters);
+        
+        // anonymous pages are the same for everyone, so they can be cached
+        FeedResponseCache.Key cacheKey = null;
+        if (user.isAnonymous() && feedCache.isEnabled()) {
+            cacheKey = new FeedResponseCache.Key(feed, filter, cursor, startIdx, pageSize, includeCount);
+            FeedResponseCache.Page cached = feedCache.get(cacheKey);
+            if (cached != null) {
+                if (ETags.matches(ifNoneMatch, cached.etag)) {
+                    return notModified(cached.etag, user);
+                }
+                return ResponseEntity.ok()
+                        .eTag(cached.etag)
+                        .cacheControl(ETags.cacheControl(user))
+                        .contentType(MediaType.APPLICATION_JSON_UTF8)
+                        .body(cached.json);
+            }
+        }
+        long stamp = feedCache.stamp();
+        
+        if (ifNoneMatch != null) {
+            // check if their copy is still good before doing the work of building a new one
+            String current;
+            try (TransactionWrapper.Transaction tr = transactions.start()) {
+                Long count = includeCount ? exhibits.getCount(filter) : null;
+                ExhibitQueryBean.PageVersions versions =
+                        exhibits.getFeedVersions(feed, after, startIdx, pageSize, filter);
+                tr.commit();
+                current = ETags.forFeedPage(
+                        versions.eids, versions.versions, count,
+                        versions.next == null ? null : versions.next.encode(),
+                        user
+                );
+            }
+            if (ETags.matches(ifNoneMatch, current)) {
+                return notModified(current, user);
+            }
+        }
+        
+        // loaded first, so the stamp it's cached with is from before the transaction's snapshot
+        SupportedSetCache.SupportedSet supported = supports.getSupportedSet(user);
+        Feed result;
         try (TransactionWrapper.Transaction tr = transactions.start()) {
-            long count = exhibits.getCount(filters);
-            // This can definitely be combined into one query if necessary
-            // or even just two (instead of (4*pageSize)+1)
-            List<Exhibit> feedRaw = exhibits.getFeed(feed, startIdx, pageSize, filters);
-            List<Feed.Entry> entries = feedRaw.stream().map(exhibit ->
-                    new Feed.Entry(
-                        exhibit, supports.getSupporterCount(exhibit),
-                        comments.getCommentCount(exhibit),
-                        supports.isSupportingExhibit(user, exhibit)
-                    )
-            ).collect(Collectors.toList());
+            Long count = includeCount ? exhibits.getCount(filter) : null;
+            ExhibitQueryBean.FeedPage page = exhibits.getFeed(feed, after, startIdx, pageSize, filter, supported);
             tr.commit();
-            return ResponseEntity.ok(new Feed(startIdx, pageSize, count, entries));
+            result = new Feed(
+                    startIdx, pageSize, count, page.entries,
+                    page.next == null ? null : page.next.encode()
+            );
         } // no catch because we're just closing the transaction, we want errors to fall through
+        
+        String etag = ETags.forFeedPage(
+                result.exhibits.stream().map(e -> e.id).collect(Collectors.toList()),
+                result.exhibits.stream().map(e -> e.version).collect(Collectors.toList()),
+                result.count, result.next, user
+        );
+        ResponseEntity.BodyBuilder ok = ResponseEntity.ok()
+                .eTag(etag)
+                .cacheControl(ETags.cacheControl(user));
+        if (cacheKey == null) {
+            return ok.body(result);
+        }
+        byte[] json = mapper.writeValueAsBytes(result);
+        feedCache.put(cacheKey, json, etag, result.exhibits.stream().mapToLong(e -> e.id).toArray(), stamp);
+        return ok.contentType(MediaType.APPLICATION_JSON_UTF8).body(json);
+    }
+    
+    private static ResponseEntity notModified(String etag, User user) {
+        return ResponseEntity.status(HttpStatus.NOT_MODIFIED)
+                .eTag(etag)
+                .cacheControl(ETags.cacheControl(user))
+                .build();
     }
 
     @RequestMapping(value = "/exhibit/{id}", method = RequestMethod.GET)
-    public ResponseEntity<ExhibitFull> getExhibit(@PathVariable long id, @AuthenticationPrincipal User user) {
-        Exhibit e = exhibits.get(id);
-        return ResponseEntity.ok(new ExhibitFull(
-                e,
-                supports.getSupporterCount(e),
-                supports.isSupportingExhibit(user, e),
-                artifacts.artifactsOfExhibit(id),
-                comments.getComments(id)
-        ));
+    public ResponseEntity<ExhibitFull> getExhibit(@PathVariable long id,
+                                                  @RequestHeader(value = HttpHeaders.IF_NONE_MATCH, required = false)
+                                                          String ifNoneMatch,
+                                                  @AuthenticationPrincipal User user) {
+        // just the version is enough to tell if their copy is still good
+        if (ifNoneMatch != null) {
+            String current = ETags.forExhibit(id, exhibits.getVersion(id), user);
+            if (ETags.matches(ifNoneMatch, current)) {
+                return ResponseEntity.status(HttpStatus.NOT_MODIFIED)
+                        .eTag(current)
+                        .cacheControl(ETags.cacheControl(user))
+                        .build();
+            }
+        }
+        ExhibitFull full = exhibits.getFull(id, user);
+        return ResponseEntity.ok()
+                .eTag(ETags.forExhibit(id, full.version, user))
+                .cacheControl(ETags.cacheControl(user))
+                .body(full);
     }
 
     // TODO Return created exhibit, not just ID
@@ -108,23 +202,31 @@ public class ExhibitEndpoints {
             return ResponseEntity.badRequest().build();
         }
 
+        // everything's checked before anything's uploaded, and everything's uploaded before the transaction
+        // starts, so it only holds its connection for as long as the writes take
+        List<MultipartFile> files = new ArrayList<>();
+        for (ArtifactCreation a : data.getArtifacts()) {
+            if (a.getImage() == null) {
+                return ResponseEntity.badRequest().build();
+            }
+            MultipartFile file = req.getFile(a.getImage());
+            if (file == null) {
+                return ResponseEntity.badRequest().build();
+            }
+            files.add(file);
+        }
+
         long id;
-        try (TransactionWrapper.Transaction t = transactions.start()) {
-            id = exhibits.create(data.build(user), user);
-            for (ArtifactCreation a : data.getArtifacts()) {
-                Artifact full = a.build(user);
-                long aid = artifacts.create(full, id, user);
-                if (a.getImage() == null) {
-                    return ResponseEntity.badRequest().build();
-                }
-                MultipartFile file = req.getFile(a.getImage());
-                if (file == null) {
-                    return ResponseEntity.badRequest().build();
+        try (ImageUploads.Staged images = uploads.stage(files)) {
+            List<Long> imageIds = new ArrayList<>();
+            try (TransactionWrapper.Transaction t = transactions.start()) {
+                id = exhibits.create(data.build(user), user);
+                for (ArtifactCreation a : data.getArtifacts()) {
+                    imageIds.add(artifacts.create(a.build(user), id, user));
                 }
-                s3.putImage(aid, file);
+                t.commit();
             }
-            
-            t.commit();
+            images.promote(imageIds);
         }
         return ResponseEntity.ok(id);
     }
@@ -138,42 +240,52 @@ public class ExhibitEndpoints {
         // we don't care if things aren't specified, so don't validate that
         Exhibit ex = data.build(user);
         ex.setId(id);
-        try (TransactionWrapper.Transaction t = transactions.start()) {
-            exhibits.update(ex, user);
-            // the rest won't be hit if the user isn't the author, because `update` throws an exception
-            List<Long> mentioned = new ArrayList<>();
-            for (ArtifactCreation a : data.getArtifacts()) {
-                if (a.getId() != null) {
-                    // if ID is provided, update the existing one
-                    mentioned.add(a.getId());
-                    artifacts.update(a.build(user));
-                    // if no image provided, just don't update it!
-                    if (a.getImage() != null) {
-                        MultipartFile file = req.getFile(a.getImage());
-                        if (file == null) {
-                            return ResponseEntity.badRequest().build();
-                        }
-                        s3.putImage(a.getId(), file);
+        // same as in createExhibit, the images are all checked and uploaded before the transaction starts
+        List<MultipartFile> files = new ArrayList<>();
+        for (ArtifactCreation a : data.getArtifacts()) {
+            if (a.getImage() == null) {
+                // if no image provided for an existing one, just don't update it! but a new one needs one --
+                // you can't have an artifact without one.
+                if (a.getId() == null) {
+                    return ResponseEntity.badRequest().build();
+                }
+                continue;
+            }
+            MultipartFile file = req.getFile(a.getImage());
+            if (file == null) {
+                return ResponseEntity.badRequest().build();
+            }
+            files.add(file);
+        }
+
+        try (ImageUploads.Staged images = uploads.stage(files)) {
+            // in the same order as the files
+            List<Long> imageIds = new ArrayList<>();
+            try (TransactionWrapper.Transaction t = transactions.start()) {
+                exhibits.update(ex, user);
+                // the rest won't be hit if the user isn't the author, because `update` throws an exception
+                List<Long> mentioned = new ArrayList<>();
+                for (ArtifactCreation a : data.getArtifacts()) {
+                    long aid;
+                    if (a.getId() != null) {
+                        // if ID is provided, update the existing one
+                        aid = a.getId();
+                        artifacts.update(a.build(user));
+                    } else {
+                        // if no ID provided, create a new one
+                        aid = artifacts.create(a.build(user), id, user);
                     }
-                } else {
-                    // if no ID provided, create a new one
-                    long aid = artifacts.create(a.build(user), id, user);
                     mentioned.add(aid);
-                    // this time an image is required -- you can't have an artifact without one.
-                    if (a.getImage() == null) {
-                        return ResponseEntity.badRequest().build();
-                    }
-                    MultipartFile file = req.getFile(a.getImage());
-                    if (file == null) {
-                        return ResponseEntity.badRequest().build();
+                    if (a.getImage() != null) {
+                        imageIds.add(aid);
                     }
-                    s3.putImage(a.getId(), file);
                 }
+                artifacts.deleteAllFromExcept(ex.getId(), mentioned);
+                t.commit();
             }
-            artifacts.deleteAllFromExcept(ex.getId(), mentioned);
-            t.commit();
+            images.promote(imageIds);
         }
-        return getExhibit(id, user);
+        return getExhibit(id, null, user);
     }
 
     @RequestMapping(value = "/exhibit/{id}", method = RequestMethod.DELETE)
@@ -182,8 +294,23 @@ public class ExhibitEndpoints {
         return ResponseEntity.noContent().build();
     }
 
+    @RequestMapping(value = "/exhibits", method = RequestMethod.GET)
+    public ResponseEntity getExhibits(@RequestParam List<Long> ids, @AuthenticationPrincipal User user) {
+        if (ids.size() > ExhibitQueryBean.MAX_PAGE_SIZE) {
+            LOG.info("Too many exhibits requested: {}", ids.size());
+            return ResponseEntity.badRequest().body(new ErrorResponse(
+                    "Too many IDs -- at most " + ExhibitQueryBean.MAX_PAGE_SIZE + " can be requested at once",
+                    "Split the IDs across several requests"
+            ));
+        }
+        return ResponseEntity.ok(exhibits.getEntries(ids, supports.getSupportedSet(user)));
+    }
+
     @RequestMapping(value = "/tags", method = RequestMethod.GET)
-    public ResponseEntity getAllTags() {
+    public ResponseEntity getAllTags(@RequestParam(defaultValue = "false") boolean counts) {
+        if (counts) {
+            return ResponseEntity.ok(exhibits.getTagCounts());
+        }
         List<String> results = exhibits.getAllTags();
         return ResponseEntity.ok(results);
     }
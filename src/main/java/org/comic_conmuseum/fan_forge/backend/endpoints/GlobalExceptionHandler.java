@@ -3,6 +3,7 @@ package org.comic_conmuseum.fan_forge.backend.endpoints;
 import com.amazonaws.services.s3.model.AmazonS3Exception;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import org.comic_conmuseum.fan_forge.backend.endpoints.responses.ErrorResponse;
+import org.comic_conmuseum.fan_forge.backend.persistence.InvalidImageException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.core.annotation.AnnotationUtils;
@@ -111,6 +112,15 @@ public class GlobalExceptionHandler {
         ), HttpStatus.PAYLOAD_TOO_LARGE);
     }
     
+    @ExceptionHandler(InvalidImageException.class)
+    public ResponseEntity<ErrorResponse> invalidImage(HttpServletRequest req, InvalidImageException e) {
+        LOG.info("Rejected image uploaded to {}: {}", req.getRequestURI(), e.getMessage());
+        return ResponseEntity.badRequest().body(new ErrorResponse(
+                e.getMessage(),
+                "Upload a valid image of the type given in its Content-Type; see the docs for the limits"
+        ));
+    }
+    
     @ExceptionHandler(AmazonS3Exception.class)
     public ResponseEntity<ErrorResponse> s3Exception(HttpServletRequest req, AmazonS3Exception e) {
         LOG.info("S3 exception: {}", e.getMessage());
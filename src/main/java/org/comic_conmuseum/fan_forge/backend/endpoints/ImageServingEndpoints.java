@@ -1,38 +1,294 @@
 package org.comic_conmuseum.fan_forge.backend.endpoints;
 
+import com.amazonaws.services.s3.model.ObjectMetadata;
 import com.amazonaws.services.s3.model.S3Object;
+import org.comic_conmuseum.fan_forge.backend.cache.ImageDiskCache;
+import org.comic_conmuseum.fan_forge.backend.persistence.ImageRenditions;
 import org.comic_conmuseum.fan_forge.backend.persistence.S3Bean;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.core.io.InputStreamResource;
-import org.springframework.core.io.Resource;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.http.HttpHeaders;
-import org.springframework.http.HttpStatus;
-import org.springframework.http.ResponseEntity;
+import org.springframework.http.HttpRange;
+import org.springframework.util.StreamUtils;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.context.request.ServletWebRequest;
 
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.List;
+
+/**
+ * Serves images, with ETags, last-modified times, and byte ranges, so
+ * browsers and CDNs can hang on to them. Images practically never change
+ * once they're uploaded, so they're cached for a long time.
+ */
 @RestController
 public class ImageServingEndpoints {
     private static final Logger LOG = LoggerFactory.getLogger("endpoints.images");
-    
+
+    // Tomcat's way of letting servlets hand a file off to sendfile(2)
+    private static final String SENDFILE_SUPPORT = "org.apache.tomcat.sendfile.support";
+    private static final String SENDFILE_FILENAME = "org.apache.tomcat.sendfile.filename";
+    private static final String SENDFILE_START = "org.apache.tomcat.sendfile.start";
+    private static final String SENDFILE_END = "org.apache.tomcat.sendfile.end";
+
+    /** A single byte range, inclusive on both ends */
+    private static class Range {
+        final long start;
+        final long end;
+
+        Range(long start, long end) {
+            this.start = start;
+            this.end = end;
+        }
+
+        long length() {
+            return end - start + 1;
+        }
+    }
+
+    /** Thrown when the requested range doesn't overlap the image at all */
+    private static class UnsatisfiableRangeException extends Exception {
+        private static final long serialVersionUID = 1L;
+    }
+
+    /** Where an image comes from in S3, when it's not in the disk cache */
+    private interface Source {
+        String key();
+        S3Object get();
+        ObjectMetadata getMetadata();
+        /** Only called after {@link #getMetadata}, so it can assume the image exists */
+        S3Object get(long start, long end);
+    }
+
+    private Source original(long id) {
+        String key = S3Bean.imageKey(id);
+        return new Source() {
+            public String key() { return key; }
+            public S3Object get() { return s3.getImage(key); }
+            public ObjectMetadata getMetadata() { return s3.getImageMetadata(key); }
+            public S3Object get(long start, long end) { return s3.getImage(key, start, end); }
+        };
+    }
+
+    private Source rendition(long id, int width) {
+        String key = S3Bean.renditionKey(id, width);
+        return new Source() {
+            public String key() { return key; }
+            public S3Object get() { return renditions.get(id, width); }
+            public ObjectMetadata getMetadata() { return renditions.getMetadata(id, width); }
+            public S3Object get(long start, long end) { return s3.getImage(key, start, end); }
+        };
+    }
+
     private final S3Bean s3;
-    
+    private final ImageDiskCache cache;
+    private final ImageRenditions renditions;
+    private final String cacheControl;
+
     @Autowired
-    public ImageServingEndpoints(S3Bean s3) {
+    public ImageServingEndpoints(S3Bean s3, ImageDiskCache cache, ImageRenditions renditions,
+                                 @Value("${ff.images.max-age-seconds}") long maxAgeSeconds) {
         this.s3 = s3;
+        this.cache = cache;
+        this.renditions = renditions;
+        this.cacheControl = "public, max-age=" + maxAgeSeconds;
     }
-    
+
+    /**
+     * With {@code w}, sends the smallest rendition at least that wide
+     * instead of the original, if there is one.
+     */
     @RequestMapping(value = "/image/{id}", method = RequestMethod.GET)
-    public ResponseEntity<Resource> getImage(@PathVariable long id) {
-        LOG.info("Getting image {}", id);
-        S3Object obj = s3.getImage(id);
-        HttpHeaders headers = new HttpHeaders();
-        headers.set("Content-Type", obj.getObjectMetadata().getContentType());
-        InputStreamResource res = new InputStreamResource(obj.getObjectContent());
-        return new ResponseEntity<>(res, headers, HttpStatus.OK);
+    public void getImage(@PathVariable long id, @RequestParam(required = false) Integer w,
+                         HttpServletRequest req, HttpServletResponse res) throws IOException {
+        LOG.info("Getting image {} for width {}", id, w);
+        int width = w == null ? 0 : ImageRenditions.widthFor(w);
+        if (width == 0) {
+            serve(original(id), req, res);
+            return;
+        }
+        try {
+            serve(rendition(id, width), req, res);
+        } catch (ImageRenditions.UnavailableException e) {
+            LOG.warn("Couldn't make renditions of image {}; sending the original", id, e);
+            serve(original(id), req, res);
+        }
+    }
+
+    private void serve(Source source, HttpServletRequest req, HttpServletResponse res) throws IOException {
+        ServletWebRequest web = new ServletWebRequest(req, res);
+        res.setHeader(HttpHeaders.ACCEPT_RANGES, "bytes");
+        boolean conditional = req.getHeader(HttpHeaders.IF_NONE_MATCH) != null ||
+                req.getHeader(HttpHeaders.IF_MODIFIED_SINCE) != null;
+        boolean ranged = req.getHeader(HttpHeaders.RANGE) != null;
+
+        if (cache.isEnabled()) {
+            ImageDiskCache.Image image = cache.get(source.key());
+            if (image == null) {
+                if (conditional) {
+                    // the client probably has it already, so check before downloading the whole thing
+                    ObjectMetadata meta = source.getMetadata();
+                    if (web.checkNotModified(meta.getETag(), lastModifiedOf(meta))) {
+                        setCacheable(res);
+                        return;
+                    }
+                }
+                image = cache.load(source.key(), source::get);
+            }
+            if (web.checkNotModified(image.etag, image.lastModified)) {
+                setCacheable(res);
+                return;
+            }
+            res.setContentType(image.contentType);
+            Range range;
+            try {
+                range = rangeOf(req, image.length, image.etag);
+            } catch (UnsatisfiableRangeException e) {
+                rejectRange(res, image.length);
+                return;
+            }
+            setCacheable(res);
+            sendFile(req, res, image, range == null ? new Range(0, image.length - 1) : range);
+            return;
+        }
+
+        // without the disk cache, everything has to come from S3 every time
+        if (conditional || ranged) {
+            ObjectMetadata meta = source.getMetadata();
+            if (web.checkNotModified(meta.getETag(), lastModifiedOf(meta))) {
+                setCacheable(res);
+                return;
+            }
+            Range range;
+            try {
+                range = rangeOf(req, meta.getContentLength(), meta.getETag());
+            } catch (UnsatisfiableRangeException e) {
+                rejectRange(res, meta.getContentLength());
+                return;
+            }
+            if (range != null) {
+                try (S3Object obj = source.get(range.start, range.end)) {
+                    startPartial(res, range, meta.getContentLength());
+                    setCacheable(res);
+                    send(req, res, obj);
+                }
+                return;
+            }
+        }
+        try (S3Object obj = source.get()) {
+            ObjectMetadata meta = obj.getObjectMetadata();
+            web.checkNotModified(meta.getETag(), lastModifiedOf(meta)); // just for the headers
+            res.setContentLengthLong(meta.getContentLength());
+            setCacheable(res);
+            send(req, res, obj);
+        }
+    }
+
+    /**
+     * Only for 200s, 206s and 304s. Anything else, like a 404 for an image
+     * that hasn't been promoted yet, mustn't be cached.
+     */
+    private void setCacheable(HttpServletResponse res) {
+        res.setHeader(HttpHeaders.CACHE_CONTROL, cacheControl);
+    }
+
+    private static long lastModifiedOf(ObjectMetadata meta) {
+        return meta.getLastModified() == null ? -1 : meta.getLastModified().getTime();
+    }
+
+    /**
+     * The range the client asked for, or null if it should get the whole
+     * thing. Only single ranges are supported; anything else gets the whole
+     * image, which the spec allows. The same goes for an If-Range that
+     * doesn't match.
+     */
+    private static Range rangeOf(HttpServletRequest req, long length, String etag)
+            throws UnsatisfiableRangeException {
+        String header = req.getHeader(HttpHeaders.RANGE);
+        if (header == null) {
+            return null;
+        }
+        String ifRange = req.getHeader(HttpHeaders.IF_RANGE);
+        if (ifRange != null && (etag == null || !ifRange.equals("\"" + etag + "\""))) {
+            return null;
+        }
+        List<HttpRange> ranges;
+        try {
+            ranges = HttpRange.parseRanges(header);
+        } catch (IllegalArgumentException e) {
+            LOG.info("Ignoring bad Range header {}", header);
+            return null;
+        }
+        if (ranges.size() != 1) {
+            return null;
+        }
+        try {
+            return new Range(ranges.get(0).getRangeStart(length), ranges.get(0).getRangeEnd(length));
+        } catch (IllegalArgumentException e) {
+            throw new UnsatisfiableRangeException();
+        }
+    }
+
+    private static void rejectRange(HttpServletResponse res, long length) {
+        res.setStatus(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+        res.setHeader(HttpHeaders.CONTENT_RANGE, "bytes */" + length);
+    }
+
+    private static void startPartial(HttpServletResponse res, Range range, long length) {
+        res.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+        res.setHeader(HttpHeaders.CONTENT_RANGE, "bytes " + range.start + "-" + range.end + "/" + length);
+        res.setContentLengthLong(range.length());
+    }
+
+    private static boolean isHead(HttpServletRequest req) {
+        return "HEAD".equals(req.getMethod());
+    }
+
+    private static void send(HttpServletRequest req, HttpServletResponse res, S3Object obj) throws IOException {
+        res.setContentType(obj.getObjectMetadata().getContentType());
+        if (isHead(req)) {
+            return;
+        }
+        try (InputStream in = obj.getObjectContent()) {
+            StreamUtils.copy(in, res.getOutputStream());
+        }
+    }
+
+    private static void sendFile(HttpServletRequest req, HttpServletResponse res, ImageDiskCache.Image image,
+                                 Range range) throws IOException {
+        if (range.length() == image.length) {
+            res.setContentLengthLong(image.length);
+        } else {
+            startPartial(res, range, image.length);
+        }
+        if (isHead(req) || range.length() == 0) {
+            return;
+        }
+        if (Boolean.TRUE.equals(req.getAttribute(SENDFILE_SUPPORT))) {
+            // the bytes go straight from the page cache to the socket, never through the JVM
+            req.setAttribute(SENDFILE_FILENAME, image.file.toAbsolutePath().toString());
+            req.setAttribute(SENDFILE_START, range.start);
+            req.setAttribute(SENDFILE_END, range.end + 1);
+        } else {
+            try (FileChannel file = FileChannel.open(image.file)) {
+                WritableByteChannel out = Channels.newChannel(res.getOutputStream());
+                long sent = 0;
+                while (sent < range.length()) {
+                    sent += file.transferTo(range.start + sent, range.length() - sent, out);
+                }
+            }
+        }
     }
 }
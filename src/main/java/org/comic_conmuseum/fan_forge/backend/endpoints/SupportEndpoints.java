@@ -1,67 +1,100 @@
 package org.comic_conmuseum.fan_forge.backend.endpoints;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
 import org.comic_conmuseum.fan_forge.backend.endpoints.inputs.SurveyCreation;
+import org.comic_conmuseum.fan_forge.backend.endpoints.inputs.SurveyImportRow;
 import org.comic_conmuseum.fan_forge.backend.endpoints.responses.ErrorResponse;
+import org.comic_conmuseum.fan_forge.backend.endpoints.responses.SurveyImportReport;
+import org.comic_conmuseum.fan_forge.backend.endpoints.responses.SurveyRollup;
 import org.comic_conmuseum.fan_forge.backend.endpoints.responses.SurveyView;
 import org.comic_conmuseum.fan_forge.backend.models.Survey;
 import org.comic_conmuseum.fan_forge.backend.endpoints.responses.SurveyAggregate;
 import org.comic_conmuseum.fan_forge.backend.persistence.SupportQueryBean;
+import org.comic_conmuseum.fan_forge.backend.persistence.SurveyRollupQueryBean;
+import org.comic_conmuseum.fan_forge.backend.persistence.TransactionWrapper;
 import org.comic_conmuseum.fan_forge.backend.models.User;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.format.annotation.DateTimeFormat;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.ResponseEntity;
 import org.springframework.security.core.annotation.AuthenticationPrincipal;
 import org.springframework.web.bind.annotation.*;
 
-import java.util.List;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.util.*;
+import java.util.stream.Collectors;
 
 @RestController
 public class SupportEndpoints {
     private static final Logger LOG = LoggerFactory.getLogger("endpoints.support.exhibit");
     
     private final SupportQueryBean supports;
+    private final TransactionWrapper transactions;
+    private final SurveyRollupQueryBean rollups;
+    private final ObjectMapper json;
     
-    public SupportEndpoints(SupportQueryBean supportQueryBean) {
+    public SupportEndpoints(SupportQueryBean supportQueryBean, SurveyRollupQueryBean rollups,
+                            TransactionWrapper transactions, ObjectMapper json) {
         this.supports = supportQueryBean;
+        this.rollups = rollups;
+        this.transactions = transactions;
+        this.json = json;
     }
     
     @RequestMapping(value = "/support/exhibit/{id}", method = RequestMethod.PUT)
     public ResponseEntity supportExhibit(@PathVariable int id, @RequestBody SurveyCreation data,
                                          @AuthenticationPrincipal User user) {
         LOG.info("Supporting {} as {}", id, user);
+        ErrorResponse invalid = validate(data);
+        if (invalid != null) {
+            return ResponseEntity.badRequest().body(invalid);
+        }
+        boolean newSupporter = supports.createSupport(id, data.build(user));
+        LOG.info("New supporter? {}", newSupporter);
+        if (newSupporter) {
+            return ResponseEntity.noContent().build();
+        } else {
+            return ResponseEntity.badRequest().build();
+        }
+    }
+    
+    /** Checks a survey's fields, returning what's wrong with it or null if it's fine */
+    private static ErrorResponse validate(SurveyCreation data) {
         if (data.getVisits() == null || data.getPopulations() == null || data.getRating() == null) {
-            return ResponseEntity.badRequest().body(new ErrorResponse(
+            return new ErrorResponse(
                     "Must provide all fields -- visit, populations, and rating",
                     "Provide all the fields"
-            ));
+            );
         }
         for (Survey.Population pop : Survey.Population.values()) {
             if (!data.getPopulations().containsKey(pop.display())) {
-                return ResponseEntity.badRequest().body(new ErrorResponse(
+                return new ErrorResponse(
                         "Must provide all populations -- see documentation",
                         "Provide all of the populations"
-                ));
+                );
             }
         }
         if (data.getRating() < 0 || 10 < data.getRating()) {
-            return ResponseEntity.badRequest().body(new ErrorResponse(
+            return new ErrorResponse(
                     "Invalid rating -- must be in [0,10]",
                     "Pass a rating in the valid range"
-            ));
+            );
         }
         if (data.getVisits() < 1 || 10 < data.getVisits()) {
-            return ResponseEntity.badRequest().body(new ErrorResponse(
+            return new ErrorResponse(
                     "Invalid visits -- must be in [1,10]",
                     "Pass a visits in the valid range"
-            ));
-        }
-        boolean newSupporter = supports.createSupport(id, data.build(user));
-        LOG.info("New supporter? {}", newSupporter);
-        if (newSupporter) {
-            return ResponseEntity.noContent().build();
-        } else {
-            return ResponseEntity.badRequest().build();
+            );
         }
+        return null;
     }
     
     @RequestMapping(value = "/support/exhibit/{id}", method = RequestMethod.GET)
@@ -82,12 +115,134 @@ public class SupportEndpoints {
     }
 
     @RequestMapping(value = "/admin/supports/{eid}", method = RequestMethod.GET)
-    public ResponseEntity<List<Survey>> getSurveys(@PathVariable long eid) {
-        return ResponseEntity.ok(supports.getSurveys(eid));
+    public ResponseEntity<List<SurveyView>> getSurveys(@PathVariable long eid) {
+        return ResponseEntity.ok(supports.getSurveys(eid).stream()
+                .map(survey -> new SurveyView(survey, true))
+                .collect(Collectors.toList()));
+    }
+    
+    /**
+     * Streams surveys out as they're read, instead of building a list of
+     * them first, so it can handle exports of any size.
+     */
+    @RequestMapping(value = "/admin/supports/export", method = RequestMethod.GET)
+    public void exportSurveys(@RequestParam(defaultValue = "csv") String format,
+                              @RequestParam(required = false) Long exhibit,
+                              @RequestParam(required = false) String tag,
+                              HttpServletResponse response) throws IOException {
+        SurveyExportWriter.Format parsed = SurveyExportWriter.Format.parse(format);
+        if (parsed == null) {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Unknown format: must be csv or ndjson");
+            return;
+        }
+        response.setContentType(parsed.contentType);
+        response.setCharacterEncoding("UTF-8");
+        String name = "surveys" + (exhibit == null ? "" : "-" + exhibit) + "." + parsed.name();
+        response.setHeader(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=\"" + name + "\"");
+        // no Content-Length, so it's sent chunked
+        try (TransactionWrapper.Transaction t = transactions.start();
+             SurveyExportWriter writer = new SurveyExportWriter(parsed, response.getOutputStream())) {
+            supports.exportSurveys(exhibit, tag, writer);
+            t.commit();
+        }
+    }
+    
+    /**
+     * Imports surveys in bulk, one JSON object per line. Lines are checked
+     * and streamed into the DB as they're read, then merged all together,
+     * so this is much faster than supporting one at a time. Bad lines are
+     * reported and skipped without affecting the rest.
+     */
+    @RequestMapping(value = "/admin/supports/import", method = RequestMethod.POST)
+    public ResponseEntity<SurveyImportReport> importSurveys(HttpServletRequest request)
+            throws IOException, SQLException {
+        SurveyImportReport report = new SurveyImportReport();
+        try (TransactionWrapper.Transaction t = transactions.start();
+             SupportQueryBean.SurveyImport in = supports.startImport();
+             BufferedReader body = new BufferedReader(
+                     new InputStreamReader(request.getInputStream(), StandardCharsets.UTF_8))) {
+            Map<Integer, String> invalid = new HashMap<>();
+            int line = 0;
+            String text;
+            while ((text = body.readLine()) != null) {
+                ++line;
+                if (text.trim().isEmpty()) {
+                    continue;
+                }
+                String error = addImportLine(in, line, text);
+                if (error != null) {
+                    invalid.put(line, error);
+                }
+            }
+            SortedMap<Integer, SupportQueryBean.ImportStatus> statuses = in.finish();
+            t.commit();
+            invalid.keySet().forEach(l -> statuses.put(l, null));
+            statuses.forEach((l, status) -> report.add(new SurveyImportReport.Row(
+                    l,
+                    status == null ? "invalid" : status.name().toLowerCase().replace('_', '-'),
+                    invalid.get(l)
+            )));
+        }
+        LOG.info("Imported surveys: {} created, {} updated, {} rejected",
+                report.created, report.updated, report.rejected);
+        return ResponseEntity.ok(report);
+    }
+    
+    /** Parses, checks, and adds one line of an import, returning what's wrong with it or null if it's fine */
+    private String addImportLine(SupportQueryBean.SurveyImport in, int line, String text) throws SQLException {
+        SurveyImportRow row;
+        try {
+            row = json.readValue(text, SurveyImportRow.class);
+        } catch (IOException e) {
+            return "Not a valid survey: " + e.getMessage();
+        }
+        if (row.getExhibit() == null || row.getSupporter() == null || row.getSupporter().isEmpty()) {
+            return "Must provide the exhibit and supporter";
+        }
+        ErrorResponse invalid = validate(row);
+        if (invalid != null) {
+            return invalid.getError();
+        }
+        in.add(line, row.getExhibit(), row.build());
+        return null;
     }
     
     @RequestMapping(value = "/admin/survey-data/{eid}", method = RequestMethod.GET)
     public ResponseEntity<SurveyAggregate> getSurveyAggregate(@PathVariable long eid) {
         return ResponseEntity.ok(supports.getAggregateData(eid));
     }
+    
+    @RequestMapping(value = "/admin/survey-data", method = RequestMethod.GET)
+    public ResponseEntity<Map<Long, SurveyAggregate>> getSurveyAggregates(@RequestParam List<Long> ids) {
+        return ResponseEntity.ok(supports.getAggregateData(ids));
+    }
+    
+    /**
+     * Survey aggregates across exhibits, from the rollups rather than the
+     * supports themselves, so they can be a minute or so behind.
+     */
+    @RequestMapping(value = "/admin/survey-analytics", method = RequestMethod.GET)
+    public ResponseEntity getSurveyAnalytics(
+            @RequestParam(defaultValue = "all") String group,
+            @RequestParam(defaultValue = "none") String bucket,
+            @RequestParam(required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE) LocalDate from,
+            @RequestParam(required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE) LocalDate to) {
+        SurveyRollupQueryBean.Grouping grouping;
+        try {
+            grouping = SurveyRollupQueryBean.Grouping.valueOf(group.toUpperCase());
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest().body(new ErrorResponse(
+                    "Unknown group: " + group,
+                    "Group by all, tag, or author"
+            ));
+        }
+        if (!"none".equals(bucket) && !"day".equals(bucket)) {
+            return ResponseEntity.badRequest().body(new ErrorResponse(
+                    "Unknown bucket: " + bucket,
+                    "Bucket by none or day"
+            ));
+        }
+        List<SurveyRollup> result = rollups.getRollups(grouping, "day".equals(bucket), from, to);
+        return ResponseEntity.ok(result);
+    }
 }
@@ -0,0 +1,199 @@
+package org.comic_conmuseum.fan_forge.backend.endpoints;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import org.springframework.jdbc.core.RowCallbackHandler;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.sql.Types;
+
+/**
+ * Writes rows straight from a ResultSet to a stream, as CSV or NDJSON,
+ * without building any objects for them. Column names and types come from
+ * the ResultSet, so it doesn't need to know what's being exported.
+ */
+class SurveyExportWriter implements RowCallbackHandler, Closeable {
+    public enum Format {
+        csv("text/csv"),
+        ndjson("application/x-ndjson");
+
+        public final String contentType;
+
+        Format(String contentType) {
+            this.contentType = contentType;
+        }
+
+        public static Format parse(String name) {
+            try {
+                return Format.valueOf(name.toLowerCase());
+            } catch (IllegalArgumentException e) {
+                return null;
+            }
+        }
+    }
+
+    private static final JsonFactory JSON = new JsonFactory()
+            .disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+
+    private final Format format;
+    private final Writer out;
+    private final JsonGenerator json;
+    private String[] names;
+    private int[] types;
+
+    SurveyExportWriter(Format format, OutputStream out) throws IOException {
+        this.format = format;
+        this.out = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8), 64 * 1024);
+        // no separator, since each row ends with its own newline
+        this.json = format == Format.ndjson ? JSON.createGenerator(this.out).setRootValueSeparator(null) : null;
+    }
+
+    @Override
+    public void processRow(ResultSet rs) throws SQLException {
+        try {
+            if (names == null) {
+                readColumns(rs.getMetaData());
+                if (format == Format.csv) {
+                    writeCsvHeader();
+                }
+            }
+            if (format == Format.csv) {
+                writeCsvRow(rs);
+            } else {
+                writeJsonRow(rs);
+            }
+        } catch (IOException e) {
+            // most likely the client went away; nothing to do but stop
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void readColumns(ResultSetMetaData meta) throws SQLException {
+        names = new String[meta.getColumnCount()];
+        types = new int[names.length];
+        for (int i = 0; i < names.length; ++i) {
+            names[i] = meta.getColumnLabel(i + 1);
+            types[i] = meta.getColumnType(i + 1);
+        }
+    }
+
+    private void writeCsvHeader() throws IOException {
+        for (int i = 0; i < names.length; ++i) {
+            if (i > 0) {
+                out.write(',');
+            }
+            writeCsvString(names[i]);
+        }
+        out.write("\r\n");
+    }
+
+    private void writeCsvRow(ResultSet rs) throws SQLException, IOException {
+        for (int i = 0; i < names.length; ++i) {
+            if (i > 0) {
+                out.write(',');
+            }
+            int col = i + 1;
+            switch (types[i]) {
+                case Types.INTEGER:
+                case Types.BIGINT:
+                case Types.SMALLINT:
+                    long number = rs.getLong(col);
+                    if (!rs.wasNull()) {
+                        out.write(Long.toString(number));
+                    }
+                    break;
+                case Types.BIT:
+                case Types.BOOLEAN:
+                    boolean bool = rs.getBoolean(col);
+                    if (!rs.wasNull()) {
+                        out.write(bool ? "true" : "false");
+                    }
+                    break;
+                case Types.TIMESTAMP:
+                case Types.TIMESTAMP_WITH_TIMEZONE:
+                    Timestamp time = rs.getTimestamp(col);
+                    if (time != null) {
+                        out.write(time.toInstant().toString());
+                    }
+                    break;
+                default:
+                    String str = rs.getString(col);
+                    if (str != null) {
+                        writeCsvString(str);
+                    }
+            }
+        }
+        out.write("\r\n");
+    }
+
+    /** Quotes the string if it has to be, per RFC 4180 */
+    private void writeCsvString(String str) throws IOException {
+        boolean quote = false;
+        for (int i = 0; i < str.length() && !quote; ++i) {
+            char c = str.charAt(i);
+            quote = c == ',' || c == '"' || c == '\n' || c == '\r';
+        }
+        if (!quote) {
+            out.write(str);
+            return;
+        }
+        out.write('"');
+        out.write(str.replace("\"", "\"\""));
+        out.write('"');
+    }
+
+    private void writeJsonRow(ResultSet rs) throws SQLException, IOException {
+        json.writeStartObject();
+        for (int i = 0; i < names.length; ++i) {
+            int col = i + 1;
+            json.writeFieldName(names[i]);
+            switch (types[i]) {
+                case Types.INTEGER:
+                case Types.BIGINT:
+                case Types.SMALLINT:
+                    long number = rs.getLong(col);
+                    if (rs.wasNull()) {
+                        json.writeNull();
+                    } else {
+                        json.writeNumber(number);
+                    }
+                    break;
+                case Types.BIT:
+                case Types.BOOLEAN:
+                    boolean bool = rs.getBoolean(col);
+                    if (rs.wasNull()) {
+                        json.writeNull();
+                    } else {
+                        json.writeBoolean(bool);
+                    }
+                    break;
+                case Types.TIMESTAMP:
+                case Types.TIMESTAMP_WITH_TIMEZONE:
+                    Timestamp time = rs.getTimestamp(col);
+                    if (time == null) {
+                        json.writeNull();
+                    } else {
+                        json.writeString(time.toInstant().toString());
+                    }
+                    break;
+                default:
+                    json.writeString(rs.getString(col));
+            }
+        }
+        json.writeEndObject();
+        json.writeRaw('\n');
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (json != null) {
+            json.close();
+        }
+        out.flush();
+    }
+}
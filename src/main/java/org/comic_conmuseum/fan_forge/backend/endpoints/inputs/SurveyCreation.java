@@ -11,7 +11,7 @@ public class SurveyCreation {
     private Integer rating;
 
     public Survey build(User by) {
-        return new Survey(visits, populations, rating, by.getId());
+        return new Survey(visits, Survey.Population.fromFlags(populations), rating, by.getId());
     }
     
     public Integer getVisits() { return visits; }
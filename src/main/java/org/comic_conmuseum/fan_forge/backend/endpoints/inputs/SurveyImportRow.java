@@ -0,0 +1,19 @@
+package org.comic_conmuseum.fan_forge.backend.endpoints.inputs;
+
+import org.comic_conmuseum.fan_forge.backend.models.Survey;
+
+/** One line of a bulk survey import: a survey, plus who it's from and what it's on */
+public class SurveyImportRow extends SurveyCreation {
+    private Long exhibit;
+    private String supporter;
+
+    public Survey build() {
+        return new Survey(getVisits(), Survey.Population.fromFlags(getPopulations()), getRating(), supporter);
+    }
+
+    public Long getExhibit() { return exhibit; }
+    public String getSupporter() { return supporter; }
+
+    public void setExhibit(Long exhibit) { this.exhibit = exhibit; }
+    public void setSupporter(String supporter) { this.supporter = supporter; }
+}
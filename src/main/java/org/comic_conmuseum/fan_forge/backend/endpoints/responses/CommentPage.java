@@ -0,0 +1,14 @@
+package org.comic_conmuseum.fan_forge.backend.endpoints.responses;
+
+import java.util.List;
+
+public class CommentPage {
+    public final List<CommentThread> threads;
+    /** The cursor for the next page, or null if this is the last one */
+    public final String next;
+
+    public CommentPage(List<CommentThread> threads, String next) {
+        this.threads = threads;
+        this.next = next;
+    }
+}
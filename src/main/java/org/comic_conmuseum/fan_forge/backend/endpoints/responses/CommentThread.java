@@ -0,0 +1,18 @@
+package org.comic_conmuseum.fan_forge.backend.endpoints.responses;
+
+import org.comic_conmuseum.fan_forge.backend.models.Comment;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/** A comment along with (some of) the replies under it */
+public class CommentThread extends CommentView {
+    /** How many direct replies there are, which can be more than there are in {@link #replies} */
+    public final long replyCount;
+    public final List<CommentThread> replies = new ArrayList<>();
+
+    public CommentThread(Comment from, long replyCount) {
+        super(from);
+        this.replyCount = replyCount;
+    }
+}
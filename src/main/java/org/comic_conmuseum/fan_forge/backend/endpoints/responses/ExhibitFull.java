@@ -2,7 +2,6 @@ package org.comic_conmuseum.fan_forge.backend.endpoints.responses;
 
 import com.fasterxml.jackson.annotation.JsonIgnore;
 import org.comic_conmuseum.fan_forge.backend.models.Artifact;
-import org.comic_conmuseum.fan_forge.backend.models.Comment;
 import org.comic_conmuseum.fan_forge.backend.models.Exhibit;
 
 import java.time.Instant;
@@ -28,18 +27,37 @@ public class ExhibitFull extends Feed.Entry {
     public final Instant created;
     public final String[] tags;
     public final List<Image> artifacts;
-    public final List<CommentView> comments;
+    /** The first page of comment threads */
+    public final List<CommentThread> comments;
+    /** The cursor for the next page of comment threads, or null if there's only one */
+    public final String commentsNext;
 
     // hide the parent's cover
     @SuppressWarnings("unused") @JsonIgnore public final Object cover = null;
     
-    public ExhibitFull(Exhibit of, long supporters, Boolean supported, List<Artifact> artifacts,
-                       List<Comment> comments) {
-        super(of, supporters, 0, supported);
+    public ExhibitFull(Exhibit of, long supporters, long commentCount, Boolean supported, long version,
+                       List<Artifact> artifacts, CommentPage comments) {
+        super(of, supporters, commentCount, supported, version);
         this.author = of.getAuthor();
         this.created = of.getCreated();
         this.tags = of.getTags();
         this.artifacts = artifacts.stream().map(Image::new).collect(Collectors.toList());
-        this.comments = comments.stream().map(CommentView::new).collect(Collectors.toList());
+        this.comments = comments.threads;
+        this.commentsNext = comments.next;
+    }
+    
+    private ExhibitFull(ExhibitFull of, Boolean supported) {
+        super(of, supported);
+        this.author = of.author;
+        this.created = of.created;
+        this.tags = of.tags;
+        this.artifacts = of.artifacts;
+        this.comments = of.comments;
+        this.commentsNext = of.commentsNext;
+    }
+    
+    /** A copy of this, but with a different `supported` */
+    public ExhibitFull withSupported(Boolean supported) {
+        return new ExhibitFull(this, supported);
     }
 }
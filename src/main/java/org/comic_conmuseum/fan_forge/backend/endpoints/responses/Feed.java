@@ -1,5 +1,6 @@
 package org.comic_conmuseum.fan_forge.backend.endpoints.responses;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonInclude;
 import org.comic_conmuseum.fan_forge.backend.models.Artifact;
 import org.comic_conmuseum.fan_forge.backend.persistence.ExhibitQueryBean;
@@ -32,8 +33,11 @@ public class Feed {
         @JsonInclude(JsonInclude.Include.NON_NULL)
         public final Boolean supported;
         public final boolean featured;
+        /** The exhibit's version, for ETags */
+        @JsonIgnore
+        public final long version;
         
-        public Entry(Exhibit of, long supporters, long comments, Boolean supported) {
+        public Entry(Exhibit of, long supporters, long comments, Boolean supported, long version) {
             this.id = of.getId();
             this.title = of.getTitle();
             this.description = of.getDescription();
@@ -42,18 +46,37 @@ public class Feed {
             this.supported = supported;
             this.comments = comments;
             this.featured = of.isFeatured();
+            this.version = version;
+        }
+        
+        /** A copy of the entry, but with a different `supported` */
+        protected Entry(Entry of, Boolean supported) {
+            this.id = of.id;
+            this.title = of.title;
+            this.description = of.description;
+            this.cover = of.cover;
+            this.supporters = of.supporters;
+            this.supported = supported;
+            this.comments = of.comments;
+            this.featured = of.featured;
+            this.version = of.version;
         }
     }
     
     public final long startIdx;
-    public final long count;
+    /** Null if the client asked not to count */
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    public final Long count;
     public final int pageSize;
     public final List<Entry> exhibits;
+    /** The cursor to pass to get the page after this one, or null if this is the last page */
+    public final String next;
     
-    public Feed(long startIdx, int pageSize, long count, List<Entry> exhibits) {
+    public Feed(long startIdx, int pageSize, Long count, List<Entry> exhibits, String next) {
         this.startIdx = startIdx;
         this.count = count;
         this.pageSize = pageSize;
         this.exhibits = exhibits;
+        this.next = next;
     }
 }
@@ -0,0 +1,37 @@
+package org.comic_conmuseum.fan_forge.backend.endpoints.responses;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class SurveyImportReport {
+    public static class Row {
+        /** The line number in the upload, starting at 1 */
+        public final int line;
+        /** created, updated, invalid, superseded, or missing-exhibit */
+        public final String status;
+        @JsonInclude(JsonInclude.Include.NON_NULL)
+        public final String error;
+
+        public Row(int line, String status, String error) {
+            this.line = line;
+            this.status = status;
+            this.error = error;
+        }
+    }
+
+    public int created = 0;
+    public int updated = 0;
+    public int rejected = 0;
+    public final List<Row> rows = new ArrayList<>();
+
+    public void add(Row row) {
+        rows.add(row);
+        switch (row.status) {
+            case "created": ++created; break;
+            case "updated": ++updated; break;
+            default: ++rejected;
+        }
+    }
+}
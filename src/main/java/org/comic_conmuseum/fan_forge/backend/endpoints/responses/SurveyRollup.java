@@ -0,0 +1,19 @@
+package org.comic_conmuseum.fan_forge.backend.endpoints.responses;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+
+/** The survey aggregate of one group of exhibits, possibly on one day */
+public class SurveyRollup {
+    /** The tag or author, or null when grouping across all exhibits */
+    public final String group;
+    /** The day (UTC) as yyyy-mm-dd, or null when not bucketing by day */
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    public final String day;
+    public final SurveyAggregate aggregate;
+
+    public SurveyRollup(String group, String day, SurveyAggregate aggregate) {
+        this.group = group;
+        this.day = day;
+        this.aggregate = aggregate;
+    }
+}
@@ -1,17 +1,26 @@
 package org.comic_conmuseum.fan_forge.backend.endpoints.responses;
 
+import com.fasterxml.jackson.annotation.JsonInclude;
 import org.comic_conmuseum.fan_forge.backend.models.Survey;
 
 import java.util.Map;
 
 public class SurveyView {
+    /** Only filled in for admins, who see everyone's */
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    public final String supporter;
     public final int visits;
     public final Map<String, Boolean> populations;
     public final int rating;
     
     public SurveyView(Survey viewOf) {
+        this(viewOf, false);
+    }
+    
+    public SurveyView(Survey viewOf, boolean withSupporter) {
+        this.supporter = withSupporter ? viewOf.supporter : null;
         this.visits = viewOf.visits;
-        this.populations = viewOf.populations;
+        this.populations = Survey.Population.toFlags(viewOf.populations);
         this.rating = viewOf.rating;
     }
 }
@@ -32,6 +32,13 @@ public class RequestLoggingFilter implements Filter {
         HttpServletRequest req = (HttpServletRequest) rawReq;
         LOG.info("Answering {} {}", req.getMethod(), req.getRequestURI());
         HttpServletResponse res = (HttpServletResponse) rawRes;
+        if (req.getRequestURI().startsWith("/image/")) {
+            // Images are never logged, and buffering them would mean holding every one in memory (and
+            // would keep them from being sent with sendfile), so they go straight through
+            next.doFilter(req, res);
+            LOG.info("Responded {} with image of type {}", res.getStatus(), res.getContentType());
+            return;
+        }
         ContentCachingResponseWrapper caching = new ContentCachingResponseWrapper(res);
     
         next.doFilter(req, caching);
@@ -2,10 +2,13 @@ package org.comic_conmuseum.fan_forge.backend.models;
 
 import java.sql.ResultSet;
 import java.sql.SQLException;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.*;
 
 public class Survey {
+    /**
+     * The populations are stored as a bitmask, one bit per population, by
+     * ordinal. So only ever add new ones to the end.
+     */
     public enum Population {
         MALE, FEMALE, KIDS, TEENAGERS, ADULTS;
 
@@ -16,17 +19,55 @@ public class Survey {
         }
 
         public String display() { return lowercase; }
+        /** The name of its flag in exports, which is also the column it used to have */
         public String column() { return "pop_" + this.lowercase; }
-        public String sqlParam() { return ":" + column(); }
+        public int bit() { return 1 << ordinal(); }
 
+        public static int toMask(Set<Population> pops) {
+            int mask = 0;
+            for (Population pop : pops) {
+                mask |= pop.bit();
+            }
+            return mask;
+        }
+
+        public static EnumSet<Population> fromMask(int mask) {
+            EnumSet<Population> pops = EnumSet.noneOf(Population.class);
+            for (Population pop : values()) {
+                if ((mask & pop.bit()) != 0) {
+                    pops.add(pop);
+                }
+            }
+            return pops;
+        }
+
+        /** The populations that are true in the map, by {@link #display()} name */
+        public static EnumSet<Population> fromFlags(Map<String, Boolean> flags) {
+            EnumSet<Population> pops = EnumSet.noneOf(Population.class);
+            for (Population pop : values()) {
+                if (Boolean.TRUE.equals(flags.get(pop.display()))) {
+                    pops.add(pop);
+                }
+            }
+            return pops;
+        }
+
+        /** The opposite of {@link #fromFlags}, with every population in it */
+        public static Map<String, Boolean> toFlags(Set<Population> pops) {
+            Map<String, Boolean> flags = new HashMap<>();
+            for (Population pop : values()) {
+                flags.put(pop.display(), pops.contains(pop));
+            }
+            return flags;
+        }
     }
 
     public final String supporter;
     public final int visits;
-    public final Map<String, Boolean> populations;
+    public final EnumSet<Population> populations;
     public final int rating;
 
-    public Survey(int visits, Map<String, Boolean> populations, int rating, String supporter) {
+    public Survey(int visits, EnumSet<Population> populations, int rating, String supporter) {
         this.visits = visits;
         this.populations = populations;
         this.rating = rating;
@@ -36,10 +77,11 @@ public class Survey {
     public Survey(ResultSet rs, @SuppressWarnings("unused") int rowIndex) throws SQLException {
         this.supporter = rs.getString("supporter");
         this.visits = rs.getInt("visits");
-        this.populations = new HashMap<>();
-        for (Population pop : Population.values()) {
-            this.populations.put(pop.display(), rs.getBoolean("pop_" + pop));
-        }
+        this.populations = Population.fromMask(rs.getInt("populations"));
         this.rating = rs.getInt("rating");
     }
+
+    public int populationMask() {
+        return Population.toMask(populations);
+    }
 }
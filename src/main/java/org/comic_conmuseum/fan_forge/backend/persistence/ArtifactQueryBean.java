@@ -2,9 +2,11 @@ package org.comic_conmuseum.fan_forge.backend.persistence;
 
 import org.comic_conmuseum.fan_forge.backend.models.Artifact;
 import org.comic_conmuseum.fan_forge.backend.models.User;
+import org.comic_conmuseum.fan_forge.backend.persistence.events.ArtifactEvent;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.ApplicationEventPublisher;
 import org.springframework.dao.EmptyResultDataAccessException;
 import org.springframework.dao.IncorrectUpdateSemanticsDataAccessException;
 import org.springframework.jdbc.core.namedparam.MapSqlParameterSource;
@@ -22,10 +24,12 @@ public class ArtifactQueryBean {
     
     private final NamedParameterJdbcTemplate sql;
     private final SimpleJdbcInsert insert;
+    private final ApplicationEventPublisher events;
 
     @Autowired
-    public ArtifactQueryBean(NamedParameterJdbcTemplate jdbcTemplate) {
+    public ArtifactQueryBean(NamedParameterJdbcTemplate jdbcTemplate, ApplicationEventPublisher events) {
         this.sql = jdbcTemplate;
+        this.events = events;
         this.insert = new SimpleJdbcInsert(sql.getJdbcTemplate())
                 .withTableName("artifacts")
                 .usingGeneratedKeyColumns("aid");
@@ -79,28 +83,38 @@ public class ArtifactQueryBean {
         }
         long id = key.longValue();
         ar.setId(id);
+        sql.update(
+                "UPDATE exhibits SET version = version + 1 WHERE eid = :eid",
+                new MapSqlParameterSource("eid", ex)
+        );
+        events.publishEvent(new ArtifactEvent(ArtifactEvent.Kind.CREATED, ex));
         return id;
     }
 
     public void update(Artifact ar) {
         LOG.info("updating artifact {}", ar.getId());
 
-        int count = sql.update(
-                "UPDATE artifacts " +
-                "SET title = COALESCE(:title, title), " +
-                "    description = COALESCE(:description, description) " +
-                "WHERE aid = :aid ",
+        List<Long> exhibits = sql.queryForList(
+                withVersionBump(
+                        "UPDATE artifacts " +
+                        "SET title = COALESCE(:title, title), " +
+                        "    description = COALESCE(:description, description) " +
+                        "WHERE aid = :aid "
+                ),
                 new MapSqlParameterSource()
                     .addValue("title", ar.getTitle())
                     .addValue("description", ar.getDescription())
-                    .addValue("aid", ar.getId())
+                    .addValue("aid", ar.getId()),
+                Long.class
         );
+        int count = exhibits.size();
         if (count == 0) {
             throw new EmptyResultDataAccessException("No artifacts updated. Does the creator own the artifact?", 1);
         }
         if (count > 1) {
             throw new IncorrectUpdateSemanticsDataAccessException("More than one exhibit matched ID " + ar.getId());
         }
+        events.publishEvent(new ArtifactEvent(ArtifactEvent.Kind.UPDATED, exhibits.get(0)));
     }
 
     public Artifact get(long id) {
@@ -114,31 +128,53 @@ public class ArtifactQueryBean {
 
     public void delete(long aid) {
         LOG.info("Deleting artifact {}", aid);
-        int count = sql.update(
-                "DELETE FROM artifacts WHERE aid = :id",
-                new MapSqlParameterSource("id", aid)
+        List<Long> exhibits = sql.queryForList(
+                withVersionBump("DELETE FROM artifacts WHERE aid = :id "),
+                new MapSqlParameterSource("id", aid),
+                Long.class
         );
+        int count = exhibits.size();
         if (count > 1) {
             throw new IncorrectUpdateSemanticsDataAccessException("More than one exhibit matched ID " + aid);
         }
         if (count == 0) {
             throw new EmptyResultDataAccessException("No artifacts with ID " + aid, 1);
         }
+        events.publishEvent(new ArtifactEvent(ArtifactEvent.Kind.DELETED, exhibits.get(0)));
+    }
+    
+    /**
+     * Wraps an UPDATE or DELETE on artifacts so it also bumps the version of
+     * the exhibits they belong to. There's one row per exhibit touched, with
+     * its ID, rather than one per artifact.
+     */
+    private static String withVersionBump(String artifactWrite) {
+        return "WITH changed AS (" + artifactWrite + "RETURNING exhibit) " +
+               "UPDATE exhibits SET version = version + 1 " +
+               "FROM changed WHERE eid = changed.exhibit " +
+               "RETURNING eid";
     }
     
     public void deleteAllFromExcept(long exFrom, List<Long> except) {
         LOG.info("Deleting all artifacts of {} except {}", exFrom, except);
+        // there's only a row for the exhibit, so this is empty if nothing was deleted
+        List<Long> changed;
         if (except.isEmpty()) {
-            sql.update(
-                    "DELETE FROM artifacts WHERE exhibit = :eid",
-                    new MapSqlParameterSource("eid", exFrom)
+            changed = sql.queryForList(
+                    withVersionBump("DELETE FROM artifacts WHERE exhibit = :eid "),
+                    new MapSqlParameterSource("eid", exFrom),
+                    Long.class
             );
         } else {
-            sql.update(
-                    "DELETE FROM artifacts WHERE exhibit = :eid AND aid NOT IN (:list)",
+            changed = sql.queryForList(
+                    withVersionBump("DELETE FROM artifacts WHERE exhibit = :eid AND aid NOT IN (:list) "),
                     new MapSqlParameterSource("eid", exFrom)
-                        .addValue("list", except)
+                        .addValue("list", except),
+                    Long.class
             );
         }
+        if (!changed.isEmpty()) {
+            events.publishEvent(new ArtifactEvent(ArtifactEvent.Kind.DELETED, exFrom));
+        }
     }
 }
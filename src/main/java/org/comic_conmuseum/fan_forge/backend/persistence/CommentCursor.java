@@ -0,0 +1,42 @@
+package org.comic_conmuseum.fan_forge.backend.persistence;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.Base64;
+
+/**
+ * A position in a list of comment threads, for keyset pagination. Like
+ * {@link FeedCursor}, it's the sort key (creation time) and ID of the last
+ * thread on a page, and callers only ever see the encoded form.
+ */
+public class CommentCursor {
+    private final Instant created;
+    private final long cid;
+
+    CommentCursor(Instant created, long cid) {
+        this.created = created;
+        this.cid = cid;
+    }
+
+    public Instant getCreated() { return created; }
+    public long getCid() { return cid; }
+
+    public String encode() {
+        String raw = created.toString() + "\n" + cid;
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(raw.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /** Decodes a cursor previously returned by {@link #encode()}, or returns null if it's malformed */
+    public static CommentCursor decode(String encoded) {
+        try {
+            String raw = new String(Base64.getUrlDecoder().decode(encoded), StandardCharsets.UTF_8);
+            String[] parts = raw.split("\n", -1);
+            if (parts.length != 2) {
+                return null;
+            }
+            return new CommentCursor(Instant.parse(parts[0]), Long.parseLong(parts[1]));
+        } catch (RuntimeException e) {
+            return null;
+        }
+    }
+}
@@ -1,11 +1,15 @@
 package org.comic_conmuseum.fan_forge.backend.persistence;
 
+import org.comic_conmuseum.fan_forge.backend.endpoints.responses.CommentPage;
+import org.comic_conmuseum.fan_forge.backend.endpoints.responses.CommentThread;
 import org.comic_conmuseum.fan_forge.backend.models.Comment;
 import org.comic_conmuseum.fan_forge.backend.models.Exhibit;
 import org.comic_conmuseum.fan_forge.backend.models.User;
+import org.comic_conmuseum.fan_forge.backend.persistence.events.CommentEvent;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.ApplicationEventPublisher;
 import org.springframework.dao.EmptyResultDataAccessException;
 import org.springframework.dao.IncorrectUpdateSemanticsDataAccessException;
 import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
@@ -14,19 +18,34 @@ import org.springframework.jdbc.core.simple.SimpleJdbcInsert;
 import org.springframework.stereotype.Repository;
 
 import java.sql.PreparedStatement;
+import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 @Repository
 public class CommentQueryBean {
     private static final Logger LOG = LoggerFactory.getLogger("persist.comments");
     
+    public static final int MAX_PAGE_SIZE = 50;
+    public static final int MAX_DEPTH = 5;
+    /** How many replies are expanded under each comment; the rest can be paged through with `parent` */
+    public static final int REPLIES_PER_COMMENT = 10;
+    /** The size of the page of comments that's included in an exhibit's details */
+    public static final int FIRST_PAGE_SIZE = 10;
+    public static final int FIRST_PAGE_DEPTH = 2;
+    
     private final NamedParameterJdbcTemplate sql;
     private final SimpleJdbcInsert insert;
+    private final ApplicationEventPublisher events;
     
     @Autowired
-    public CommentQueryBean(NamedParameterJdbcTemplate sql) {
+    public CommentQueryBean(NamedParameterJdbcTemplate sql, ApplicationEventPublisher events) {
         this.sql = sql;
+        this.events = events;
         this.insert = new SimpleJdbcInsert(sql.getJdbcTemplate())
                 .withTableName("comments")
                 .usingGeneratedKeyColumns("cid");
@@ -47,12 +66,23 @@ public class CommentQueryBean {
                 ")",
                 PreparedStatement::execute
         );
+        // for paging through the threads of an exhibit, and through the replies to a comment
+        sql.execute(
+                "CREATE INDEX IF NOT EXISTS comments_by_exhibit_created " +
+                "ON comments (exhibit, created, cid)",
+                PreparedStatement::execute
+        );
+        sql.execute(
+                "CREATE INDEX IF NOT EXISTS comments_by_reply " +
+                "ON comments (reply, created, cid)",
+                PreparedStatement::execute
+        );
     }
     
     public long getCommentCount(Exhibit exhibit) {
         LOG.info("Getting comment count of {}", exhibit.getId());
         Long count = sql.queryForObject(
-                "SELECT COUNT(*) FROM comments WHERE exhibit = :eid",
+                "SELECT comment_count FROM exhibits WHERE eid = :eid",
                 new MapSqlParameterSource("eid", exhibit.getId()),
                 Long.class
         );
@@ -62,12 +92,115 @@ public class CommentQueryBean {
         return count;
     }
     
-    public List<Comment> getComments(long exhibitId) {
-        return sql.query(
-                "SELECT * FROM comments WHERE exhibit = :eid",
-                new MapSqlParameterSource("eid", exhibitId),
-                Comment::new
-        );
+    /**
+     * Gets a page of comment threads on an exhibit, oldest first. Each page
+     * is made of top-level comments (or direct replies to `parent`, if it's
+     * given) with up to `depth` levels of replies under them, and at most
+     * {@link #REPLIES_PER_COMMENT} replies under each comment.
+     */
+    public CommentPage getThreads(long exhibitId, Long parent, CommentCursor after, int pageSize, int depth) {
+        LOG.info("Getting comments on {} under {} after {}", exhibitId, parent, after == null ? null : after.encode());
+        MapSqlParameterSource params = new MapSqlParameterSource();
+        return assemble(sql.query(
+                threadRows(params, exhibitId, parent, after, pageSize, depth) +
+                "ORDER BY depth, created, cid",
+                params,
+                ThreadRow::new
+        ));
+    }
+    
+    /**
+     * Builds the query for the rows of a page of threads, and adds its
+     * parameters. The rows have the comments' columns, plus their `depth`
+     * (0 for the threads themselves), the number of `replies` they have,
+     * and whether there are `more` threads after the page. They have to be
+     * sorted by depth, created and cid before {@link #assemble}.
+     *
+     * It's separate so ExhibitQueryBean can fold the first page into the
+     * exhibit's details query.
+     */
+    static String threadRows(MapSqlParameterSource params, long exhibitId, Long parent, CommentCursor after,
+                             int pageSize, int depth) {
+        params.addValue("threadsExhibit", exhibitId)
+                .addValue("threadsPageSize", pageSize)
+                .addValue("threadsDepth", depth)
+                .addValue("threadsReplies", REPLIES_PER_COMMENT);
+        String conditions = "c.exhibit = :threadsExhibit ";
+        if (parent == null) {
+            conditions += "AND c.reply IS NULL ";
+        } else {
+            conditions += "AND c.reply = :threadsParent ";
+            params.addValue("threadsParent", parent);
+        }
+        if (after != null) {
+            conditions += "AND (c.created, c.cid) > (:threadsAfterCreated, :threadsAfterCid) ";
+            params.addValue("threadsAfterCreated", Timestamp.from(after.getCreated()))
+                    .addValue("threadsAfterCid", after.getCid());
+        }
+        return
+                "WITH RECURSIVE top AS ( " +
+                // one extra, just to see if there's another page
+                "    SELECT c.cid, c.text, c.author, c.reply, c.created FROM comments c " +
+                "    WHERE " + conditions +
+                "    ORDER BY c.created, c.cid " +
+                "    LIMIT :threadsPageSize + 1 " +
+                "), thread AS ( " +
+                "    (SELECT t.*, 0 depth FROM top t ORDER BY t.created, t.cid LIMIT :threadsPageSize) " +
+                "    UNION ALL " +
+                "    SELECT r.*, t.depth + 1 " +
+                "    FROM thread t CROSS JOIN LATERAL ( " +
+                "        SELECT c.cid, c.text, c.author, c.reply, c.created FROM comments c " +
+                "        WHERE c.reply = t.cid " +
+                "        ORDER BY c.created, c.cid " +
+                "        LIMIT :threadsReplies " +
+                "    ) r " +
+                "    WHERE t.depth < :threadsDepth " +
+                ") " +
+                "SELECT t.*, " +
+                "       (SELECT COUNT(*) FROM comments x WHERE x.reply = t.cid) replies, " +
+                "       (SELECT COUNT(*) FROM top) > :threadsPageSize more " +
+                "FROM thread t ";
+    }
+    
+    /** One row of {@link #threadRows} */
+    static class ThreadRow {
+        final Comment comment;
+        final int depth;
+        final long replies;
+        final boolean more;
+        
+        ThreadRow(Comment comment, int depth, long replies, boolean more) {
+            this.comment = comment;
+            this.depth = depth;
+            this.replies = replies;
+            this.more = more;
+        }
+        
+        private ThreadRow(ResultSet rs, int rowNum) throws SQLException {
+            this(new Comment(rs, rowNum), rs.getInt("depth"), rs.getLong("replies"), rs.getBoolean("more"));
+        }
+    }
+    
+    /** Puts the (sorted) rows from {@link #threadRows} back together into threads */
+    static CommentPage assemble(List<ThreadRow> rows) {
+        Map<Long, CommentThread> byId = new HashMap<>();
+        List<CommentThread> threads = new ArrayList<>();
+        Comment last = null;
+        boolean more = false;
+        // since they're in order of depth, a comment's parent is always in the map by the time we get to it
+        for (ThreadRow row : rows) {
+            CommentThread thread = new CommentThread(row.comment, row.replies);
+            byId.put(row.comment.getId(), thread);
+            if (row.depth == 0) {
+                threads.add(thread);
+                last = row.comment;
+                more = row.more;
+            } else {
+                byId.get(row.comment.getReply()).replies.add(thread);
+            }
+        }
+        String next = more ? new CommentCursor(last.getCreated(), last.getId()).encode() : null;
+        return new CommentPage(threads, next);
     }
     
     public Comment get(long commentId) {
@@ -86,44 +219,72 @@ public class CommentQueryBean {
                 .addValue("author", by.getId())
                 .addValue("exhibit", ex)
                 .addValue("reply", co.getReply())
-                .addValue("created", new java.sql.Date(co.getCreated().toEpochMilli()))
+                .addValue("created", Timestamp.from(co.getCreated()))
         );
         if (key == null) {
             throw new SQLException("Failed to insert rows (no key generated)");
         }
         long id = key.longValue();
         co.setId(id);
+        sql.update(
+                "UPDATE exhibits " +
+                "SET comment_count = comment_count + 1, activity_version = activity_version + 1, " +
+                "    version = version + 1 " +
+                "WHERE eid = :eid",
+                new MapSqlParameterSource("eid", ex)
+        );
+        events.publishEvent(new CommentEvent(CommentEvent.Kind.CREATED, ex, id));
         return id;
     }
     
     public void update(Comment co, User by) {
         LOG.info("{} updating comment {}", by.getUsername(), co.getId());
-        int count = sql.update(
-                "UPDATE comments SET text = :text " +
-                "WHERE cid = :cid AND (author = :author OR :isAdmin)",
+        List<Long> exhibits = sql.queryForList(
+                "WITH updated AS ( " +
+                "    UPDATE comments SET text = :text " +
+                "    WHERE cid = :cid AND (author = :author OR :isAdmin) " +
+                "    RETURNING exhibit " +
+                ") " +
+                "UPDATE exhibits SET version = version + 1 " +
+                "FROM updated WHERE eid = updated.exhibit " +
+                "RETURNING eid",
                 new MapSqlParameterSource("text", co.getText())
                     .addValue("cid", co.getId())
                     .addValue("author", by.getId())
-                    .addValue("isAdmin", by.isAdmin())
+                    .addValue("isAdmin", by.isAdmin()),
+                Long.class
         );
+        int count = exhibits.size();
         if (count == 0) {
             throw new EmptyResultDataAccessException("No comments updated. Does the creator own the artifact?", 1);
         }
         if (count > 1) {
             throw new IncorrectUpdateSemanticsDataAccessException("More than one comment matched ID " + co.getId());
         }
+        events.publishEvent(new CommentEvent(CommentEvent.Kind.UPDATED, exhibits.get(0), co.getId()));
     }
     
     public void delete(long id, User by) {
         LOG.info("{} deleting comment {}", by.getUsername(), id);
         
-        final int count = sql.update(
-                "DELETE FROM comments " +
-                "WHERE cid = :cid AND (author = :author OR :isAdmin)",
+        // one exhibit row is updated per comment deleted, so there's still one row per comment deleted
+        final List<Long> exhibits = sql.queryForList(
+                "WITH deleted AS ( " +
+                "    DELETE FROM comments " +
+                "    WHERE cid = :cid AND (author = :author OR :isAdmin) " +
+                "    RETURNING exhibit " +
+                ") " +
+                "UPDATE exhibits " +
+                "SET comment_count = comment_count - 1, activity_version = activity_version + 1, " +
+                "    version = version + 1 " +
+                "FROM deleted WHERE eid = deleted.exhibit " +
+                "RETURNING eid",
                 new MapSqlParameterSource("cid", id)
                     .addValue("author", by.getId())
-                    .addValue("isAdmin", by.isAdmin())
+                    .addValue("isAdmin", by.isAdmin()),
+                Long.class
         );
+        final int count = exhibits.size();
         
         if (count > 1) {
             throw new IncorrectUpdateSemanticsDataAccessException("More than one comment matched ID " + id);
@@ -131,5 +292,6 @@ public class CommentQueryBean {
         if (count == 0) {
             throw new EmptyResultDataAccessException("No comments with ID " + id + " by " + by.getUsername(), 1);
         }
+        events.publishEvent(new CommentEvent(CommentEvent.Kind.DELETED, exhibits.get(0), id));
     }
 }
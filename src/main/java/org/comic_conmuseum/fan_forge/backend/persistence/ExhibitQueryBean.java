@@ -1,10 +1,22 @@
 package org.comic_conmuseum.fan_forge.backend.persistence;
 
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.comic_conmuseum.fan_forge.backend.cache.ExhibitCache;
+import org.comic_conmuseum.fan_forge.backend.cache.FeedCountCache;
+import org.comic_conmuseum.fan_forge.backend.cache.SupportedSetCache;
+import org.comic_conmuseum.fan_forge.backend.cache.WriteStamps;
+import org.comic_conmuseum.fan_forge.backend.endpoints.responses.ExhibitFull;
+import org.comic_conmuseum.fan_forge.backend.endpoints.responses.Feed;
+import org.comic_conmuseum.fan_forge.backend.models.Artifact;
+import org.comic_conmuseum.fan_forge.backend.models.Comment;
 import org.comic_conmuseum.fan_forge.backend.models.Exhibit;
 import org.comic_conmuseum.fan_forge.backend.models.User;
+import org.comic_conmuseum.fan_forge.backend.persistence.events.ExhibitEvent;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.ApplicationEventPublisher;
 import org.springframework.dao.DataAccessException;
 import org.springframework.dao.EmptyResultDataAccessException;
 import org.springframework.dao.IncorrectUpdateSemanticsDataAccessException;
@@ -13,30 +25,50 @@ import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
 import org.springframework.jdbc.core.simple.SimpleJdbcInsert;
 import org.springframework.stereotype.Repository;
 
+import java.io.IOException;
 import java.sql.*;
 import java.time.Instant;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
+import java.time.OffsetDateTime;
+import java.util.*;
+import java.util.function.Function;
+import java.util.stream.Collectors;
 
 @Repository
 public class ExhibitQueryBean {
     private static final Logger LOG = LoggerFactory.getLogger("persist.exhibits");
+    private static final ObjectMapper JSON = new ObjectMapper();
     
     public static final int MAX_PAGE_SIZE = 50;
 
     public enum FeedType {
-        recent("created", true),
-        popular("(SELECT COUNT(*) FROM supports WHERE exhibit = eid)", true);
-        // comments will be, roughly:
-        //comments("(SELECT COUNT(*) FROM comments WHERE exhibit = eid)", true)
+        recent("created", true,
+                rs -> rs.getTimestamp("sort_key").toInstant().toString(),
+                key -> Timestamp.from(Instant.parse(key))),
+        popular("e.support_count", true,
+                rs -> String.valueOf(rs.getLong("sort_key")),
+                Long::valueOf),
+        // The scores are kept up to date by ScoreQueryBean; see there for what they mean
+        trending("e.trending_score", true,
+                rs -> String.valueOf(rs.getDouble("sort_key")),
+                Double::valueOf),
+        comments("e.discussion_score", true,
+                rs -> String.valueOf(rs.getDouble("sort_key")),
+                Double::valueOf);
         
-        private final String orderBy;
+        private interface KeyReader {
+            String read(ResultSet rs) throws SQLException;
+        }
+        
+        private final String sortKey;
         private final boolean defaultDesc;
+        private final KeyReader keyReader;
+        private final Function<String, Object> keyParser;
         
-        FeedType(String orderBy, boolean defaultDesc) {
-            this.orderBy = orderBy + " ";
+        FeedType(String sortKey, boolean defaultDesc, KeyReader keyReader, Function<String, Object> keyParser) {
+            this.sortKey = sortKey;
             this.defaultDesc = defaultDesc;
+            this.keyReader = keyReader;
+            this.keyParser = keyParser;
         }
         
         public static FeedType parse(String name) {
@@ -48,23 +80,178 @@ public class ExhibitQueryBean {
             return null;
         }
         
-        private String getSql(boolean inverted) {
+        /** Turns a cursor's sort key back into something that can be bound as a query parameter */
+        Object parseKey(String key) {
+            return keyParser.apply(key);
+        }
+        
+        private FeedCursor cursorAt(ResultSet rs) throws SQLException {
+            return new FeedCursor(this, keyReader.read(rs), rs.getLong("eid"));
+        }
+        
+        private boolean isDesc(boolean inverted) {
             // XOR is magic, don't question it
-            return this.orderBy + (defaultDesc ^ inverted ? "DESC" : "ASC");
+            return defaultDesc ^ inverted;
+        }
+        
+        private String getSql(boolean inverted) {
+            // eid breaks ties, so that the order is total and cursors are unambiguous
+            String dir = isDesc(inverted) ? " DESC" : " ASC";
+            return "sort_key" + dir + ", eid" + dir + " ";
+        }
+        
+        private String getAfterSql(boolean inverted) {
+            return "(" + sortKey + ", e.eid) " + (isDesc(inverted) ? "<" : ">") + " (:afterKey, :afterId) ";
+        }
+    }
+    
+    /** A single page of a feed, along with where the next one starts */
+    public static class FeedPage {
+        public final List<Feed.Entry> entries;
+        /** Null if this is the last page */
+        public final FeedCursor next;
+        
+        private FeedPage(List<Feed.Entry> entries, FeedCursor next) {
+            this.entries = entries;
+            this.next = next;
         }
     }
 
     private final NamedParameterJdbcTemplate sql;
     private final SimpleJdbcInsert insert;
+    private final FeedIndex index;
+    private final FeedCountCache counts;
+    private final ExhibitCache cache;
+    private final SupportQueryBean supports;
+    private final TagCatalog tagCatalog;
+    private final ApplicationEventPublisher events;
     
     @Autowired
-    public ExhibitQueryBean(NamedParameterJdbcTemplate sql) {
+    public ExhibitQueryBean(NamedParameterJdbcTemplate sql, FeedIndex index, FeedCountCache counts,
+                            ExhibitCache cache, SupportQueryBean supports, TagCatalog tagCatalog,
+                            ApplicationEventPublisher events) {
         this.sql = sql;
+        this.index = index;
+        this.tagCatalog = tagCatalog;
+        this.counts = counts;
+        this.cache = cache;
+        this.supports = supports;
+        this.events = events;
         this.insert = new SimpleJdbcInsert(sql.getJdbcTemplate())
                 .withTableName("exhibits")
                 .usingGeneratedKeyColumns("eid");
     }
 
+    /**
+     * Gets everything on an exhibit's detail page, and whether the user
+     * supports it. The page is the same for everyone, so it usually comes
+     * from the cache, and the `supported` flag from the user's cached set.
+     */
+    public ExhibitFull getFull(long exhibitId, User user) {
+        ExhibitFull full = cache.get(exhibitId);
+        if (full == null) {
+            long stamp = cache.stamp(exhibitId);
+            long start = System.nanoTime();
+            full = loadFull(exhibitId);
+            cache.put(exhibitId, full, stamp, System.nanoTime() - start);
+        }
+        if (user.isAnonymous()) {
+            return full;
+        }
+        return full.withSupported(supports.getSupportedSet(user).contains(exhibitId));
+    }
+    
+    /**
+     * Loads an exhibit's detail page -- the exhibit, its cover, counts,
+     * artifacts, and the first page of comments -- in one query, so it all
+     * comes from the same snapshot. The artifacts and comments are
+     * aggregated into JSON arrays so they fit in one row.
+     */
+    private ExhibitFull loadFull(long exhibitId) {
+        LOG.info("Getting full exhibit with ID {}", exhibitId);
+        MapSqlParameterSource params = new MapSqlParameterSource("id", exhibitId);
+        String commentRows = CommentQueryBean.threadRows(
+                params, exhibitId, null, null,
+                CommentQueryBean.FIRST_PAGE_SIZE, CommentQueryBean.FIRST_PAGE_DEPTH
+        );
+        return sql.queryForObject(
+                ENTRY_SELECT + ", " +
+                "       (SELECT JSON_AGG(JSON_BUILD_OBJECT( " +
+                "                   'aid', x.aid, 'title', x.title, 'description', x.description, " +
+                "                   'cover', x.cover, 'creator', x.creator, 'created', x.created " +
+                "               ) ORDER BY x.aid) " +
+                "        FROM artifacts x WHERE x.exhibit = e.eid) artifacts_json, " +
+                "       (SELECT JSON_AGG(JSON_BUILD_OBJECT( " +
+                "                   'cid', c.cid, 'text', c.text, 'author', c.author, " +
+                "                   'reply', c.reply, 'created', c.created, " +
+                "                   'depth', c.depth, 'replies', c.replies, 'more', c.more " +
+                "               ) ORDER BY c.depth, c.created, c.cid) " +
+                "        FROM (" + commentRows + ") c) comments_json " +
+                "FROM exhibits e " +
+                ENTRY_JOINS +
+                "WHERE e.eid = :id",
+                params,
+                (rs, rowNum) -> new ExhibitFull(
+                        new Exhibit(rs, rowNum),
+                        rs.getLong("supporters"),
+                        rs.getLong("comments"),
+                        null,
+                        rs.getLong("version"),
+                        fromJson(rs.getString("artifacts_json"), ExhibitQueryBean::artifactFromJson),
+                        CommentQueryBean.assemble(
+                                fromJson(rs.getString("comments_json"), ExhibitQueryBean::commentRowFromJson)
+                        )
+                )
+        );
+    }
+    
+    /** Reads a JSON_AGG column, which is null if there were no rows */
+    private static <T> List<T> fromJson(String json, Function<JsonNode, T> mapper) throws SQLException {
+        List<T> items = new ArrayList<>();
+        if (json == null) {
+            return items;
+        }
+        try {
+            for (JsonNode node : JSON.readTree(json)) {
+                items.add(mapper.apply(node));
+            }
+        } catch (IOException e) {
+            throw new SQLException("Malformed aggregated JSON", e);
+        }
+        return items;
+    }
+    
+    private static Artifact artifactFromJson(JsonNode node) {
+        return new Artifact(
+                node.get("aid").asLong(),
+                node.get("title").asText(),
+                node.get("description").asText(),
+                node.get("cover").asBoolean(),
+                node.get("creator").isNull() ? null : node.get("creator").asText(),
+                instantFromJson(node.get("created"))
+        );
+    }
+    
+    private static CommentQueryBean.ThreadRow commentRowFromJson(JsonNode node) {
+        return new CommentQueryBean.ThreadRow(
+                new Comment(
+                        node.get("cid").asLong(),
+                        node.get("text").asText(),
+                        node.get("author").isNull() ? null : node.get("author").asText(),
+                        node.get("reply").isNull() ? null : node.get("reply").asLong(),
+                        instantFromJson(node.get("created"))
+                ),
+                node.get("depth").asInt(),
+                node.get("replies").asLong(),
+                node.get("more").asBoolean()
+        );
+    }
+    
+    /** Postgres always renders timestamps in JSON as ISO 8601 with an offset */
+    private static Instant instantFromJson(JsonNode node) {
+        return OffsetDateTime.parse(node.asText()).toInstant();
+    }
+
     public void setupTable(boolean reset) {
         LOG.info("Creating tables; resetting: {}", reset);
         if (reset) {
@@ -80,7 +267,31 @@ public class ExhibitQueryBean {
                 // TODO Once we figure out how we want tags to work, we can make this better
                 "   tags TEXT ARRAY, " +
                 "   created TIMESTAMP WITH TIME ZONE NOT NULL " +
-                ")", PreparedStatement::execute
+                ");" +
+                // Denormalized so the feeds don't have to count rows in other tables. They're
+                // kept up to date by the support and comment writes; see reconcileCounts.
+                "ALTER TABLE exhibits ADD COLUMN IF NOT EXISTS support_count INTEGER NOT NULL DEFAULT 0;" +
+                "ALTER TABLE exhibits ADD COLUMN IF NOT EXISTS comment_count INTEGER NOT NULL DEFAULT 0;" +
+                // Lets the feeds seek straight to a cursor instead of sorting everything
+                "CREATE INDEX IF NOT EXISTS exhibits_by_created ON exhibits(created, eid);" +
+                // Bumped by every write that changes what's shown for the exhibit, for ETags
+                "ALTER TABLE exhibits ADD COLUMN IF NOT EXISTS version BIGINT NOT NULL DEFAULT 1;" +
+                "CREATE INDEX IF NOT EXISTS exhibits_by_support_count ON exhibits(support_count, eid);" +
+                // Precomputed by ScoreQueryBean. activity_version is bumped by every support or
+                // comment write, and the scores are stale while it's ahead of scored_version.
+                "ALTER TABLE exhibits ADD COLUMN IF NOT EXISTS trending_score DOUBLE PRECISION NOT NULL " +
+                "    DEFAULT '-Infinity';" +
+                "ALTER TABLE exhibits ADD COLUMN IF NOT EXISTS discussion_score DOUBLE PRECISION NOT NULL " +
+                "    DEFAULT '-Infinity';" +
+                "ALTER TABLE exhibits ADD COLUMN IF NOT EXISTS activity_version INTEGER NOT NULL DEFAULT 1;" +
+                "ALTER TABLE exhibits ADD COLUMN IF NOT EXISTS scored_version INTEGER NOT NULL DEFAULT 0;" +
+                "CREATE INDEX IF NOT EXISTS exhibits_by_trending_score ON exhibits(trending_score, eid);" +
+                "CREATE INDEX IF NOT EXISTS exhibits_by_discussion_score ON exhibits(discussion_score, eid);" +
+                "CREATE INDEX IF NOT EXISTS exhibits_needing_scores ON exhibits(eid) " +
+                "    WHERE activity_version <> scored_version;" +
+                // Tag filters use @> and &&, which this can answer
+                "CREATE INDEX IF NOT EXISTS exhibits_by_tags ON exhibits USING GIN (tags);",
+                PreparedStatement::execute
         );
     }
     
@@ -100,112 +311,361 @@ public class ExhibitQueryBean {
         );
     }
 
+    @SuppressWarnings("try")
     public long create(Exhibit ex, User by) throws SQLException {
         LOG.info("{} creating exhibit '{}'", by.getUsername(), ex.getTitle());
         Instant now = Instant.now();
+        Instant stored = Instant.ofEpochMilli(ex.getCreated().toEpochMilli());
         Map<String, Object> args = new HashMap<>();
         args.put("title", ex.getTitle());
         args.put("description", ex.getDescription());
         args.put("author", by.getId());
-        args.put("created", new java.sql.Date(ex.getCreated().toEpochMilli()));
+        args.put("created", new java.sql.Date(stored.toEpochMilli()));
         args.put("tags", ex.getTags());
         args.put("featured", false);
-        Number key = insert.executeAndReturnKey(args);
-        if (key == null) {
-            throw new SQLException("Failed to insert rows (no key generated)");
+        long id;
+        try (WriteStamps.Write w = counts.writing()) {
+            Number key = insert.executeAndReturnKey(args);
+            if (key == null) {
+                throw new SQLException("Failed to insert rows (no key generated)");
+            }
+            id = key.longValue();
+            ex.setId(id);
+            ex.setCreated(now);
+            events.publishEvent(new ExhibitEvent(
+                    ExhibitEvent.Kind.CREATED, id, by.getId(), stored, false, ex.getTags()
+            ));
         }
-        long id = key.longValue();
-        ex.setId(id);
-        ex.setCreated(now);
         return id;
     }
     
+    @SuppressWarnings("try")
     public void update(Exhibit ex, User by) {
         LOG.info("{} updating exhibit {}", by.getUsername(), ex.getId());
 
-        final int count = sql.update(
-                "UPDATE exhibits " +
-                "SET title = COALESCE(:title, title), " +
-                "    description = COALESCE(:description, description), " +
-                "    tags = COALESCE(:tags, tags) " +
-                "WHERE eid = :exhibit AND (author = :user OR :isAdmin)",
-                new MapSqlParameterSource()
-                        .addValue("title", ex.getTitle())
-                        .addValue("description", ex.getDescription())
-                        .addValue("tags", ex.getTags())
-                        .addValue("exhibit", ex.getId())
-                        .addValue("user", by.getId())
-                        .addValue("isAdmin", by.isAdmin())
-        );
+        try (WriteStamps.Write w = counts.writing()) {
+            // `old` is only there so the event can say which tags the exhibit used to have
+            final List<ExhibitEvent> updated = sql.query(
+                    "UPDATE exhibits e " +
+                    "SET title = COALESCE(:title, e.title), " +
+                    "    description = COALESCE(:description, e.description), " +
+                    "    tags = COALESCE(:tags, e.tags), " +
+                    "    version = e.version + 1 " +
+                    "FROM (SELECT eid, tags FROM exhibits WHERE eid = :exhibit FOR UPDATE) old " +
+                    "WHERE e.eid = old.eid AND (e.author = :user OR :isAdmin) " +
+                    "RETURNING e.eid, e.author, e.created, e.featured, e.tags, old.tags previous_tags",
+                    new MapSqlParameterSource()
+                            .addValue("title", ex.getTitle())
+                            .addValue("description", ex.getDescription())
+                            .addValue("tags", ex.getTags())
+                            .addValue("exhibit", ex.getId())
+                            .addValue("user", by.getId())
+                            .addValue("isAdmin", by.isAdmin()),
+                    (rs, rowNum) -> ExhibitEvent.fromUpdatedRow(rs)
+            );
+            final int count = updated.size();
 
-        if (count == 0) {
-            throw new EmptyResultDataAccessException("No exhibits updated. Does the author own the exhibit?", 1);
-        }
-        if (count > 1) {
-            throw new IncorrectUpdateSemanticsDataAccessException("More than one exhibit matched ID " + ex.getId());
+            if (count == 0) {
+                throw new EmptyResultDataAccessException("No exhibits updated. Does the author own the exhibit?", 1);
+            }
+            if (count > 1) {
+                throw new IncorrectUpdateSemanticsDataAccessException("More than one exhibit matched ID " + ex.getId());
+            }
+            events.publishEvent(updated.get(0));
         }
     }
     
+    @SuppressWarnings("try")
     public void delete(long eid, User by) {
         LOG.info("{} deleting exhibit {}", by.getUsername(), eid);
         
-        final int count = sql.update(
-                "DELETE FROM exhibits " +
-                "WHERE eid = :exhibit " +
-                "  AND (author = :user OR :isAdmin)",
-                new MapSqlParameterSource()
-                        .addValue("exhibit", eid)
-                        .addValue("user", by.getId())
-                        .addValue("isAdmin", by.isAdmin())
-        );
+        try (WriteStamps.Write w = counts.writing()) {
+            final List<ExhibitEvent> deleted = sql.query(
+                    "DELETE FROM exhibits " +
+                    "WHERE eid = :exhibit " +
+                    "  AND (author = :user OR :isAdmin) " +
+                    "RETURNING " + EVENT_COLUMNS,
+                    new MapSqlParameterSource()
+                            .addValue("exhibit", eid)
+                            .addValue("user", by.getId())
+                            .addValue("isAdmin", by.isAdmin()),
+                    (rs, rowNum) -> ExhibitEvent.fromRow(ExhibitEvent.Kind.DELETED, rs)
+            );
+            final int count = deleted.size();
         
-        if (count > 1) {
-            throw new IncorrectUpdateSemanticsDataAccessException("More than one exhibit matched ID " + eid);
-        }
-        if (count == 0) {
-            throw new EmptyResultDataAccessException("No exhibits with ID " + eid + " by " + by.getUsername(), 1);
+            if (count > 1) {
+                throw new IncorrectUpdateSemanticsDataAccessException("More than one exhibit matched ID " + eid);
+            }
+            if (count == 0) {
+                throw new EmptyResultDataAccessException("No exhibits with ID " + eid + " by " + by.getUsername(), 1);
+            }
+            events.publishEvent(deleted.get(0));
         }
     }
     
-    private static void addFilters(Map<String, String> filters, StringBuilder query, MapSqlParameterSource params) {
+    private static void addFilters(FeedFilter filters, StringBuilder query, MapSqlParameterSource params) {
         // 1=1 so we can start with `AND` and forget about it)
         query.append(" WHERE 1=1 ");
         
-        if (filters.containsKey("tag")) {
-            query.append("AND :tag = ANY(e.tags) ");
-            params.addValue("tag", filters.get("tag"));
+        if (!filters.getTags().isEmpty()) {
+            // `@>` (contains) and `&&` (overlaps) can use the GIN index; `= ANY(...)` can't
+            query.append(filters.isMatchAll()
+                    ? "AND e.tags @> CAST(:tags AS TEXT[]) "
+                    : "AND e.tags && CAST(:tags AS TEXT[]) ");
+            params.addValue("tags", filters.getTags().toArray(new String[0]));
         }
     
-        if (filters.containsKey("author")) {
+        if (filters.getAuthor() != null) {
             query.append("AND author = :author ");
-            params.addValue("author", filters.get("author"));
+            params.addValue("author", filters.getAuthor());
         }
     }
     
-    public List<Exhibit> getFeed(FeedType type, long startIdx, int pageSize, Map<String, String> filters) {
-        LOG.info("Getting {} feed", type);
-
-        StringBuilder query = new StringBuilder(
-                "SELECT e.*, a.aid aid, a.title atitle, a.description adesc, " +
-                "       a.creator acreator, a.created acreated " +
-                "FROM exhibits e " +
-                "LEFT JOIN artifacts a " +
-                "       ON a.exhibit = e.eid " +
-                "      AND a.cover "
+    /** The columns needed for ExhibitEvent.fromRow */
+    private static final String EVENT_COLUMNS = "eid, author, created, featured, tags";
+    
+    /**
+     * The start of a query for Feed.Entry rows, which {@link #mapEntry} can
+     * read. The caller has to add a FROM clause that provides exhibits as `e`.
+     */
+    private static final String ENTRY_SELECT =
+            "SELECT e.*, a.aid aid, a.title atitle, a.description adesc, " +
+            "       a.creator acreator, a.created acreated, " +
+            "       e.support_count supporters, e.comment_count comments ";
+    
+    private static final String ENTRY_JOINS =
+            "LEFT JOIN artifacts a " +
+            "       ON a.exhibit = e.eid " +
+            "      AND a.cover ";
+    
+    /** {@code supported} is the viewer's supported set, or null if they're anonymous */
+    private static Feed.Entry mapEntry(ResultSet rs, int rowNum, SupportedSetCache.SupportedSet supported)
+            throws SQLException {
+        Exhibit exhibit = new Exhibit(rs, rowNum);
+        return new Feed.Entry(
+                exhibit,
+                rs.getLong("supporters"),
+                rs.getLong("comments"),
+                supported == null ? null : supported.contains(exhibit.getId()),
+                rs.getLong("version")
         );
+    }
+    
+    /**
+     * Builds one page of the feed in a single statement. The page itself is
+     * picked in a subquery, so the cover is only looked up for the rows that
+     * are actually returned. The supported flags come from {@code supported},
+     * the user's supported set, or null if they're anonymous. It has to be
+     * loaded before the transaction this runs in starts; otherwise it could
+     * be cached from an older snapshot than the one its stamp was taken at.
+     * 
+     * If {@code after} is given, the page starts right after that position
+     * and {@code startIdx} is ignored. Otherwise, {@code startIdx} rows are
+     * skipped, which gets slower the further into the feed you go.
+     * 
+     * If the feed index is enabled, it picks the page instead, and the only
+     * query is for the contents of the exhibits on it.
+     */
+    public FeedPage getFeed(FeedType type, FeedCursor after, long startIdx, int pageSize,
+                            FeedFilter filters, SupportedSetCache.SupportedSet supported) {
+        if (index.canServe(type)) {
+            LOG.info("Getting {} feed from the index", type);
+            FeedIndex.Page page = index.page(type, after, startIdx, pageSize, filters);
+            return new FeedPage(getEntries(page.eids, supported), page.next);
+        }
+        
+        LOG.info("Getting {} feed", type);
         MapSqlParameterSource params = new MapSqlParameterSource();
+        StringBuilder query = new StringBuilder(ENTRY_SELECT);
+        appendPage(type, after, startIdx, pageSize, filters, query, params);
+        query.append(ENTRY_JOINS);
+        query.append("ORDER BY ").append(type.getSql(false));
         
+        return sql.query(query.toString(), params, rs -> {
+            List<Feed.Entry> entries = new ArrayList<>();
+            FeedCursor last = null;
+            while (rs.next()) {
+                entries.add(mapEntry(rs, entries.size(), supported));
+                last = type.cursorAt(rs);
+            }
+            // a short page means there's nothing after it
+            return new FeedPage(entries, entries.size() < pageSize ? null : last);
+        });
+    }
+    
+    /**
+     * Appends a FROM clause with just the exhibits on one page of the feed,
+     * as `e`, with their sort key as `sort_key`.
+     */
+    private static void appendPage(FeedType type, FeedCursor after, long startIdx, int pageSize,
+                                   FeedFilter filters, StringBuilder query, MapSqlParameterSource params) {
+        query.append("FROM (SELECT e.*, ").append(type.sortKey).append(" sort_key FROM exhibits e ");
         addFilters(filters, query, params);
-        
         // TODO Add support for reversing
-        query.append("ORDER BY ").append(type.getSql(false)).append(" LIMIT :limit OFFSET :offset");
+        if (after != null) {
+            query.append("AND ").append(type.getAfterSql(false));
+            params.addValue("afterKey", type.parseKey(after.getKey()));
+            params.addValue("afterId", after.getEid());
+        }
+        query.append("ORDER BY ").append(type.getSql(false)).append("LIMIT :limit");
         params.addValue("limit", pageSize);
-        params.addValue("offset", startIdx);
+        if (after == null) {
+            query.append(" OFFSET :offset");
+            params.addValue("offset", startIdx);
+        }
+        query.append(") e ");
+    }
+    
+    /** Which exhibits are on a page of a feed, and their versions, but nothing else */
+    public static class PageVersions {
+        public final List<Long> eids;
+        public final List<Long> versions;
+        /** Null if this is the last page */
+        public final FeedCursor next;
+        
+        private PageVersions(List<Long> eids, List<Long> versions, FeedCursor next) {
+            this.eids = eids;
+            this.versions = versions;
+            this.next = next;
+        }
+    }
+    
+    /**
+     * Like {@link #getFeed}, but only finds out which exhibits are on the
+     * page and what versions they're at. That's enough to tell whether a
+     * client's copy of the page is still current, without the joins.
+     */
+    public PageVersions getFeedVersions(FeedType type, FeedCursor after, long startIdx, int pageSize,
+                                        FeedFilter filters) {
+        if (index.canServe(type)) {
+            FeedIndex.Page page = index.page(type, after, startIdx, pageSize, filters);
+            Map<Long, Long> byId = getVersions(page.eids);
+            List<Long> eids = new ArrayList<>();
+            List<Long> versions = new ArrayList<>();
+            for (Long eid : page.eids) {
+                // same as getEntries, anything that's gone is left out
+                if (byId.containsKey(eid)) {
+                    eids.add(eid);
+                    versions.add(byId.get(eid));
+                }
+            }
+            return new PageVersions(eids, versions, page.next);
+        }
         
-        return sql.query(query.toString(), params, Exhibit::new);
+        LOG.info("Getting {} feed versions", type);
+        MapSqlParameterSource params = new MapSqlParameterSource();
+        StringBuilder query = new StringBuilder("SELECT e.eid, e.version, e.sort_key ");
+        appendPage(type, after, startIdx, pageSize, filters, query, params);
+        query.append("ORDER BY ").append(type.getSql(false));
+        
+        return sql.query(query.toString(), params, rs -> {
+            List<Long> eids = new ArrayList<>();
+            List<Long> versions = new ArrayList<>();
+            FeedCursor last = null;
+            while (rs.next()) {
+                eids.add(rs.getLong("eid"));
+                versions.add(rs.getLong("version"));
+                last = type.cursorAt(rs);
+            }
+            return new PageVersions(eids, versions, eids.size() < pageSize ? null : last);
+        });
+    }
+    
+    private static long[] idArray(List<Long> ids) {
+        return ids.stream().mapToLong(Long::longValue).distinct().toArray();
+    }
+    
+    /** Gets the current version of each of the exhibits; any that don't exist are left out */
+    private Map<Long, Long> getVersions(List<Long> ids) {
+        Map<Long, Long> versions = new HashMap<>();
+        if (ids.isEmpty()) {
+            return versions;
+        }
+        sql.query(
+                "SELECT eid, version FROM exhibits WHERE eid = ANY(CAST(:ids AS BIGINT[]))",
+                new MapSqlParameterSource("ids", idArray(ids)),
+                rs -> {
+                    versions.put(rs.getLong("eid"), rs.getLong("version"));
+                }
+        );
+        return versions;
+    }
+    
+    /** Gets the exhibit's current version, which changes whenever anything shown for it does */
+    public long getVersion(long exhibitId) {
+        // the cached copy is dropped whenever the version changes, so it's as good as the DB
+        ExhibitFull cached = cache.get(exhibitId);
+        if (cached != null) {
+            return cached.version;
+        }
+        Long version = sql.queryForObject(
+                "SELECT version FROM exhibits WHERE eid = :id",
+                new MapSqlParameterSource("id", exhibitId),
+                Long.class
+        );
+        if (version == null) {
+            throw new EmptyResultDataAccessException("Somehow no version returned", 1);
+        }
+        return version;
+    }
+    
+    /**
+     * Gets the feed entries for the given exhibits, in the order given, in
+     * one query. Any that don't exist are left out, and duplicates are
+     * repeated.
+     *
+     * The counts are already on the exhibits, and the cover is joined in,
+     * so that one query is all it takes no matter how many there are. The
+     * supported flags come from {@code supported}, like in {@link #getFeed}.
+     */
+    public List<Feed.Entry> getEntries(List<Long> ids, SupportedSetCache.SupportedSet supported) {
+        LOG.info("Getting feed entries for {}", ids);
+        if (ids.isEmpty()) {
+            return new ArrayList<>();
+        }
+        Map<Long, Feed.Entry> byId = sql.query(
+                ENTRY_SELECT +
+                "FROM exhibits e " +
+                ENTRY_JOINS +
+                // one array parameter instead of IN (...), so it's the same statement for any number of IDs
+                "WHERE e.eid = ANY(CAST(:ids AS BIGINT[]))",
+                new MapSqlParameterSource("ids", idArray(ids)),
+                (rs, rowNum) -> mapEntry(rs, rowNum, supported)
+        )
+                .stream()
+                .collect(Collectors.toMap(entry -> entry.id, entry -> entry));
+        return ids.stream()
+                .map(byId::get)
+                .filter(Objects::nonNull)
+                .collect(Collectors.toList());
     }
 
-    public long getCount(Map<String, String> filters) throws DataAccessException {
+    /**
+     * Gets the number of exhibits in a feed with the given filters. This
+     * comes from the feed index, the tag catalog, or the count cache if
+     * possible, so it's cheap to call for every page.
+     */
+    public long getCount(FeedFilter filters) throws DataAccessException {
+        if (index.isLoaded()) {
+            LOG.info("Getting total exhibit count from the index");
+            return index.count(filters);
+        }
+        if (tagCatalog.isLoaded() && filters.getAuthor() == null && !filters.getTags().isEmpty()) {
+            LOG.info("Getting total exhibit count from the tag catalog");
+            return tagCatalog.count(filters.getTags(), filters.isMatchAll());
+        }
+        Long cached = counts.get(filters);
+        if (cached != null) {
+            return cached;
+        }
+        long stamp = counts.stamp();
+        long count = countExhibits(filters);
+        counts.put(filters, count, stamp);
+        return count;
+    }
+    
+    /** Like {@link #getCount}, but always counts in the DB */
+    public long countExhibits(FeedFilter filters) throws DataAccessException {
         LOG.info("Getting total exhibit count");
         
         StringBuilder query = new StringBuilder("SELECT COUNT(*) FROM exhibits e ");
@@ -220,7 +680,37 @@ public class ExhibitQueryBean {
         return count;
     }
 
+    /**
+     * Recounts every exhibit's supports and comments, and fixes any
+     * denormalized counts that don't match. Returns how many exhibits were
+     * fixed; normally that's 0.
+     * 
+     * This should run in a REPEATABLE READ transaction. Then the counts and
+     * the rows they're compared against come from the same snapshot, and a
+     * concurrent write to a drifted row makes this fail instead of
+     * overwriting the write's increment with a stale count.
+     */
+    public int reconcileCounts() {
+        LOG.info("Reconciling support and comment counts");
+        return sql.update(
+                "UPDATE exhibits e " +
+                "SET support_count = t.supports, comment_count = t.comments, version = e.version + 1 " +
+                "FROM (SELECT x.eid, COALESCE(s.n, 0) supports, COALESCE(c.n, 0) comments " +
+                "      FROM exhibits x " +
+                "      LEFT JOIN (SELECT exhibit, COUNT(*) n FROM supports GROUP BY exhibit) s " +
+                "             ON s.exhibit = x.eid " +
+                "      LEFT JOIN (SELECT exhibit, COUNT(*) n FROM comments GROUP BY exhibit) c " +
+                "             ON c.exhibit = x.eid) t " +
+                "WHERE e.eid = t.eid " +
+                "  AND (e.support_count <> t.supports OR e.comment_count <> t.comments)",
+                new MapSqlParameterSource()
+        );
+    }
+
     public List<String> getAllTags() {
+        if (tagCatalog.isLoaded()) {
+            return tagCatalog.getAllTags();
+        }
         LOG.info("Getting all tags");
         return sql.queryForList(
                 "SELECT DISTINCT UNNEST(tags) t FROM exhibits ORDER BY t ASC",
@@ -229,23 +719,44 @@ public class ExhibitQueryBean {
         );
     }
 
+    /** Gets how many exhibits have each tag, sorted by tag */
+    public Map<String, Integer> getTagCounts() {
+        if (tagCatalog.isLoaded()) {
+            return tagCatalog.getTagCounts();
+        }
+        LOG.info("Getting tag counts");
+        Map<String, Integer> counts = new LinkedHashMap<>();
+        sql.query(
+                "SELECT t, COUNT(*) n FROM exhibits, UNNEST(tags) t GROUP BY t ORDER BY t ASC",
+                new MapSqlParameterSource(),
+                rs -> {
+                    counts.put(rs.getString("t"), rs.getInt("n"));
+                }
+        );
+        return counts;
+    }
+
     /** Marks the exhibit by id as featured. If it is already, there is no effect */
     public boolean markFeatured(long eid) {
         LOG.info("Marking exhibit {} as featured", eid);
-        int count = sql.update("UPDATE exhibits " +
-                "SET featured = TRUE " +
-                "WHERE eid = :exhibit",
-                new MapSqlParameterSource("exhibit", eid));
-        return count == 1;
+        return setFeatured(eid, true);
     }
 
     /** Removes the featured status of an exhibit by id. If it is not featured, there is no effect */
     public boolean deleteFeatured(long eid) {
-        LOG.info("Marking exhibit {} as featured", eid);
-        int count = sql.update("UPDATE exhibits " +
-                        "SET featured = FALSE " +
-                        "WHERE eid = :exhibit",
-                new MapSqlParameterSource("exhibit", eid));
-        return count == 1;
+        LOG.info("Marking exhibit {} as not featured", eid);
+        return setFeatured(eid, false);
+    }
+    
+    private boolean setFeatured(long eid, boolean featured) {
+        List<ExhibitEvent> updated = sql.query("UPDATE exhibits " +
+                "SET featured = :featured, version = version + 1 " +
+                "WHERE eid = :exhibit " +
+                "RETURNING " + EVENT_COLUMNS,
+                new MapSqlParameterSource("exhibit", eid)
+                        .addValue("featured", featured),
+                (rs, rowNum) -> ExhibitEvent.fromRow(ExhibitEvent.Kind.UPDATED, rs));
+        updated.forEach(events::publishEvent);
+        return updated.size() == 1;
     }
 }
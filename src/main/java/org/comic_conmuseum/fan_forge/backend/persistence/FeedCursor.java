@@ -0,0 +1,57 @@
+package org.comic_conmuseum.fan_forge.backend.persistence;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+/**
+ * A position in a feed, for keyset pagination. It holds the sort key and ID
+ * of the last exhibit on a page, so the next page can start right after it
+ * no matter how many exhibits came before, or how many have been added since.
+ *
+ * Callers only ever see the encoded form, which is opaque to them.
+ */
+public class FeedCursor {
+    private final ExhibitQueryBean.FeedType type;
+    private final String key;
+    private final long eid;
+
+    FeedCursor(ExhibitQueryBean.FeedType type, String key, long eid) {
+        this.type = type;
+        this.key = key;
+        this.eid = eid;
+    }
+
+    public ExhibitQueryBean.FeedType getType() { return type; }
+    public String getKey() { return key; }
+    public long getEid() { return eid; }
+
+    public String encode() {
+        String raw = type.name() + "\n" + key + "\n" + eid;
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(raw.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Decodes a cursor previously returned by {@link #encode()}. Returns
+     * null if it's malformed in any way, including a sort key that isn't
+     * valid for the feed it claims to be from.
+     */
+    public static FeedCursor decode(String encoded) {
+        try {
+            String raw = new String(Base64.getUrlDecoder().decode(encoded), StandardCharsets.UTF_8);
+            String[] parts = raw.split("\n", -1);
+            if (parts.length != 3) {
+                return null;
+            }
+            ExhibitQueryBean.FeedType type = ExhibitQueryBean.FeedType.parse(parts[0]);
+            if (type == null) {
+                return null;
+            }
+            // make sure the key will be usable later, rather than failing in the middle of a query
+            type.parseKey(parts[1]);
+            return new FeedCursor(type, parts[1], Long.parseLong(parts[2]));
+        } catch (RuntimeException e) {
+            // bad base64, bad number, bad timestamp -- all the same to the caller
+            return null;
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package org.comic_conmuseum.fan_forge.backend.persistence;
+
+import java.util.*;
+import java.util.stream.Collectors;
+
+/**
+ * The filters that can be applied to a feed (and its count). Two filters
+ * that select the same exhibits are equal, so this can be used as a key.
+ */
+public class FeedFilter {
+    public static final FeedFilter NONE = new FeedFilter(Collections.emptyList(), true, null);
+
+    /** Sorted and without duplicates */
+    private final List<String> tags;
+    /** Whether exhibits need all of {@link #tags} (true) or just one of them (false) */
+    private final boolean matchAll;
+    private final String author;
+
+    private FeedFilter(List<String> tags, boolean matchAll, String author) {
+        this.tags = tags;
+        // with less than two tags, `all` and `any` are the same thing
+        this.matchAll = matchAll || tags.size() < 2;
+        this.author = author;
+    }
+
+    /**
+     * Picks the filters out of the request parameters, ignoring anything
+     * that isn't one. Tags can be given as `tag` (one) and/or `tags`
+     * (comma-separated), and `match=any` matches exhibits with any of them
+     * instead of all of them.
+     */
+    public static FeedFilter of(Map<String, String> params) {
+        SortedSet<String> tags = new TreeSet<>();
+        if (params.get("tag") != null) {
+            tags.add(params.get("tag"));
+        }
+        if (params.get("tags") != null) {
+            Arrays.stream(params.get("tags").split(","))
+                    .map(String::trim)
+                    .filter(tag -> !tag.isEmpty())
+                    .forEach(tags::add);
+        }
+        return new FeedFilter(
+                Collections.unmodifiableList(new ArrayList<>(tags)),
+                !"any".equalsIgnoreCase(params.get("match")),
+                params.get("author")
+        );
+    }
+
+    public List<String> getTags() { return tags; }
+    public boolean isMatchAll() { return matchAll; }
+    public String getAuthor() { return author; }
+
+    public boolean isEmpty() {
+        return tags.isEmpty() && author == null;
+    }
+
+    /** Whether an exhibit with the given author and tags would show up in a feed with this filter */
+    public boolean matches(String author, String[] tags) {
+        if (this.author != null && !this.author.equals(author)) {
+            return false;
+        }
+        if (this.tags.isEmpty()) {
+            return true;
+        }
+        List<String> has = tags == null ? Collections.emptyList() : Arrays.asList(tags);
+        return matchAll ? has.containsAll(this.tags) : this.tags.stream().anyMatch(has::contains);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof FeedFilter)) return false;
+        FeedFilter other = (FeedFilter) o;
+        return tags.equals(other.tags) && matchAll == other.matchAll && Objects.equals(author, other.author);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(tags, matchAll, author);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("FeedFilter(tags=%s %s, author=%s)",
+                matchAll ? "all" : "any",
+                tags.stream().collect(Collectors.joining(",", "[", "]")),
+                author);
+    }
+}
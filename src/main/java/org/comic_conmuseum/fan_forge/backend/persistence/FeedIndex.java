@@ -0,0 +1,527 @@
+package org.comic_conmuseum.fan_forge.backend.persistence;
+
+import org.comic_conmuseum.fan_forge.backend.persistence.events.ExhibitEvent;
+import org.comic_conmuseum.fan_forge.backend.persistence.events.SupportEvent;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.namedparam.MapSqlParameterSource;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.event.TransactionalEventListener;
+
+import java.lang.reflect.Array;
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.UnaryOperator;
+import java.util.stream.IntStream;
+
+/**
+ * An in-memory copy of just enough of each exhibit to order, filter and
+ * count the feeds without asking Postgres. ExhibitQueryBean uses it (when
+ * it's enabled) to pick the exhibits on a page, so the only query left is a
+ * primary key lookup for their contents.
+ *
+ * Everything is kept in primitive arrays in an immutable {@link Snapshot}.
+ * Writes build a new snapshot, sharing whichever arrays didn't change, and
+ * swap it in, so reads never wait on writes. Writes are applied as they're
+ * committed, and the whole thing is periodically rebuilt from the DB to pick
+ * up anything this node didn't see (like writes made through other nodes).
+ */
+@Component
+public class FeedIndex {
+    private static final Logger LOG = LoggerFactory.getLogger("persist.feed_index");
+
+    private static final int NO_AUTHOR = -1;
+    private static final int ANY = -2;
+
+    /** Some of a feed's eids, in order */
+    public static class Page {
+        public final List<Long> eids;
+        /** Null if this is the last page */
+        public final FeedCursor next;
+
+        private Page(List<Long> eids, FeedCursor next) {
+            this.eids = eids;
+            this.next = next;
+        }
+    }
+
+    /**
+     * Everything the index knows at one point in time. These are never
+     * modified once they've been published.
+     */
+    private static final class Snapshot {
+        // The catalog: one slot per exhibit, sorted by eid
+        final long[] ids;
+        final long[] created; // microseconds since the epoch, the same precision as Postgres
+        final boolean[] featured;
+        final int[][] tags; // sorted IDs from `tagIds`
+        final int[] authors; // IDs from `authorIds`
+        final int[] supports;
+        final long[] supportVersions; // the exhibit version each support count is from
+        // The eids in the order of each feed
+        final long[] recent;
+        final long[] popular;
+
+        Snapshot(long[] ids, long[] created, boolean[] featured, int[][] tags, int[] authors, int[] supports,
+                 long[] supportVersions, long[] recent, long[] popular) {
+            this.ids = ids;
+            this.created = created;
+            this.featured = featured;
+            this.tags = tags;
+            this.authors = authors;
+            this.supports = supports;
+            this.supportVersions = supportVersions;
+            this.recent = recent;
+            this.popular = popular;
+        }
+
+        int slotOf(long eid) {
+            return Arrays.binarySearch(ids, eid);
+        }
+
+        Snapshot withOrders(long[] recent, long[] popular) {
+            return new Snapshot(ids, created, featured, tags, authors, supports, supportVersions, recent, popular);
+        }
+    }
+
+    /** The feeds this can serve. Both are sorted by their key, descending, then eid, descending. */
+    private enum Order {
+        RECENT {
+            long key(Snapshot s, int slot) { return s.created[slot]; }
+            long[] of(Snapshot s) { return s.recent; }
+            long parseKey(String key) { return micros(Instant.parse(key)); }
+            String formatKey(long key) {
+                return Instant.ofEpochSecond(Math.floorDiv(key, 1_000_000), Math.floorMod(key, 1_000_000) * 1000)
+                        .toString();
+            }
+        },
+        POPULAR {
+            long key(Snapshot s, int slot) { return s.supports[slot]; }
+            long[] of(Snapshot s) { return s.popular; }
+            long parseKey(String key) { return Long.parseLong(key); }
+            String formatKey(long key) { return String.valueOf(key); }
+        };
+
+        abstract long key(Snapshot s, int slot);
+        abstract long[] of(Snapshot s);
+        // These have to match the formats of ExhibitQueryBean.FeedType's cursors
+        abstract long parseKey(String key);
+        abstract String formatKey(long key);
+
+        static Order of(ExhibitQueryBean.FeedType type) {
+            switch (type) {
+                case recent: return RECENT;
+                case popular: return POPULAR;
+                default: return null;
+            }
+        }
+    }
+
+    /** A FeedFilter, with its names resolved to the index's IDs */
+    private static final class Matcher {
+        /** Empty for any tags */
+        final int[] tags;
+        final boolean matchAll;
+        final int author;
+
+        Matcher(int[] tags, boolean matchAll, int author) {
+            this.tags = tags;
+            this.matchAll = matchAll;
+            this.author = author;
+        }
+
+        boolean matches(Snapshot s, int slot) {
+            if (author != ANY && s.authors[slot] != author) {
+                return false;
+            }
+            if (tags.length == 0) {
+                return true;
+            }
+            for (int tag : tags) {
+                boolean has = Arrays.binarySearch(s.tags[slot], tag) >= 0;
+                if (has != matchAll) {
+                    // a missing tag fails `all`, and a present one passes `any`
+                    return has;
+                }
+            }
+            return matchAll;
+        }
+    }
+
+    private final NamedParameterJdbcTemplate sql;
+    private final boolean enabled;
+
+    // Names are given small IDs so each exhibit's tags are just an int[]. These only ever grow.
+    private final Map<String, Integer> tagIds = new ConcurrentHashMap<>();
+    private final AtomicInteger nextTagId = new AtomicInteger();
+    private final Map<String, Integer> authorIds = new ConcurrentHashMap<>();
+    private final AtomicInteger nextAuthorId = new AtomicInteger();
+
+    private final Object writeLock = new Object();
+    /** Null until the first load */
+    private volatile Snapshot current;
+    /** Non-null while rebuilding; holds the writes to replay on top of the rebuilt snapshot */
+    private List<UnaryOperator<Snapshot>> pending;
+
+    @Autowired
+    public FeedIndex(NamedParameterJdbcTemplate sql, @Value("${ff.feed-index.enabled}") boolean enabled) {
+        this.sql = sql;
+        this.enabled = enabled;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public boolean isLoaded() {
+        return current != null;
+    }
+
+    /** Whether the index is ready to answer for the given feed */
+    public boolean canServe(ExhibitQueryBean.FeedType type) {
+        return current != null && Order.of(type) != null;
+    }
+
+    /**
+     * (Re)loads the whole index from the DB. Writes that come in while this
+     * is running are applied to both the old snapshot and the new one.
+     */
+    public void rebuild() {
+        if (!enabled) {
+            return;
+        }
+        synchronized (writeLock) {
+            if (pending != null) {
+                LOG.info("Feed index is already being rebuilt");
+                return;
+            }
+            pending = new ArrayList<>();
+        }
+        LOG.info("Rebuilding feed index");
+        Snapshot fresh;
+        try {
+            fresh = load();
+        } catch (RuntimeException e) {
+            synchronized (writeLock) {
+                pending = null;
+            }
+            throw e;
+        }
+        synchronized (writeLock) {
+            // anything that was committed while we were loading has to be applied on top
+            for (UnaryOperator<Snapshot> write : pending) {
+                fresh = write.apply(fresh);
+            }
+            pending = null;
+            current = fresh;
+        }
+        LOG.info("Feed index rebuilt with {} exhibits", fresh.ids.length);
+    }
+
+    private Snapshot load() {
+        List<Object[]> rows = sql.query(
+                "SELECT eid, created, featured, tags, author, support_count, version FROM exhibits ORDER BY eid",
+                new MapSqlParameterSource(),
+                (rs, rowNum) -> new Object[] {
+                        ExhibitEvent.fromRow(ExhibitEvent.Kind.CREATED, rs),
+                        rs.getInt("support_count"),
+                        rs.getLong("version")
+                }
+        );
+        int n = rows.size();
+        long[] ids = new long[n];
+        long[] created = new long[n];
+        boolean[] featured = new boolean[n];
+        int[][] tags = new int[n][];
+        int[] authors = new int[n];
+        int[] supports = new int[n];
+        long[] supportVersions = new long[n];
+        for (int i = 0; i < n; ++i) {
+            ExhibitEvent row = (ExhibitEvent) rows.get(i)[0];
+            ids[i] = row.eid;
+            created[i] = micros(row.created);
+            featured[i] = row.featured;
+            tags[i] = tagIdsOf(row.tags);
+            authors[i] = authorIdOf(row.author);
+            supports[i] = (Integer) rows.get(i)[1];
+            supportVersions[i] = (Long) rows.get(i)[2];
+        }
+        Snapshot catalog = new Snapshot(ids, created, featured, tags, authors, supports, supportVersions,
+                null, null);
+        return catalog.withOrders(sorted(catalog, Order.RECENT), sorted(catalog, Order.POPULAR));
+    }
+
+    private static long[] sorted(Snapshot s, Order o) {
+        return IntStream.range(0, s.ids.length)
+                .boxed()
+                .sorted((a, b) -> compare(o.key(s, a), s.ids[a], o.key(s, b), s.ids[b]))
+                .mapToLong(slot -> s.ids[slot])
+                .toArray();
+    }
+
+    public long count(FeedFilter filter) {
+        Snapshot s = current;
+        if (filter.isEmpty()) {
+            return s.ids.length;
+        }
+        Matcher m = matcher(filter);
+        if (m == null) {
+            return 0;
+        }
+        long count = 0;
+        for (int slot = 0; slot < s.ids.length; ++slot) {
+            if (m.matches(s, slot)) {
+                ++count;
+            }
+        }
+        return count;
+    }
+
+    /** Gets the eids on one page of a feed; see ExhibitQueryBean.getFeed for what the parameters mean */
+    public Page page(ExhibitQueryBean.FeedType type, FeedCursor after, long startIdx, int pageSize,
+                     FeedFilter filter) {
+        Snapshot s = current;
+        Order o = Order.of(type);
+        long[] order = o.of(s);
+        List<Long> eids = new ArrayList<>(pageSize);
+        Matcher m = matcher(filter);
+        if (m == null) {
+            return new Page(eids, null);
+        }
+
+        int pos;
+        long skip = 0;
+        if (after != null) {
+            pos = search(s, o, o.parseKey(after.getKey()), after.getEid(), true);
+        } else if (filter.isEmpty()) {
+            pos = (int) Math.min(startIdx, order.length);
+        } else {
+            pos = 0;
+            skip = startIdx;
+        }
+        for (; pos < order.length && eids.size() < pageSize; ++pos) {
+            if (!m.matches(s, s.slotOf(order[pos]))) {
+                continue;
+            }
+            if (skip > 0) {
+                --skip;
+                continue;
+            }
+            eids.add(order[pos]);
+        }
+
+        FeedCursor next = null;
+        if (!eids.isEmpty() && eids.size() == pageSize) {
+            long last = eids.get(eids.size() - 1);
+            next = new FeedCursor(type, o.formatKey(o.key(s, s.slotOf(last))), last);
+        }
+        return new Page(eids, next);
+    }
+
+    /** Returns null if nothing can match the filter, because a name in it has never been seen */
+    private Matcher matcher(FeedFilter filter) {
+        List<Integer> tags = new ArrayList<>();
+        for (String name : filter.getTags()) {
+            Integer id = tagIds.get(name);
+            if (id != null) {
+                tags.add(id);
+            } else if (filter.isMatchAll()) {
+                return null;
+            }
+        }
+        if (!filter.getTags().isEmpty() && tags.isEmpty()) {
+            return null;
+        }
+        int author = ANY;
+        if (filter.getAuthor() != null) {
+            Integer id = authorIds.get(filter.getAuthor());
+            if (id == null) return null;
+            author = id;
+        }
+        return new Matcher(tags.stream().mapToInt(Integer::intValue).toArray(), filter.isMatchAll(), author);
+    }
+
+    @TransactionalEventListener(fallbackExecution = true)
+    public void exhibitChanged(ExhibitEvent event) {
+        if (!enabled) {
+            return;
+        }
+        if (event.kind == ExhibitEvent.Kind.DELETED) {
+            write(s -> without(s, event.eid));
+        } else {
+            long created = micros(event.created);
+            int[] tags = tagIdsOf(event.tags);
+            int author = authorIdOf(event.author);
+            write(s -> withExhibit(s, event.eid, created, event.featured, tags, author));
+        }
+    }
+
+    @TransactionalEventListener(fallbackExecution = true)
+    public void supportChanged(SupportEvent event) {
+        if (!enabled || event.supportCount == null) {
+            return;
+        }
+        write(s -> withSupports(s, event.eid, event.supportCount, event.exhibitVersion));
+    }
+
+    private void write(UnaryOperator<Snapshot> write) {
+        synchronized (writeLock) {
+            if (pending != null) {
+                pending.add(write);
+            }
+            if (current != null) {
+                current = write.apply(current);
+            }
+        }
+    }
+
+    private static Snapshot withExhibit(Snapshot s, long eid, long created, boolean featured, int[] tags,
+                                        int author) {
+        int supports = 0;
+        long supportVersion = 0;
+        int existing = s.slotOf(eid);
+        if (existing >= 0) {
+            // the support count isn't part of the exhibit's own writes, so keep it
+            supports = s.supports[existing];
+            supportVersion = s.supportVersions[existing];
+            s = without(s, eid);
+        }
+        int slot = -s.slotOf(eid) - 1;
+        long[] newIds = grow(s.ids, slot);
+        newIds[slot] = eid;
+        long[] newCreated = grow(s.created, slot);
+        newCreated[slot] = created;
+        boolean[] newFeatured = grow(s.featured, slot);
+        newFeatured[slot] = featured;
+        int[][] newTags = grow(s.tags, slot);
+        newTags[slot] = tags;
+        int[] newAuthors = grow(s.authors, slot);
+        newAuthors[slot] = author;
+        int[] newSupports = grow(s.supports, slot);
+        newSupports[slot] = supports;
+        long[] newSupportVersions = grow(s.supportVersions, slot);
+        newSupportVersions[slot] = supportVersion;
+        Snapshot catalog = new Snapshot(newIds, newCreated, newFeatured, newTags, newAuthors, newSupports,
+                newSupportVersions, s.recent, s.popular);
+
+        // the search has to use the new catalog, since it needs the new exhibit's key
+        int recentAt = search(catalog, Order.RECENT, created, eid, false);
+        long[] recent = grow(s.recent, recentAt);
+        recent[recentAt] = eid;
+        int popularAt = search(catalog, Order.POPULAR, supports, eid, false);
+        long[] popular = grow(s.popular, popularAt);
+        popular[popularAt] = eid;
+        return catalog.withOrders(recent, popular);
+    }
+
+    private static Snapshot without(Snapshot s, long eid) {
+        int slot = s.slotOf(eid);
+        if (slot < 0) {
+            return s;
+        }
+        long[] recent = shrink(s.recent, search(s, Order.RECENT, s.created[slot], eid, false));
+        long[] popular = shrink(s.popular, search(s, Order.POPULAR, s.supports[slot], eid, false));
+        return new Snapshot(
+                shrink(s.ids, slot), shrink(s.created, slot), shrink(s.featured, slot),
+                shrink(s.tags, slot), shrink(s.authors, slot), shrink(s.supports, slot),
+                shrink(s.supportVersions, slot), recent, popular
+        );
+    }
+
+    private static Snapshot withSupports(Snapshot s, long eid, int count, long version) {
+        int slot = s.slotOf(eid);
+        // concurrent supports' events can arrive in either order, so a count older than ours is skipped
+        if (slot < 0 || version <= s.supportVersions[slot]) {
+            return s;
+        }
+        long[] supportVersions = s.supportVersions.clone();
+        supportVersions[slot] = version;
+        if (s.supports[slot] == count) {
+            return new Snapshot(s.ids, s.created, s.featured, s.tags, s.authors, s.supports, supportVersions,
+                    s.recent, s.popular);
+        }
+        long[] popular = shrink(s.popular, search(s, Order.POPULAR, s.supports[slot], eid, false));
+        int[] supports = s.supports.clone();
+        supports[slot] = count;
+        Snapshot updated = new Snapshot(s.ids, s.created, s.featured, s.tags, s.authors, supports,
+                supportVersions, s.recent, popular);
+        int popularAt = search(updated, Order.POPULAR, count, eid, false);
+        popular = grow(popular, popularAt);
+        popular[popularAt] = eid;
+        return updated.withOrders(s.recent, popular);
+    }
+
+    /** Negative if (ka, ea) comes before (kb, eb) in a feed */
+    private static int compare(long ka, long ea, long kb, long eb) {
+        int c = Long.compare(kb, ka);
+        return c != 0 ? c : Long.compare(eb, ea);
+    }
+
+    /**
+     * Finds where (key, eid) is, or would be, in the given order. If
+     * {@code strict}, finds the position right after it instead.
+     */
+    private static int search(Snapshot s, Order o, long key, long eid, boolean strict) {
+        long[] order = o.of(s);
+        int lo = 0;
+        int hi = order.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            long midEid = order[mid];
+            int c = compare(o.key(s, s.slotOf(midEid)), midEid, key, eid);
+            if (c < 0 || (strict && c == 0)) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    /** Copies the array with an empty space at the index, for the caller to fill */
+    @SuppressWarnings("unchecked")
+    private static <A> A grow(A array, int at) {
+        int length = Array.getLength(array);
+        A grown = (A) Array.newInstance(array.getClass().getComponentType(), length + 1);
+        System.arraycopy(array, 0, grown, 0, at);
+        System.arraycopy(array, at, grown, at + 1, length - at);
+        return grown;
+    }
+
+    /** Copies the array without the element at the index */
+    @SuppressWarnings("unchecked")
+    private static <A> A shrink(A array, int at) {
+        int length = Array.getLength(array);
+        A shrunk = (A) Array.newInstance(array.getClass().getComponentType(), length - 1);
+        System.arraycopy(array, 0, shrunk, 0, at);
+        System.arraycopy(array, at + 1, shrunk, at, length - at - 1);
+        return shrunk;
+    }
+
+    private int[] tagIdsOf(String[] tags) {
+        if (tags == null || tags.length == 0) {
+            return new int[0];
+        }
+        return Arrays.stream(tags)
+                .mapToInt(tag -> tagIds.computeIfAbsent(tag, t -> nextTagId.getAndIncrement()))
+                .sorted()
+                .distinct()
+                .toArray();
+    }
+
+    private int authorIdOf(String author) {
+        if (author == null) {
+            return NO_AUTHOR;
+        }
+        return authorIds.computeIfAbsent(author, a -> nextAuthorId.getAndIncrement());
+    }
+
+    private static long micros(Instant instant) {
+        return instant.getEpochSecond() * 1_000_000 + instant.getNano() / 1000;
+    }
+}
@@ -0,0 +1,268 @@
+package org.comic_conmuseum.fan_forge.backend.persistence;
+
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.S3Object;
+import org.comic_conmuseum.fan_forge.backend.persistence.events.ImageEvent;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.event.TransactionalEventListener;
+
+import javax.annotation.PreDestroy;
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Objects;
+import java.util.concurrent.*;
+
+/**
+ * Makes the smaller versions of images, one for each of
+ * {@link S3Bean#RENDITION_WIDTHS}, and stores them next to the original in
+ * S3. They're made in the background after every upload, on a small,
+ * bounded pool of threads since decoding images takes a lot of memory, and
+ * on demand for any that are missing (e.g. images from before this).
+ *
+ * Renditions are JPEGs, or PNGs if the original has transparency. An
+ * original that isn't wider than a rendition is just copied as that
+ * rendition, so every rendition always exists once they've been made.
+ */
+@Component
+public class ImageRenditions {
+    private static final Logger LOG = LoggerFactory.getLogger("persist.renditions");
+
+    private static final float JPEG_QUALITY = 0.85f;
+
+    /** Thrown when a missing rendition can't be made right now, because there's too much else going on */
+    public static class UnavailableException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        UnavailableException(String message, Throwable cause) {
+            super(message, cause);
+        }
+    }
+
+    private final S3Bean s3;
+    private final ThreadPoolExecutor workers;
+    private final long waitMillis;
+    private final ConcurrentMap<Long, CompletableFuture<Void>> rendering = new ConcurrentHashMap<>();
+
+    @Autowired
+    public ImageRenditions(S3Bean s3, @Value("${ff.renditions.threads}") int threads,
+                           @Value("${ff.renditions.queue-size}") int queueSize,
+                           @Value("${ff.renditions.wait-ms}") long waitMillis) {
+        this.s3 = s3;
+        this.waitMillis = waitMillis;
+        this.workers = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueSize), r -> {
+                    Thread thread = new Thread(r, "image-renditions");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+    }
+
+    /**
+     * Which rendition to send to a client that wants the image {@code requested}
+     * pixels wide: the smallest one that's at least that wide, or 0 for the
+     * original if they're all too small.
+     */
+    public static int widthFor(int requested) {
+        return Arrays.stream(S3Bean.RENDITION_WIDTHS)
+                .filter(width -> width >= requested)
+                .min()
+                .orElse(0);
+    }
+
+    /** The rendition, made first if it's missing */
+    public S3Object get(long id, int width) {
+        try {
+            return s3.getImage(S3Bean.renditionKey(id, width));
+        } catch (AmazonS3Exception e) {
+            if (e.getStatusCode() != 404) {
+                throw e;
+            }
+        }
+        awaitRender(id);
+        return s3.getImage(S3Bean.renditionKey(id, width));
+    }
+
+    /** The rendition's metadata, like {@link #get} */
+    public ObjectMetadata getMetadata(long id, int width) {
+        try {
+            return s3.getImageMetadata(S3Bean.renditionKey(id, width));
+        } catch (AmazonS3Exception e) {
+            if (e.getStatusCode() != 404) {
+                throw e;
+            }
+        }
+        awaitRender(id);
+        return s3.getImageMetadata(S3Bean.renditionKey(id, width));
+    }
+
+    @TransactionalEventListener(fallbackExecution = true)
+    public void imageUploaded(ImageEvent event) {
+        // anything still rendering is of the old image, so this can't just wait for that
+        rendering.remove(event.id);
+        render(event.id).whenComplete((done, e) -> {
+            if (e != null) {
+                LOG.warn("Failed to make renditions of image {}; they'll be made when they're asked for",
+                        event.id, e);
+            }
+        });
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        workers.shutdownNow();
+    }
+
+    private void awaitRender(long id) {
+        try {
+            render(id).get(waitMillis, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            // it keeps going in the background, but this request can't hold a thread that long
+            throw new UnavailableException("Timed out making renditions of " + id, e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new UnavailableException("Interrupted making renditions of " + id, e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof AmazonS3Exception) {
+                // most likely there's no such image
+                throw (AmazonS3Exception) e.getCause();
+            }
+            throw new UnavailableException("Failed to make renditions of " + id, e.getCause());
+        }
+    }
+
+    /** Renders all of the image's renditions, unless that's already happening */
+    private CompletableFuture<Void> render(long id) {
+        CompletableFuture<Void> mine = new CompletableFuture<>();
+        CompletableFuture<Void> theirs = rendering.putIfAbsent(id, mine);
+        if (theirs != null) {
+            return theirs;
+        }
+        try {
+            workers.execute(() -> {
+                try {
+                    renderNow(id);
+                    mine.complete(null);
+                } catch (Throwable e) {
+                    mine.completeExceptionally(e);
+                } finally {
+                    rendering.remove(id, mine);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            rendering.remove(id, mine);
+            mine.completeExceptionally(e);
+        }
+        return mine;
+    }
+
+    private void renderNow(long id) throws IOException {
+        long start = System.nanoTime();
+        String etag;
+        try (S3Object original = s3.getImage(S3Bean.imageKey(id));
+             InputStream in = original.getObjectContent();
+             ImageInputStream iis = ImageIO.createImageInputStream(in)) {
+            etag = original.getObjectMetadata().getETag();
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(iis);
+            if (!readers.hasNext()) {
+                throw new IOException("Image " + id + " isn't in a readable format");
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(iis, true, true);
+                renderAll(id, reader);
+            } finally {
+                reader.dispose();
+            }
+        }
+        // if it was replaced while this was going, these are of the old one; just make them again later
+        if (!Objects.equals(etag, s3.getImageMetadata(S3Bean.imageKey(id)).getETag())) {
+            LOG.info("Image {} changed while making its renditions; dropping them", id);
+            s3.deleteRenditions(id);
+            return;
+        }
+        LOG.info("Made renditions of image {} in {} ms", id, (System.nanoTime() - start) / 1_000_000);
+    }
+
+    private void renderAll(long id, ImageReader reader) throws IOException {
+        int originalWidth = reader.getWidth(0);
+        int[] widths = S3Bean.RENDITION_WIDTHS.clone();
+        Arrays.sort(widths);
+        int largestSmaller = 0;
+        for (int width : widths) {
+            if (width >= originalWidth) {
+                s3.copyToRendition(id, width);
+            } else {
+                largestSmaller = width;
+            }
+        }
+        if (largestSmaller == 0) {
+            return;
+        }
+        // Decoding only every nth pixel saves a lot of memory on big photos. It's never subsampled
+        // below the biggest rendition, so the renditions are still scaled down properly.
+        ImageReadParam param = reader.getDefaultReadParam();
+        int subsampling = Math.max(1, originalWidth / largestSmaller);
+        param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+        BufferedImage current = reader.read(0, param);
+        boolean alpha = current.getColorModel().hasAlpha();
+        // biggest first, each scaled down from the last, which looks better than one big jump
+        for (int i = widths.length - 1; i >= 0; --i) {
+            if (widths[i] >= originalWidth) {
+                continue;
+            }
+            current = scale(current, widths[i], alpha);
+            s3.putRendition(id, widths[i], encode(current, alpha), alpha ? "image/png" : "image/jpeg");
+        }
+    }
+
+    private static BufferedImage scale(BufferedImage image, int width, boolean alpha) {
+        int height = Math.max(1, Math.round((float) image.getHeight() * width / image.getWidth()));
+        BufferedImage scaled = new BufferedImage(width, height,
+                alpha ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = scaled.createGraphics();
+        try {
+            g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            g.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+            g.drawImage(image, 0, 0, width, height, null);
+        } finally {
+            g.dispose();
+        }
+        return scaled;
+    }
+
+    private static byte[] encode(BufferedImage image, boolean alpha) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ImageWriter writer = ImageIO.getImageWritersByFormatName(alpha ? "png" : "jpeg").next();
+        try (ImageOutputStream out = ImageIO.createImageOutputStream(bytes)) {
+            writer.setOutput(out);
+            ImageWriteParam param = writer.getDefaultWriteParam();
+            if (!alpha) {
+                param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+                param.setCompressionQuality(JPEG_QUALITY);
+            }
+            writer.write(null, new IIOImage(image, null, null), param);
+        } finally {
+            writer.dispose();
+        }
+        return bytes.toByteArray();
+    }
+}
@@ -0,0 +1,173 @@
+package org.comic_conmuseum.fan_forge.backend.persistence;
+
+import com.amazonaws.SdkClientException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.web.multipart.MultipartFile;
+
+import javax.annotation.PreDestroy;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.Collectors;
+
+/**
+ * Uploads images to S3 alongside a DB transaction, without holding the
+ * transaction (and its connection) open for the uploads. The images are
+ * staged first, several at once, before the transaction starts; once it's
+ * committed they're promoted to their real keys, and if it isn't they're
+ * thrown away:
+ *
+ * <pre>
+ * try (ImageUploads.Staged images = uploads.stage(files)) {
+ *     try (TransactionWrapper.Transaction t = transactions.start()) {
+ *         // ...
+ *         t.commit();
+ *     }
+ *     images.promote(ids);
+ * }
+ * </pre>
+ *
+ * Anything that still gets left behind, e.g. because the server died
+ * partway through, is cleaned up by StagedImageCleanupTask.
+ */
+@Component
+public class ImageUploads {
+    private static final Logger LOG = LoggerFactory.getLogger("persist.uploads");
+
+    /** Images that have been staged, but not promoted yet */
+    public class Staged implements Closeable {
+        private final List<String> keys;
+        private boolean completed;
+
+        private Staged(List<String> keys) {
+            this.keys = keys;
+            this.completed = false;
+        }
+
+        /**
+         * Moves the images to their IDs, in the same order as they were
+         * staged. Only call this once whatever refers to them is committed.
+         */
+        public void promote(List<Long> ids) {
+            if (ids.size() != keys.size()) {
+                throw new IllegalArgumentException("Staged " + keys.size() + " images but got " + ids.size() + " IDs");
+            }
+            // if any of these fail, whatever's left in staging is the cleanup task's problem
+            this.completed = true;
+            List<CompletableFuture<Void>> promoting = new ArrayList<>(keys.size());
+            for (int i = 0; i < keys.size(); ++i) {
+                String key = keys.get(i);
+                long id = ids.get(i);
+                promoting.add(CompletableFuture.runAsync(() -> s3.promoteImage(key, id), workers));
+            }
+            RuntimeException failure = null;
+            for (int i = 0; i < promoting.size(); ++i) {
+                try {
+                    promoting.get(i).join();
+                } catch (RuntimeException e) {
+                    LOG.error("Failed to promote {} to image {}", keys.get(i), ids.get(i), e);
+                    if (failure == null) {
+                        failure = e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : e;
+                    }
+                }
+            }
+            if (failure != null) {
+                throw failure;
+            }
+        }
+
+        /** Throws the images away, unless they've been promoted */
+        @Override
+        public void close() {
+            if (!this.completed) {
+                this.completed = true;
+                discard(keys);
+            }
+        }
+    }
+
+    private final S3Bean s3;
+    private final ExecutorService workers;
+
+    @Autowired
+    public ImageUploads(S3Bean s3, @Value("${ff.uploads.threads}") int threads) {
+        this.s3 = s3;
+        this.workers = Executors.newFixedThreadPool(threads, r -> {
+            Thread thread = new Thread(r, "image-uploads");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Checks and stages all the images at once. If any of them fail, the
+     * rest are thrown away once they're done, and the first failure is
+     * thrown, so an invalid image is still an InvalidImageException.
+     */
+    public Staged stage(List<MultipartFile> images) throws IOException {
+        List<CompletableFuture<String>> staging = images.stream()
+                .map(image -> CompletableFuture.supplyAsync(() -> {
+                    try {
+                        return s3.stageImage(image);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                }, workers))
+                .collect(Collectors.toList());
+        List<String> keys = new ArrayList<>(images.size());
+        try {
+            for (CompletableFuture<String> future : staging) {
+                keys.add(future.get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            discardWhenDone(staging);
+            throw new InterruptedIOException("Interrupted staging images");
+        } catch (ExecutionException e) {
+            discardWhenDone(staging);
+            Throwable cause = e.getCause();
+            if (cause instanceof UncheckedIOException) {
+                throw ((UncheckedIOException) cause).getCause();
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException(cause);
+        }
+        return new Staged(keys);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        workers.shutdown();
+    }
+
+    private void discardWhenDone(List<CompletableFuture<String>> staging) {
+        CompletableFuture.allOf(staging.toArray(new CompletableFuture<?>[0])).whenComplete((done, e) -> discard(
+                staging.stream()
+                        .filter(future -> !future.isCompletedExceptionally())
+                        .map(CompletableFuture::join)
+                        .collect(Collectors.toList())
+        ));
+    }
+
+    private void discard(List<String> keys) {
+        try {
+            s3.deleteStaged(keys);
+        } catch (SdkClientException e) {
+            // not a big deal; the cleanup task will get them later
+            LOG.warn("Failed to discard {} staged images", keys.size(), e);
+        }
+    }
+}
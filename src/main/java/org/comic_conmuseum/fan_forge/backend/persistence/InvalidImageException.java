@@ -0,0 +1,10 @@
+package org.comic_conmuseum.fan_forge.backend.persistence;
+
+/** Thrown by S3Bean when an uploaded image is rejected; the message says why */
+public class InvalidImageException extends IllegalArgumentException {
+    private static final long serialVersionUID = 1L;
+
+    public InvalidImageException(String message) {
+        super(message);
+    }
+}
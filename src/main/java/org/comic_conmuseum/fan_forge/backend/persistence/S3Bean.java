@@ -6,18 +6,29 @@ import com.amazonaws.client.builder.AwsClientBuilder;
 import com.amazonaws.services.s3.AmazonS3;
 import com.amazonaws.services.s3.AmazonS3ClientBuilder;
 import com.amazonaws.services.s3.model.*;
+import org.comic_conmuseum.fan_forge.backend.cache.ImageDiskCache;
+import org.comic_conmuseum.fan_forge.backend.persistence.events.ImageEvent;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.ApplicationEventPublisher;
 import org.springframework.stereotype.Repository;
 import org.springframework.web.multipart.MultipartFile;
 
 import javax.imageio.ImageIO;
 import javax.imageio.ImageReader;
 import javax.imageio.stream.ImageInputStream;
-import java.awt.image.BufferedImage;
+import javax.imageio.stream.MemoryCacheImageInputStream;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Date;
 import java.util.Iterator;
+import java.util.List;
+import java.util.UUID;
+import java.util.stream.Collectors;
 
 @Repository
 public class S3Bean {
@@ -25,18 +36,37 @@ public class S3Bean {
     
     @Value("${s3.bucket}") private String bucketName;
     
+    /** The widths of the smaller versions of every image; see ImageRenditions */
+    public static final int[] RENDITION_WIDTHS = { 256, 768, 1600 };
+    /** Where images wait while the request that uploaded them is still running; see {@link #stageImage} */
+    public static final String STAGING_PREFIX = "staging/";
+    
     private final AmazonS3 client;
+    private final ImageDiskCache imageCache;
+    private final ApplicationEventPublisher events;
+    private final long maxImageBytes;
+    private final long maxImagePixels;
+    private final int headerBytes;
     // TODO Probably also connect to DB to make sure we don't duplicate IDs?
-    // TODO Figure out how to make transactional (maybe request-scoped transaction manager?)
     
     public S3Bean(
             @Value("${s3.access-key}") String accessKey,
             @Value("${s3.secret-key}") String secretKey,
             @Value("${s3.url}") String url,
             @Value("${s3.region}") String region,
-            @Value("${s3.bucket}") String bucketName
+            @Value("${s3.bucket}") String bucketName,
+            @Value("${ff.images.max-bytes}") long maxImageBytes,
+            @Value("${ff.images.max-pixels}") long maxImagePixels,
+            @Value("${ff.images.header-bytes}") int headerBytes,
+            ImageDiskCache imageCache,
+            ApplicationEventPublisher events
     ) {
         this.bucketName = bucketName;
+        this.maxImageBytes = maxImageBytes;
+        this.maxImagePixels = maxImagePixels;
+        this.headerBytes = headerBytes;
+        this.imageCache = imageCache;
+        this.events = events;
     
         this.client = AmazonS3ClientBuilder.standard()
                 .withCredentials(new AWSStaticCredentialsProvider(
@@ -80,34 +110,154 @@ public class S3Bean {
         }
     }
 
-    public S3Object getImage(long id) {
-        LOG.info("Getting image of ID {}", id);
-        return client.getObject(bucketName, String.valueOf(id));
+    /** The key of the image as it was uploaded */
+    public static String imageKey(long id) {
+        return String.valueOf(id);
+    }
+    
+    /** The key of the image's rendition with one of the {@link #RENDITION_WIDTHS} */
+    public static String renditionKey(long id, int width) {
+        return id + "-w" + width;
+    }
+    
+    public S3Object getImage(String key) {
+        LOG.info("Getting image {}", key);
+        return client.getObject(bucketName, key);
+    }
+    
+    /** Just the image's metadata (type, size, ETag, etc.), without downloading it */
+    public ObjectMetadata getImageMetadata(String key) {
+        LOG.info("Getting metadata of image {}", key);
+        return client.getObjectMetadata(bucketName, key);
+    }
+    
+    /** Part of the image, from byte {@code start} to {@code end}, inclusive */
+    public S3Object getImage(String key, long start, long end) {
+        LOG.info("Getting bytes {}-{} of image {}", start, end, key);
+        return client.getObject(new GetObjectRequest(bucketName, key).withRange(start, end));
+    }
+    
+    /**
+     * Checks the image and uploads it under a new, temporary key, which is
+     * returned. Nothing can see it there; {@link #promoteImage} moves it to
+     * where it belongs once whatever it's for has been committed. Anything
+     * left in staging is cleaned up by StagedImageCleanupTask.
+     */
+    public String stageImage(MultipartFile image) throws IOException {
+        String key = STAGING_PREFIX + UUID.randomUUID();
+        LOG.info("Staging image as {}", key);
+        // The upload is only read once: the header is read for the validation, and then replayed from
+        // the buffer for the upload, straight into the rest of the stream.
+        try (InputStream in = new BufferedInputStream(image.getInputStream(), headerBytes)) {
+            in.mark(headerBytes);
+            validateImage(image, in);
+            InputStream upload = in;
+            try {
+                in.reset();
+            } catch (IOException e) {
+                // the header was bigger than the buffer, so there's nothing for it but to start over
+                LOG.info("Image header was over {} bytes; reading the upload again", headerBytes);
+                upload = image.getInputStream();
+            }
+            try (InputStream body = upload) {
+                client.putObject(bucketName, key, body, getMetadata(image));
+            }
+        }
+        return key;
+    }
+    
+    /** Moves a staged image to ID {@code id}, replacing whatever image was there */
+    public void promoteImage(String stagingKey, long id) {
+        LOG.info("Promoting {} to image {}", stagingKey, id);
+        // a copy within the bucket happens entirely inside S3, so it's quick no matter how big the image is
+        client.copyObject(bucketName, stagingKey, bucketName, imageKey(id));
+        client.deleteObject(bucketName, stagingKey);
+        imageCache.invalidate(imageKey(id));
+        // the old renditions are of the old image; they're remade from the new one
+        deleteRenditions(id);
+        events.publishEvent(new ImageEvent(id));
+    }
+    
+    /** Throws away staged images that won't be promoted */
+    public void deleteStaged(List<String> stagingKeys) {
+        if (stagingKeys.isEmpty()) {
+            return;
+        }
+        LOG.info("Discarding {} staged images", stagingKeys.size());
+        client.deleteObjects(new DeleteObjectsRequest(bucketName)
+                .withKeys(stagingKeys.toArray(new String[0]))
+                .withQuiet(true));
+    }
+    
+    /**
+     * Deletes the staged images that were uploaded before {@code cutoff},
+     * which by then were never going to be promoted, e.g. because the server
+     * died partway through a request. Returns how many were deleted.
+     */
+    public int deleteStagedBefore(Date cutoff) {
+        int deleted = 0;
+        ObjectListing listing = client.listObjects(bucketName, STAGING_PREFIX);
+        while (true) {
+            List<String> old = listing.getObjectSummaries().stream()
+                    .filter(summary -> summary.getLastModified().before(cutoff))
+                    .map(S3ObjectSummary::getKey)
+                    .collect(Collectors.toList());
+            deleteStaged(old);
+            deleted += old.size();
+            if (!listing.isTruncated()) {
+                return deleted;
+            }
+            listing = client.listNextBatchOfObjects(listing);
+        }
     }
     
-    public void putImage(long id, MultipartFile image) throws IOException {
-        LOG.info("Storing image to ID {}", id);
-        validateImage(image);
-        client.putObject(
-                bucketName,
-                String.valueOf(id),
-                image.getInputStream(),
-                getMetadata(image));
+    public void deleteRenditions(long id) {
+        List<String> renditions = Arrays.stream(RENDITION_WIDTHS)
+                .mapToObj(width -> renditionKey(id, width))
+                .collect(Collectors.toList());
+        client.deleteObjects(new DeleteObjectsRequest(bucketName)
+                .withKeys(renditions.toArray(new String[0]))
+                .withQuiet(true));
+        renditions.forEach(imageCache::invalidate);
     }
     
-    private static void validateImage(MultipartFile image) throws IOException {
+    /** Stores a rendition made by ImageRenditions */
+    public void putRendition(long id, int width, byte[] data, String contentType) {
+        LOG.info("Storing {}px rendition of image {}", width, id);
+        ObjectMetadata metadata = new ObjectMetadata();
+        metadata.setContentType(contentType);
+        metadata.setContentLength(data.length);
+        client.putObject(bucketName, renditionKey(id, width), new ByteArrayInputStream(data), metadata);
+    }
+    
+    /** Uses the original as the rendition, for when it's already small enough */
+    public void copyToRendition(long id, int width) {
+        LOG.info("Using image {} as its own {}px rendition", id, width);
+        client.copyObject(bucketName, imageKey(id), bucketName, renditionKey(id, width));
+    }
+    
+    /**
+     * Checks that the image is what its Content-Type says, and isn't too
+     * big, from just its header: the image itself is never decoded. Reads
+     * as little of {@code in} as it can, and doesn't close it.
+     */
+    private void validateImage(MultipartFile image, InputStream in) throws IOException {
         if (image.getContentType() == null) {
-            throw new IllegalArgumentException("Content-Type part header must be specified");
+            throw new InvalidImageException("Content-Type part header must be specified");
+        }
+        if (image.getSize() > maxImageBytes) {
+            LOG.info("Rejected upload of {} bytes", image.getSize());
+            throw new InvalidImageException("Image is too large -- at most " + maxImageBytes + " bytes");
         }
         
         // TODO Check for whitelisted Content-Type
         
-        ImageInputStream iis = ImageIO.createImageInputStream(image.getInputStream());
+        ImageInputStream iis = new MemoryCacheImageInputStream(in);
         Iterator<ImageReader> readers = ImageIO.getImageReaders(iis);
         
         if (!readers.hasNext()) {
             LOG.info("Image didn't match any formats");
-            throw new IllegalArgumentException("Invalid image uploaded");
+            throw new InvalidImageException("Invalid image uploaded");
         }
         
         String expectedType = image.getContentType().split("/")[1];
@@ -123,13 +273,24 @@ public class S3Bean {
         }
         if (matchingReader == null) {
             LOG.info("Rejected upload; expected {} but didn't get it", expectedType);
-            throw new IllegalArgumentException("Content-Type didn't match image content");
+            throw new InvalidImageException("Content-Type didn't match image content");
         }
         
-        matchingReader.setInput(iis);
-        BufferedImage fullyRead = matchingReader.read(0);
-        if (fullyRead == null) {
-            throw new IllegalArgumentException("Invalid image uploaded");
+        try {
+            matchingReader.setInput(iis, true, true);
+            // these only need the header, not the pixels
+            long pixels = (long) matchingReader.getWidth(0) * matchingReader.getHeight(0);
+            if (pixels > maxImagePixels) {
+                LOG.info("Rejected upload of {} pixels", pixels);
+                throw new InvalidImageException("Image is too large -- at most " + maxImagePixels + " pixels");
+            }
+        } catch (IOException e) {
+            LOG.info("Couldn't read image header", e);
+            throw new InvalidImageException("Invalid image uploaded");
+        } finally {
+            matchingReader.dispose();
+            // doesn't close `in`
+            iis.close();
         }
     }
     
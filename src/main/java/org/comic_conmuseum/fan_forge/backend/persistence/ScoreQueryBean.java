@@ -0,0 +1,122 @@
+package org.comic_conmuseum.fan_forge.backend.persistence;
+
+import org.comic_conmuseum.fan_forge.backend.persistence.events.ScoresEvent;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.jdbc.core.namedparam.MapSqlParameterSource;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+import org.springframework.stereotype.Repository;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Keeps the precomputed scores behind the `trending` and `comments` feeds
+ * up to date.
+ * 
+ * Both are time-decayed activity counts: every event (a support, a comment,
+ * or for trending, the exhibit being created) is worth 1 when it happens,
+ * and half as much every {@code ff.scores.half-life-hours}. Comments count
+ * for {@code ff.scores.comment-weight} of a support in the trending score.
+ * 
+ * Decaying everything towards "now" would mean rewriting every score all
+ * the time. Instead, each event is scored by how far after the epoch it
+ * happened, growing instead of decaying. Every score would be multiplied
+ * by the same amount to get the decayed version, so the order is the same,
+ * and a score only changes when its exhibit has new activity. The numbers
+ * get huge, so the log of the sum is stored instead.
+ */
+@Repository
+public class ScoreQueryBean {
+    private static final Logger LOG = LoggerFactory.getLogger("persist.scores");
+
+    private final NamedParameterJdbcTemplate sql;
+    private final ApplicationEventPublisher events;
+    private final double halfLifeSeconds;
+    private final double commentWeight;
+
+    @Autowired
+    public ScoreQueryBean(NamedParameterJdbcTemplate sql, ApplicationEventPublisher events,
+                          @Value("${ff.scores.half-life-hours}") double halfLifeHours,
+                          @Value("${ff.scores.comment-weight}") double commentWeight) {
+        this.sql = sql;
+        this.events = events;
+        this.halfLifeSeconds = halfLifeHours * 3600;
+        this.commentWeight = commentWeight;
+    }
+
+    /** The log-score of an event at `created`, as SQL */
+    private static final String EVENT_SCORE = "EXTRACT(EPOCH FROM created) / :halfLife * LN(2)";
+
+    /**
+     * Adds up event scores from {@code events} (which must have `eid` and
+     * `x` columns) into one log-score per exhibit. The max is pulled out
+     * before exponentiating, so the sum can't overflow.
+     */
+    private static String logSumExp(String events) {
+        return "SELECT eid, MAX(m) + LN(SUM(EXP(x - m))) score " +
+               "FROM (SELECT eid, x, MAX(x) OVER (PARTITION BY eid) m FROM (" + events + ") ev) w " +
+               "GROUP BY eid";
+    }
+
+    /**
+     * Rescores up to {@code batchSize} of the exhibits that have had
+     * activity since they were last scored, and returns how many it did.
+     * 
+     * This should NOT be run in a transaction. Each statement has to see
+     * everything committed before it started: the versions are read first,
+     * so anything the scores miss will still show up as stale next time.
+     */
+    public int refreshScores(int batchSize) {
+        List<Long> eids = new ArrayList<>();
+        List<Integer> versions = new ArrayList<>();
+        sql.query(
+                "SELECT eid, activity_version FROM exhibits " +
+                "WHERE activity_version <> scored_version " +
+                "LIMIT :limit",
+                new MapSqlParameterSource("limit", batchSize),
+                rs -> {
+                    eids.add(rs.getLong("eid"));
+                    versions.add(rs.getInt("activity_version"));
+                }
+        );
+        if (eids.isEmpty()) {
+            return 0;
+        }
+        LOG.info("Rescoring {} exhibits", eids.size());
+
+        MapSqlParameterSource params = new MapSqlParameterSource()
+                .addValue("eids", eids)
+                .addValue("eidArray", eids.stream().mapToInt(Long::intValue).toArray())
+                .addValue("versions", versions.stream().mapToInt(Integer::intValue).toArray())
+                .addValue("halfLife", halfLifeSeconds)
+                .addValue("commentWeight", commentWeight);
+        // scored_version is set to the version we read, not the current one, so anything
+        // committed since then leaves the exhibit stale for the next run
+        sql.update(
+                "UPDATE exhibits e " +
+                "SET trending_score = COALESCE(t.score, '-Infinity'), " +
+                "    discussion_score = COALESCE(d.score, '-Infinity'), " +
+                "    scored_version = v.version " +
+                "FROM UNNEST(CAST(:eidArray AS INTEGER[]), CAST(:versions AS INTEGER[])) v(eid, version) " +
+                "LEFT JOIN (" + logSumExp(
+                        "SELECT eid, " + EVENT_SCORE + " x FROM exhibits WHERE eid IN (:eids) " +
+                        "UNION ALL " +
+                        "SELECT exhibit, " + EVENT_SCORE + " FROM supports WHERE exhibit IN (:eids) " +
+                        "UNION ALL " +
+                        "SELECT exhibit, " + EVENT_SCORE + " + LN(:commentWeight) " +
+                        "FROM comments WHERE exhibit IN (:eids)"
+                ) + ") t ON t.eid = v.eid " +
+                "LEFT JOIN (" + logSumExp(
+                        "SELECT exhibit eid, " + EVENT_SCORE + " x FROM comments WHERE exhibit IN (:eids)"
+                ) + ") d ON d.eid = v.eid " +
+                "WHERE e.eid = v.eid",
+                params
+        );
+        events.publishEvent(new ScoresEvent(eids));
+        return eids.size();
+    }
+}
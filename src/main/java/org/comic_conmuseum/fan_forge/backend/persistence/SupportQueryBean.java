@@ -1,18 +1,34 @@
 package org.comic_conmuseum.fan_forge.backend.persistence;
 
+import org.comic_conmuseum.fan_forge.backend.cache.SupportedSetCache;
+import org.comic_conmuseum.fan_forge.backend.cache.WriteStamps;
 import org.comic_conmuseum.fan_forge.backend.endpoints.responses.SurveyAggregate;
 import org.comic_conmuseum.fan_forge.backend.models.Exhibit;
 import org.comic_conmuseum.fan_forge.backend.models.Survey;
 import org.comic_conmuseum.fan_forge.backend.models.User;
+import org.comic_conmuseum.fan_forge.backend.persistence.events.SupportEvent;
+import org.postgresql.PGConnection;
+import org.postgresql.copy.CopyIn;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.ApplicationEventPublisher;
 import org.springframework.dao.DuplicateKeyException;
 import org.springframework.dao.EmptyResultDataAccessException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowCallbackHandler;
 import org.springframework.jdbc.core.namedparam.MapSqlParameterSource;
 import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+import org.springframework.jdbc.datasource.DataSourceUtils;
 import org.springframework.stereotype.Repository;
 
+import javax.sql.DataSource;
+import java.io.Closeable;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
 import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
 import java.util.*;
 import java.util.stream.Collectors;
 
@@ -21,15 +37,40 @@ public class SupportQueryBean {
     private static final Logger LOG = LoggerFactory.getLogger("persist.support");
     
     private final NamedParameterJdbcTemplate sql;
+    private final SupportedSetCache supportedSets;
+    private final SurveyAggregateStore aggregates;
+    private final ApplicationEventPublisher events;
+    /** Like {@link #sql}, but fetches rows in batches instead of all at once; see {@link #exportSurveys} */
+    private final NamedParameterJdbcTemplate streaming;
 
-    public SupportQueryBean(NamedParameterJdbcTemplate sql) {
+    public SupportQueryBean(NamedParameterJdbcTemplate sql, SupportedSetCache supportedSets,
+                            SurveyAggregateStore aggregates, ApplicationEventPublisher events,
+                            @Value("${ff.export.fetch-size}") int exportFetchSize) {
         this.sql = sql;
+        JdbcTemplate streamingTemplate = new JdbcTemplate(sql.getJdbcTemplate().getDataSource());
+        streamingTemplate.setFetchSize(exportFetchSize);
+        this.streaming = new NamedParameterJdbcTemplate(streamingTemplate);
+        this.supportedSets = supportedSets;
+        this.aggregates = aggregates;
+        this.events = events;
     }
     
-    private static final String POPULATIONS_COLUMN_DEFS =
+    /** Packs the old one-BOOLEAN-per-population columns into the bitmask, then drops them */
+    private static final String MIGRATE_POPULATIONS =
+            "DO $$ BEGIN " +
+            "    IF EXISTS (SELECT 1 FROM information_schema.columns " +
+            "               WHERE table_name = 'supports' AND column_name = '" +
+                                Survey.Population.values()[0].column() + "') THEN " +
+            "        UPDATE supports SET populations = " +
             Arrays.stream(Survey.Population.values())
-                    .map(pop -> pop.column() + " BOOLEAN NOT NULL")
-                    .collect(Collectors.joining(", "));
+                    .map(pop -> "(CASE WHEN " + pop.column() + " THEN " + pop.bit() + " ELSE 0 END)")
+                    .collect(Collectors.joining(" | ")) + "; " +
+            "        ALTER TABLE supports " +
+            Arrays.stream(Survey.Population.values())
+                    .map(pop -> "DROP COLUMN " + pop.column())
+                    .collect(Collectors.joining(", ")) + "; " +
+            "    END IF; " +
+            "END $$";
     public void setupTable(boolean reset) {
         LOG.info("Creating tables; resetting: {}", reset);
         if (reset) {
@@ -42,10 +83,17 @@ public class SupportQueryBean {
                 "    supporter TEXT ,"+//TODO SERIAL REFERENCES users(uid) ON DELETE CASCADE ON UPDATE CASCADE, " +
                 "    visits INTEGER NOT NULL CHECK (1 <= visits AND visits <= 10), " +
                 "    rating INTEGER NOT NULL CHECK (0 <= rating AND rating <= 10), " +
-                "    " + POPULATIONS_COLUMN_DEFS + ", " +
+                // one bit per Survey.Population
+                "    populations SMALLINT NOT NULL DEFAULT 0, " +
                 // we shouldn't have the same person supporting the same exhibit more than once
                 "    CONSTRAINT support_once_per_exhibit UNIQUE (exhibit, supporter)" +
-                ")",
+                ");" +
+                // For the trending score. Supports from before this column existed all get the
+                // time it was added, which is as good a guess as any.
+                "ALTER TABLE supports ADD COLUMN IF NOT EXISTS created TIMESTAMP WITH TIME ZONE NOT NULL " +
+                "    DEFAULT NOW();" +
+                "ALTER TABLE supports ADD COLUMN IF NOT EXISTS populations SMALLINT NOT NULL DEFAULT 0;" +
+                MIGRATE_POPULATIONS,
                 PreparedStatement::execute
         );
     }
@@ -60,19 +108,34 @@ public class SupportQueryBean {
             return null;
         }
         LOG.info("Checking if {} supports {}", user.getUsername(), exhibit);
-
-
-        Integer countSupported = sql.queryForObject(
-                "SELECT COUNT(*) FROM supports " +
-                        "WHERE exhibit = :eid AND supporter = :supporter",
-                new MapSqlParameterSource("eid" ,exhibit)
-                        .addValue("supporter", user.getId()),
-                Integer.class
-        );
-        if (countSupported == null) {
-            throw new EmptyResultDataAccessException("Somehow no COUNT(*) returned", 1);
+        return getSupportedSet(user).contains(exhibit);
+    }
+    
+    /**
+     * Gets every exhibit the user supports, or null if they're anonymous.
+     * It's usually cached, so this is the cheap way to check lots of
+     * exhibits at once.
+     */
+    public SupportedSetCache.SupportedSet getSupportedSet(User user) {
+        if (user.isAnonymous()) {
+            return null;
         }
-        return countSupported == 1;
+        SupportedSetCache.SupportedSet cached = supportedSets.get(user.getId());
+        if (cached != null) {
+            return cached;
+        }
+        LOG.info("Loading supported exhibits of {}", user.getUsername());
+        long stamp = supportedSets.stamp(user.getId());
+        int[] eids = sql.queryForList(
+                "SELECT exhibit FROM supports " +
+                "WHERE supporter = :supporter " +
+                "ORDER BY exhibit",
+                new MapSqlParameterSource("supporter", user.getId()),
+                Integer.class
+        ).stream().mapToInt(Integer::intValue).toArray();
+        SupportedSetCache.SupportedSet set = new SupportedSetCache.SupportedSet(eids);
+        supportedSets.put(user.getId(), set, stamp);
+        return set;
     }
     
     public long getSupporterCount(Exhibit exhibit) {
@@ -82,54 +145,74 @@ public class SupportQueryBean {
     private long getSupporterCount(long exhibit) {
         LOG.info("Getting supporter count for {}", exhibit);
         Long supporterCount = sql.queryForObject(
-                "SELECT COUNT(*) FROM supports WHERE exhibit = :eid",
+                "SELECT support_count FROM exhibits WHERE eid = :eid",
                 new MapSqlParameterSource("eid", exhibit),
                 Long.class
         );
         if (supporterCount == null) {
-            throw new EmptyResultDataAccessException("Somehow no COUNT(*) returned", 1);
+            throw new EmptyResultDataAccessException("Somehow no support_count returned", 1);
         }
         return supporterCount;
     }
     
-    private static final String POPULATIONS_COLUMN_NAMES =
-            Arrays.stream(Survey.Population.values())
-                    .map(Survey.Population::column)
-                    .collect(Collectors.joining(", "));
-    private static final String POPULATIONS_PARAMS =
-            Arrays.stream(Survey.Population.values())
-                    .map(Survey.Population::sqlParam)
-                    .collect(Collectors.joining(", "));
-    private static final String POPULATIONS_SETTERS =
-            Arrays.stream(Survey.Population.values())
-                    // pop_foo = COALESCE(:pop_foo, pop_foo);
-                    .map(p -> p.column() + " = COALESCE(" + p.sqlParam() + ", s." + p.column() + ")")
-                    .collect(Collectors.joining(", "));
+    @SuppressWarnings("try")
     public boolean createSupport(long eid, Survey survey) {
         LOG.info("{} supporting {}", survey.supporter, eid);
-        try {
+        try (WriteStamps.Write w = aggregates.writing(eid)) {
             MapSqlParameterSource params =
                     new MapSqlParameterSource("exhibit", eid)
                             .addValue("supporter", survey.supporter)
                             .addValue("visits", survey.visits)
-                            .addValue("rating", survey.rating);
-            for (Survey.Population pop : Survey.Population.values()) {
-                params.addValue(pop.column(), survey.populations.get(pop.display()));
-            }
-            sql.update(
-                    "INSERT INTO supports AS s (" +
-                    "    exhibit, supporter, visits, rating, " + POPULATIONS_COLUMN_NAMES +
-                    ") " +
-                    "VALUES (" +
-                    "    :exhibit, :supporter, :visits, :rating, " +
-                    "    " + POPULATIONS_PARAMS +
+                            .addValue("rating", survey.rating)
+                            .addValue("populations", survey.populationMask());
+            // The count is bumped in the same statement so it can never be out of step with the
+            // insert. (xmax = 0) is only true for rows that were inserted rather than updated.
+            // `old` sees the row as it was before the statement, so it's the survey being replaced.
+            SupportEvent event = sql.queryForObject(
+                    "WITH old AS ( " +
+                    "    SELECT " + SURVEY_COLUMNS + " FROM supports " +
+                    "    WHERE exhibit = :exhibit AND supporter = :supporter " +
+                    "), upserted AS ( " +
+                    "    INSERT INTO supports AS s (" +
+                    "        exhibit, supporter, visits, rating, populations" +
+                    "    ) " +
+                    "    VALUES (" +
+                    "        :exhibit, :supporter, :visits, :rating, :populations" +
+                    "    ) " +
+                    "    ON CONFLICT ON CONSTRAINT support_once_per_exhibit DO UPDATE SET " +
+                    "      visits = COALESCE(:visits, s.visits), " +
+                    "      rating = COALESCE(:rating, s.rating), " +
+                    "      populations = COALESCE(:populations, s.populations) " +
+                    "    RETURNING exhibit, (xmax = 0) AS inserted, " + SURVEY_COLUMNS +
+                    // only touches the exhibit if the support was new, since otherwise the count isn't changed
+                    "), counted AS ( " +
+                    "    UPDATE exhibits " +
+                    "    SET support_count = support_count + 1, activity_version = activity_version + 1, " +
+                    "        version = version + 1 " +
+                    "    FROM upserted WHERE eid = upserted.exhibit AND upserted.inserted " +
+                    "    RETURNING " + EVENT_COLUMNS +
                     ") " +
-                    "ON CONFLICT ON CONSTRAINT support_once_per_exhibit DO UPDATE SET " +
-                    "  visits = COALESCE(:visits, s.visits), " +
-                    "  rating = COALESCE(:rating, s.rating), " +
-                    POPULATIONS_SETTERS,
-                    params
+                    "SELECT u.inserted, c.*, " +
+                    "       " + surveyColumns("u.", "") + ", " + surveyColumns("o.", "old_") + " " +
+                    "FROM upserted u " +
+                    "LEFT JOIN old o ON TRUE " +
+                    "LEFT JOIN counted c ON TRUE",
+                    params,
+                    (rs, rowNum) -> {
+                        boolean inserted = rs.getBoolean("inserted");
+                        return new SupportEvent(
+                                inserted ? SupportEvent.Kind.CREATED : SupportEvent.Kind.UPDATED,
+                                eid, survey.supporter,
+                                inserted ? rs.getInt("support_count") : null,
+                                inserted ? rs.getLong("version") : null,
+                                rs.getString("author"),
+                                tagsOf(rs),
+                                surveyFromRow(rs, "", survey.supporter),
+                                surveyFromRow(rs, "old_", survey.supporter)
+                        );
+                    }
             );
+            events.publishEvent(event);
             return true;
         } catch (DuplicateKeyException e) {
             LOG.info("Already supporting that exhibit");
@@ -149,18 +232,267 @@ public class SupportQueryBean {
         );
     }
     
+    @SuppressWarnings("try")
     public boolean deleteSupport(long eid, User by) {
         LOG.info("User {} no longer supports {}", by.getUsername(), eid);
-        int removed = sql.update(
-                "DELETE FROM supports " +
-                "WHERE exhibit = :eid AND supporter = :supporter",
-                new MapSqlParameterSource("eid", eid)
-                        .addValue("supporter", by.getId())
-                        .addValue("isAdmin", by.isAdmin())
+        // one exhibit row is updated per support deleted, so this has one row per support deleted
+        List<SupportEvent> deleted;
+        try (WriteStamps.Write w = aggregates.writing(eid)) {
+            deleted = sql.query(
+                    "WITH deleted AS ( " +
+                    "    DELETE FROM supports " +
+                    "    WHERE exhibit = :eid AND supporter = :supporter " +
+                    "    RETURNING exhibit, " + SURVEY_COLUMNS +
+                    ") " +
+                    "UPDATE exhibits " +
+                    "SET support_count = support_count - 1, activity_version = activity_version + 1, " +
+                    "    version = version + 1 " +
+                    "FROM deleted WHERE eid = deleted.exhibit " +
+                    "RETURNING " + EVENT_COLUMNS + ", " + surveyColumns("deleted.", "old_"),
+                    new MapSqlParameterSource("eid", eid)
+                            .addValue("supporter", by.getId())
+                            .addValue("isAdmin", by.isAdmin()),
+                    (rs, rowNum) -> new SupportEvent(
+                            SupportEvent.Kind.DELETED, eid, by.getId(),
+                            rs.getInt("support_count"),
+                            rs.getLong("version"),
+                            rs.getString("author"),
+                            tagsOf(rs),
+                            null,
+                            surveyFromRow(rs, "old_", by.getId())
+                    )
+            );
+            deleted.forEach(events::publishEvent);
+        }
+        return deleted.size() == 1;
+    }
+    
+    /** The columns of the updated exhibit row needed for the SupportEvent */
+    private static final String EVENT_COLUMNS =
+            "exhibits.support_count, exhibits.version, exhibits.author, exhibits.tags";
+    
+    private static final String SURVEY_COLUMNS = "visits, rating, populations";
+    
+    /** The survey columns from {@code table}, renamed with {@code prefix} so there can be two sets in a row */
+    private static String surveyColumns(String table, String prefix) {
+        return Arrays.stream(SURVEY_COLUMNS.split(", "))
+                .map(column -> table + column + " " + prefix + column)
+                .collect(Collectors.joining(", "));
+    }
+    
+    /** Reads the columns from {@link #surveyColumns}, or returns null if they're null (from an outer join) */
+    private static Survey surveyFromRow(ResultSet rs, String prefix, String supporter) throws SQLException {
+        if (rs.getObject(prefix + "visits") == null) {
+            return null;
+        }
+        return new Survey(
+                rs.getInt(prefix + "visits"),
+                Survey.Population.fromMask(rs.getInt(prefix + "populations")),
+                rs.getInt(prefix + "rating"),
+                supporter
         );
-        return removed == 1;
+    }
+    
+    private static String[] tagsOf(ResultSet rs) throws SQLException {
+        return rs.getArray("tags") == null ? null : (String[]) rs.getArray("tags").getArray();
     }
 
+    /**
+     * Passes every survey of the exhibit, or of the exhibits with the tag,
+     * or of all exhibits if both are null, to {@code handler}, one row at a
+     * time. The rows are fetched in batches, so memory use doesn't depend on
+     * how many there are -- but Postgres only does that inside a
+     * transaction, so this has to be called in one.
+     *
+     * The columns are sid, exhibit, supporter, created, visits, rating, and
+     * then the populations' columns, in order.
+     */
+    public void exportSurveys(Long exhibit, String tag, RowCallbackHandler handler) {
+        LOG.info("Exporting surveys of exhibit {}, tag {}", exhibit, tag);
+        MapSqlParameterSource params = new MapSqlParameterSource();
+        StringBuilder query = new StringBuilder(
+                "SELECT s.sid, s.exhibit, s.supporter, s.created, s.visits, s.rating, " +
+                // unpacked, so the export doesn't depend on how they're stored
+                Arrays.stream(Survey.Population.values())
+                        .map(pop -> "(s.populations & " + pop.bit() + ") <> 0 AS " + pop.column())
+                        .collect(Collectors.joining(", ")) + " " +
+                "FROM supports s "
+        );
+        if (tag != null) {
+            // same as the feed filters, so it can use the GIN index
+            query.append("JOIN exhibits e ON e.eid = s.exhibit AND e.tags @> CAST(:tags AS TEXT[]) ");
+            params.addValue("tags", new String[] { tag });
+        }
+        if (exhibit != null) {
+            query.append("WHERE s.exhibit = :exhibit ");
+            params.addValue("exhibit", exhibit);
+        }
+        query.append("ORDER BY s.sid");
+        streaming.query(query.toString(), params, handler);
+    }
+    
+    public enum ImportStatus { CREATED, UPDATED, SUPERSEDED, MISSING_EXHIBIT }
+    
+    /**
+     * Starts a bulk import of surveys. They're streamed into a temporary
+     * staging table with COPY as they're added, then merged into supports
+     * all at once by {@link SurveyImport#finish}. This has to be called in a
+     * transaction, and the import has to be closed before it's committed or
+     * rolled back.
+     */
+    public SurveyImport startImport() throws SQLException {
+        LOG.info("Starting survey import");
+        sql.execute(
+                "CREATE TEMP TABLE supports_import ( " +
+                "    line INTEGER PRIMARY KEY, " +
+                "    exhibit INTEGER NOT NULL, " +
+                "    supporter TEXT NOT NULL, " +
+                "    visits INTEGER NOT NULL, " +
+                "    rating INTEGER NOT NULL, " +
+                "    populations SMALLINT NOT NULL " +
+                ") ON COMMIT DROP",
+                PreparedStatement::execute
+        );
+        // the same connection as the transaction, so it's the same temp table
+        DataSource dataSource = sql.getJdbcTemplate().getDataSource();
+        Connection conn = DataSourceUtils.getConnection(dataSource);
+        try {
+            CopyIn copy = conn.unwrap(PGConnection.class).getCopyAPI().copyIn(
+                    "COPY supports_import (line, exhibit, supporter, visits, rating, populations) " +
+                    "FROM STDIN WITH (FORMAT csv)"
+            );
+            return new SurveyImport(dataSource, conn, copy);
+        } catch (SQLException | RuntimeException e) {
+            DataSourceUtils.releaseConnection(conn, dataSource);
+            throw e;
+        }
+    }
+    
+    public class SurveyImport implements Closeable {
+        private final DataSource dataSource;
+        private final Connection conn;
+        private final CopyIn copy;
+        private final StringBuilder row = new StringBuilder();
+        
+        private SurveyImport(DataSource dataSource, Connection conn, CopyIn copy) {
+            this.dataSource = dataSource;
+            this.conn = conn;
+            this.copy = copy;
+        }
+        
+        /** Adds a survey, which has to have already been validated */
+        public void add(int line, long exhibit, Survey survey) throws SQLException {
+            row.setLength(0);
+            row.append(line).append(',')
+                    .append(exhibit).append(',')
+                    // always quoted, since an unquoted empty string would be NULL
+                    .append('"').append(survey.supporter.replace("\"", "\"\"")).append("\",")
+                    .append(survey.visits).append(',')
+                    .append(survey.rating).append(',')
+                    .append(survey.populationMask()).append('\n');
+            byte[] bytes = row.toString().getBytes(StandardCharsets.UTF_8);
+            copy.writeToCopy(bytes, 0, bytes.length);
+        }
+        
+        /**
+         * Merges everything that was added into supports, and returns what
+         * happened to each line. If a supporter is in there more than once
+         * for the same exhibit, the last one wins.
+         */
+        @SuppressWarnings("try")
+        public SortedMap<Integer, ImportStatus> finish() throws SQLException {
+            long rows = copy.endCopy();
+            LOG.info("Merging {} imported surveys", rows);
+            SortedMap<Integer, ImportStatus> statuses = new TreeMap<>();
+            List<SupportEvent> merged = new ArrayList<>();
+            // which exhibits are in the import isn't known until the merge
+            try (WriteStamps.Write w = aggregates.writingAll()) {
+                sql.query(
+                        "WITH batch AS ( " +
+                        // ON CONFLICT can't touch the same row twice in one statement, hence the DISTINCT ON
+                        "    SELECT DISTINCT ON (i.exhibit, i.supporter) i.* " +
+                        "    FROM supports_import i " +
+                        "    JOIN exhibits e ON e.eid = i.exhibit " +
+                        "    ORDER BY i.exhibit, i.supporter, i.line DESC " +
+                        "), old AS ( " +
+                        "    SELECT s.exhibit, s.supporter, " + surveyColumns("s.", "") + " " +
+                        "    FROM supports s JOIN batch b ON b.exhibit = s.exhibit AND b.supporter = s.supporter " +
+                        "), upserted AS ( " +
+                        "    INSERT INTO supports AS s (exhibit, supporter, visits, rating, populations) " +
+                        "    SELECT exhibit, supporter, visits, rating, populations FROM batch " +
+                        "    ON CONFLICT ON CONSTRAINT support_once_per_exhibit DO UPDATE SET " +
+                        "      visits = EXCLUDED.visits, " +
+                        "      rating = EXCLUDED.rating, " +
+                        "      populations = EXCLUDED.populations " +
+                        "    RETURNING exhibit, supporter, (xmax = 0) AS inserted, " + SURVEY_COLUMNS +
+                        "), counted AS ( " +
+                        "    UPDATE exhibits " +
+                        "    SET support_count = support_count + n.added, activity_version = activity_version + 1, " +
+                        "        version = version + 1 " +
+                        "    FROM (SELECT exhibit, COUNT(*) added FROM upserted WHERE inserted GROUP BY exhibit) n " +
+                        "    WHERE eid = n.exhibit " +
+                        "    RETURNING eid, " + EVENT_COLUMNS +
+                        ") " +
+                        "SELECT i.line, i.exhibit, i.supporter, (e.eid IS NULL) missing, b.line IS NOT NULL merged, " +
+                        "       u.inserted, c.support_count, c.version, c.author, c.tags, " +
+                        "       " + surveyColumns("u.", "") + ", " + surveyColumns("o.", "old_") + " " +
+                        "FROM supports_import i " +
+                        "LEFT JOIN exhibits e ON e.eid = i.exhibit " +
+                        "LEFT JOIN batch b ON b.line = i.line " +
+                        "LEFT JOIN upserted u ON b.line IS NOT NULL " +
+                        "      AND u.exhibit = i.exhibit AND u.supporter = i.supporter " +
+                        "LEFT JOIN old o ON b.line IS NOT NULL " +
+                        "      AND o.exhibit = i.exhibit AND o.supporter = i.supporter " +
+                        "LEFT JOIN counted c ON b.line IS NOT NULL AND c.eid = i.exhibit",
+                        new MapSqlParameterSource(),
+                        rs -> {
+                            int line = rs.getInt("line");
+                            if (rs.getBoolean("missing")) {
+                                statuses.put(line, ImportStatus.MISSING_EXHIBIT);
+                                return;
+                            }
+                            if (!rs.getBoolean("merged")) {
+                                statuses.put(line, ImportStatus.SUPERSEDED);
+                                return;
+                            }
+                            boolean inserted = rs.getBoolean("inserted");
+                            String supporter = rs.getString("supporter");
+                            statuses.put(line, inserted ? ImportStatus.CREATED : ImportStatus.UPDATED);
+                            merged.add(new SupportEvent(
+                                    inserted ? SupportEvent.Kind.CREATED : SupportEvent.Kind.UPDATED,
+                                    rs.getLong("exhibit"), supporter,
+                                    inserted ? rs.getInt("support_count") : null,
+                                    inserted ? rs.getLong("version") : null,
+                                    rs.getString("author"),
+                                    tagsOf(rs),
+                                    surveyFromRow(rs, "", supporter),
+                                    surveyFromRow(rs, "old_", supporter)
+                            ));
+                        }
+                );
+                merged.forEach(events::publishEvent);
+            }
+            return statuses;
+        }
+        
+        /**
+         * Cancels the COPY if it's still going, so the transaction can be
+         * rolled back, and gives back the connection
+         */
+        @Override
+        public void close() {
+            try {
+                if (copy.isActive()) {
+                    copy.cancelCopy();
+                }
+            } catch (SQLException e) {
+                LOG.warn("Failed to cancel survey import", e);
+            } finally {
+                DataSourceUtils.releaseConnection(conn, dataSource);
+            }
+        }
+    }
+    
     public List<Survey> getSurveys(long eid) {
         LOG.info("Getting surveys for exhibit {}", eid);
 
@@ -172,68 +504,80 @@ public class SupportQueryBean {
         );
     }
     
-    private int getNPS(long eid, long total) {
-        Long npsCount = sql.queryForObject(
-                "SELECT SUM(CASE " +
-                "         WHEN rating >= 9 THEN 1 " +
-                "         WHEN rating <= 6 THEN -1 " +
-                "         ELSE 0 " +
-                "       END) " +
-                "FROM supports " +
-                "WHERE exhibit = :eid",
-                new MapSqlParameterSource("eid", eid),
-                Long.class
-        );
-        if (npsCount == null) {
-            throw new EmptyResultDataAccessException("Somehow no COUNT(*) returned", 1);
+    public int getNPS(long eid) {
+        return getAggregateData(eid).nps;
+    }
+    
+    public SurveyAggregate getAggregateData(long eid) {
+        SurveyAggregate aggregate = getAggregateData(Collections.singletonList(eid)).get(eid);
+        if (aggregate == null) {
+            throw new EmptyResultDataAccessException("No exhibit with ID " + eid, 1);
         }
-        return Math.round(100 * (float) npsCount / total);
+        return aggregate;
     }
     
-    public int getNPS(long eid) {
-        return getNPS(eid, this.getSupporterCount(eid));
+    /**
+     * Gets the survey aggregates of each of the exhibits. They normally all
+     * come from the SurveyAggregateStore; any that aren't there yet are
+     * loaded in one pass over their supports. Any that don't exist are left
+     * out.
+     */
+    public Map<Long, SurveyAggregate> getAggregateData(List<Long> eids) {
+        Map<Long, SurveyCounts> found = new HashMap<>();
+        List<Long> missing = new ArrayList<>();
+        for (long eid : eids) {
+            SurveyCounts counts = aggregates.get(eid);
+            if (counts != null) {
+                found.put(eid, counts);
+            } else {
+                missing.add(eid);
+            }
+        }
+        if (!missing.isEmpty()) {
+            Map<Long, Long> stamps = new HashMap<>();
+            missing.forEach(eid -> stamps.put(eid, aggregates.stamp(eid)));
+            loadSurveyCounts(missing).forEach((eid, counts) -> {
+                aggregates.put(eid, counts, stamps.get(eid));
+                found.put(eid, counts);
+            });
+        }
+        Map<Long, SurveyAggregate> result = new LinkedHashMap<>();
+        for (long eid : eids) {
+            if (found.containsKey(eid)) {
+                result.put(eid, found.get(eid).toAggregate());
+            }
+        }
+        return result;
     }
     
-    private static final String POPULATION_COUNT_QUERIES =
-            Arrays.stream(Survey.Population.values())
-                    .map(p -> "COUNT(sid) FILTER (WHERE " + p.column() + ") AS " + p.column() + "_count")
-                    .collect(Collectors.joining(", "));
-    public SurveyAggregate getAggregateData(long eid) {
-        LOG.info("Getting survey aggregate data for {}", eid);
-        
-        MapSqlParameterSource params = new MapSqlParameterSource("eid", eid);
-        
-        long total = this.getSupporterCount(eid);
-        
-        int nps = this.getNPS(eid, total);
-        
-        Long[] expVisitCounts = sql.queryForList(
-                "SELECT COUNT(sid) AS count " +
-                "FROM GENERATE_SERIES(0, 9) r " +
-                "LEFT JOIN supports ON visits = r " +
-                "      AND exhibit = :eid " +
-                "GROUP BY r " +
-                "ORDER BY r ",
-                params,
-                Long.class
-        ).toArray(new Long[0]);
-        double[] expVisitPercents = Arrays.stream(expVisitCounts)
-                .mapToDouble(l -> (double) l / total)
-                .toArray();
-        
-        Map<String, Float> expPopulations = sql.queryForObject(
-                "SELECT " + POPULATION_COUNT_QUERIES + " " +
-                "FROM supports WHERE exhibit = :eid",
+    /** Reloads the SurveyAggregateStore from scratch */
+    public void rebuildSurveyAggregates() {
+        long[] stamps = aggregates.stampAll();
+        aggregates.replaceAll(loadSurveyCounts(null), stamps);
+    }
+    
+    /** Counts the surveys of the exhibits (or all of them, if null) in one pass */
+    private Map<Long, SurveyCounts> loadSurveyCounts(List<Long> eids) {
+        LOG.info("Loading survey counts for {}", eids == null ? "all exhibits" : eids);
+        MapSqlParameterSource params = new MapSqlParameterSource();
+        String where = "";
+        if (eids != null) {
+            where = "WHERE e.eid = ANY(CAST(:eids AS BIGINT[])) ";
+            params.addValue("eids", eids.stream().mapToLong(Long::longValue).distinct().toArray());
+        }
+        Map<Long, SurveyCounts> loaded = new HashMap<>();
+        sql.query(
+                "SELECT e.eid, " + SurveyCounts.AGGREGATE_COLUMNS + " " +
+                "FROM exhibits e " +
+                // a LEFT JOIN so exhibits without any supports still get a row
+                "LEFT JOIN supports s ON s.exhibit = e.eid " +
+                where +
+                "GROUP BY e.eid",
                 params,
-                (rs, rn) -> {
-                    Map<String, Float> ret = new HashMap<>();
-                    for (Survey.Population pop : Survey.Population.values()) {
-                        ret.put(pop.display(), (float) rs.getLong(pop.column() + "_count") / total);
-                    }
-                    return ret;
+                rs -> {
+                    loaded.put(rs.getLong("eid"), SurveyCounts.fromRow(rs));
                 }
         );
-        
-        return new SurveyAggregate(total, nps, expVisitPercents, expPopulations);
+        return loaded;
     }
 }
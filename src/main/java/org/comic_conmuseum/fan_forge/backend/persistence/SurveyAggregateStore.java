@@ -0,0 +1,121 @@
+package org.comic_conmuseum.fan_forge.backend.persistence;
+
+import org.comic_conmuseum.fan_forge.backend.cache.WriteStamps;
+import org.comic_conmuseum.fan_forge.backend.persistence.events.ExhibitEvent;
+import org.comic_conmuseum.fan_forge.backend.persistence.events.SupportEvent;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.event.TransactionalEventListener;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Every exhibit's survey counts, kept in memory and adjusted by each
+ * SupportEvent, so the admin dashboard never has to scan supports.
+ *
+ * An exhibit that isn't here (new, or written while its counts were being
+ * loaded) is loaded by SupportQueryBean the next time it's asked for. Like
+ * the caches, that uses stamps, so counts that might have missed a write
+ * are never kept. Since the counts are adjusted rather than dropped, the
+ * writers also have to call {@link #writing} first; see WriteStamps.
+ */
+@Component
+public class SurveyAggregateStore {
+    private static final Logger LOG = LoggerFactory.getLogger("persist.survey_aggregates");
+
+    private static final int STAMP_STRIPES = 64;
+
+    private volatile Map<Long, SurveyCounts> counts = new ConcurrentHashMap<>();
+    private final WriteStamps stamps = new WriteStamps(STAMP_STRIPES);
+
+    /** The exhibit's counts, or null if they haven't been loaded */
+    public SurveyCounts get(long eid) {
+        return counts.get(eid);
+    }
+
+    /**
+     * Call this <em>before</em> loading an exhibit's counts from the DB, and
+     * pass it to {@link #put}.
+     */
+    public long stamp(long eid) {
+        return stamps.stamp(stripeOf(eid));
+    }
+
+    /** Like {@link #stamp}, for all exhibits at once, for {@link #replaceAll} */
+    public long[] stampAll() {
+        long[] all = new long[STAMP_STRIPES];
+        for (int i = 0; i < STAMP_STRIPES; ++i) {
+            all[i] = stamps.stamp(i);
+        }
+        return all;
+    }
+
+    /**
+     * Call this <em>before</em> writing any of the exhibit's supports, and
+     * close it after publishing the SupportEvent.
+     */
+    public WriteStamps.Write writing(long eid) {
+        return stamps.writing(stripeOf(eid));
+    }
+
+    /** Like {@link #writing}, for when it's not known ahead of time which exhibits will be written */
+    public WriteStamps.Write writingAll() {
+        return stamps.writingAll();
+    }
+
+    /** Keeps the counts, unless the exhibit's supports may have changed since {@code stamp} was taken */
+    public void put(long eid, SurveyCounts loaded, long stamp) {
+        int stripe = stripeOf(eid);
+        if (!stamps.unchanged(stripe, stamp)) {
+            return;
+        }
+        counts.put(eid, loaded);
+        // a write may have slipped in between the check and the put
+        if (!stamps.unchanged(stripe, stamp)) {
+            counts.remove(eid);
+        }
+    }
+
+    /**
+     * Replaces everything with a fresh load, except the exhibits that may
+     * have been written since {@code stamps} was taken; those are left to
+     * be loaded on demand.
+     */
+    public void replaceAll(Map<Long, SurveyCounts> loaded, long[] stamps) {
+        Map<Long, SurveyCounts> fresh = new ConcurrentHashMap<>(loaded);
+        fresh.keySet().removeIf(eid -> !this.stamps.unchanged(stripeOf(eid), stamps[stripeOf(eid)]));
+        counts = fresh;
+        // same as in put
+        fresh.keySet().removeIf(eid -> !this.stamps.unchanged(stripeOf(eid), stamps[stripeOf(eid)]));
+        LOG.info("Loaded survey counts of {} exhibits", fresh.size());
+    }
+
+    @TransactionalEventListener(fallbackExecution = true)
+    public void supportChanged(SupportEvent event) {
+        // the stamps were already bumped by the writer; see writing
+        SurveyCounts c = counts.get(event.eid);
+        if (c == null) {
+            return;
+        }
+        if (event.previousSurvey != null) {
+            c.add(event.previousSurvey, -1);
+        }
+        if (event.survey != null) {
+            c.add(event.survey, 1);
+        }
+    }
+
+    @TransactionalEventListener(fallbackExecution = true)
+    public void exhibitChanged(ExhibitEvent event) {
+        if (event.kind == ExhibitEvent.Kind.DELETED) {
+            stamps.bump(stripeOf(event.eid));
+            counts.remove(event.eid);
+        }
+    }
+
+    private static int stripeOf(long eid) {
+        return (int) ((eid & 0x7fffffffffffffffL) % STAMP_STRIPES);
+    }
+}
@@ -0,0 +1,105 @@
+package org.comic_conmuseum.fan_forge.backend.persistence;
+
+import org.comic_conmuseum.fan_forge.backend.endpoints.responses.SurveyAggregate;
+import org.comic_conmuseum.fan_forge.backend.models.Survey;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.*;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+/**
+ * The raw counts behind an exhibit's {@link SurveyAggregate}. They can be
+ * adjusted one survey at a time, so SurveyAggregateStore can keep them up
+ * to date without going back to the DB.
+ */
+public class SurveyCounts {
+    /** The range of `visits`, as in the supports table's CHECK */
+    public static final int MIN_VISITS = 1;
+    public static final int MAX_VISITS = 10;
+
+    private static final Survey.Population[] POPULATIONS = Survey.Population.values();
+
+    /** The names of the counts' columns, as read by {@link #fromRow} */
+    static final List<String> COLUMNS = Collections.unmodifiableList(Stream.of(
+            Stream.of("total", "promoters", "detractors"),
+            IntStream.rangeClosed(MIN_VISITS, MAX_VISITS).mapToObj(v -> "visits_" + v),
+            Arrays.stream(POPULATIONS).map(p -> p.display() + "_count")
+    ).flatMap(Function.identity()).collect(Collectors.toList()));
+
+    /** The counts over the supports aliased `s`, as SQL, named as in {@link #COLUMNS} */
+    static final String AGGREGATE_COLUMNS =
+            "COUNT(s.sid) total, " +
+            "COUNT(s.sid) FILTER (WHERE s.rating >= 9) promoters, " +
+            "COUNT(s.sid) FILTER (WHERE s.rating <= 6) detractors, " +
+            IntStream.rangeClosed(MIN_VISITS, MAX_VISITS)
+                    .mapToObj(v -> "COUNT(s.sid) FILTER (WHERE s.visits = " + v + ") visits_" + v)
+                    .collect(Collectors.joining(", ")) + ", " +
+            Arrays.stream(POPULATIONS)
+                    .map(p -> "COUNT(s.sid) FILTER (WHERE (s.populations & " + p.bit() + ") <> 0) " +
+                              p.display() + "_count")
+                    .collect(Collectors.joining(", "));
+
+    private long total;
+    private long promoters;
+    private long passives;
+    private long detractors;
+    /** Index 0 is MIN_VISITS */
+    private final long[] visits = new long[MAX_VISITS - MIN_VISITS + 1];
+    /** In the order of {@link Survey.Population#values()} */
+    private final long[] populations = new long[POPULATIONS.length];
+
+    /** Reads the columns named in {@link #COLUMNS} */
+    static SurveyCounts fromRow(ResultSet rs) throws SQLException {
+        SurveyCounts counts = new SurveyCounts();
+        counts.total = rs.getLong("total");
+        counts.promoters = rs.getLong("promoters");
+        counts.detractors = rs.getLong("detractors");
+        counts.passives = counts.total - counts.promoters - counts.detractors;
+        for (int v = MIN_VISITS; v <= MAX_VISITS; ++v) {
+            counts.visits[v - MIN_VISITS] = rs.getLong("visits_" + v);
+        }
+        for (int i = 0; i < POPULATIONS.length; ++i) {
+            counts.populations[i] = rs.getLong(POPULATIONS[i].display() + "_count");
+        }
+        return counts;
+    }
+
+    /** Counts the survey in, or out if {@code sign} is -1 */
+    synchronized void add(Survey survey, int sign) {
+        total += sign;
+        if (survey.rating >= 9) {
+            promoters += sign;
+        } else if (survey.rating <= 6) {
+            detractors += sign;
+        } else {
+            passives += sign;
+        }
+        if (MIN_VISITS <= survey.visits && survey.visits <= MAX_VISITS) {
+            visits[survey.visits - MIN_VISITS] += sign;
+        }
+        for (int i = 0; i < POPULATIONS.length; ++i) {
+            if (survey.populations.contains(POPULATIONS[i])) {
+                populations[i] += sign;
+            }
+        }
+    }
+
+    public synchronized SurveyAggregate toAggregate() {
+        // without any supports, everything's 0 rather than NaN
+        double divisor = Math.max(total, 1);
+        int nps = (int) Math.round(100 * (promoters - detractors) / divisor);
+        double[] visitsExpected = new double[visits.length];
+        for (int i = 0; i < visits.length; ++i) {
+            visitsExpected[i] = visits[i] / divisor;
+        }
+        Map<String, Float> populationsExpected = new HashMap<>();
+        for (int i = 0; i < POPULATIONS.length; ++i) {
+            populationsExpected.put(POPULATIONS[i].display(), (float) (populations[i] / divisor));
+        }
+        return new SurveyAggregate(total, nps, visitsExpected, populationsExpected);
+    }
+}
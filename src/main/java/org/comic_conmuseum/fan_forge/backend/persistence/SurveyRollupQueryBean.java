@@ -0,0 +1,207 @@
+package org.comic_conmuseum.fan_forge.backend.persistence;
+
+import org.comic_conmuseum.fan_forge.backend.endpoints.responses.SurveyRollup;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jdbc.core.namedparam.MapSqlParameterSource;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+import org.springframework.stereotype.Repository;
+
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * Keeps survey counts rolled up per exhibit per day, so analytics across
+ * lots of exhibits only ever read a row per exhibit-day instead of every
+ * support.
+ * 
+ * A trigger on supports marks the exhibit as dirty whenever one of its
+ * supports changes, however that happens, and {@link #refreshRollups}
+ * recounts the dirty ones. Each dirty mark has a version, bumped by every
+ * change, which works the same way as the scores' activity_version: a mark
+ * is only cleared if it hasn't changed since the refresh read it.
+ */
+@Repository
+public class SurveyRollupQueryBean {
+    private static final Logger LOG = LoggerFactory.getLogger("persist.survey_rollups");
+
+    public enum Grouping { ALL, TAG, AUTHOR }
+
+    private final NamedParameterJdbcTemplate sql;
+    private final TransactionWrapper transactions;
+
+    @Autowired
+    public SurveyRollupQueryBean(NamedParameterJdbcTemplate sql, TransactionWrapper transactions) {
+        this.sql = sql;
+        this.transactions = transactions;
+    }
+
+    /** The day a support was made on, in UTC so it doesn't depend on the DB's time zone */
+    private static final String DAY = "CAST(s.created AT TIME ZONE 'UTC' AS DATE)";
+
+    /** Marks the exhibit as dirty, or bumps its mark if it already is */
+    private static String markDirty(String exhibit) {
+        return "INSERT INTO survey_rollups_dirty (exhibit) VALUES (" + exhibit + ") " +
+               "ON CONFLICT (exhibit) DO UPDATE SET version = survey_rollups_dirty.version + 1; ";
+    }
+
+    /** Has to be run after the supports table is set up */
+    public void setupTable(boolean reset) {
+        LOG.info("Creating tables; resetting: {}", reset);
+        if (reset) {
+            this.sql.execute("DROP TABLE IF EXISTS survey_rollups, survey_rollups_dirty CASCADE",
+                    PreparedStatement::execute);
+        }
+        this.sql.execute(
+                "CREATE TABLE IF NOT EXISTS survey_rollups ( " +
+                "    exhibit INTEGER REFERENCES exhibits(eid) ON DELETE CASCADE ON UPDATE CASCADE, " +
+                "    day DATE NOT NULL, " +
+                SurveyCounts.COLUMNS.stream()
+                        .map(column -> "    " + column + " INTEGER NOT NULL, ")
+                        .collect(Collectors.joining()) +
+                "    PRIMARY KEY (exhibit, day)" +
+                ");" +
+                // for the date range, when grouping across exhibits
+                "CREATE INDEX IF NOT EXISTS survey_rollups_day ON survey_rollups (day);" +
+                // no foreign key, since deleting an exhibit cascades to its supports, which marks it
+                "CREATE TABLE IF NOT EXISTS survey_rollups_dirty ( " +
+                "    exhibit INTEGER PRIMARY KEY, " +
+                "    version INTEGER NOT NULL DEFAULT 0" +
+                ");" +
+                "CREATE OR REPLACE FUNCTION mark_survey_rollup_dirty() RETURNS TRIGGER AS $$ BEGIN " +
+                "    IF TG_OP <> 'INSERT' THEN " + markDirty("OLD.exhibit") + "END IF; " +
+                "    IF TG_OP <> 'DELETE' THEN " + markDirty("NEW.exhibit") + "END IF; " +
+                "    RETURN NULL; " +
+                "END $$ LANGUAGE plpgsql;" +
+                "DROP TRIGGER IF EXISTS survey_rollup_dirty ON supports;" +
+                "CREATE TRIGGER survey_rollup_dirty AFTER INSERT OR UPDATE OR DELETE ON supports " +
+                "    FOR EACH ROW EXECUTE PROCEDURE mark_survey_rollup_dirty();" +
+                // if the rollups are new, everything from before the trigger existed needs counting
+                "INSERT INTO survey_rollups_dirty (exhibit) " +
+                "SELECT DISTINCT exhibit FROM supports " +
+                "WHERE NOT EXISTS (SELECT 1 FROM survey_rollups) " +
+                "ON CONFLICT DO NOTHING",
+                PreparedStatement::execute
+        );
+    }
+
+    /**
+     * Recounts the rollups of up to {@code batchSize} dirty exhibits, and
+     * returns how many it did.
+     * 
+     * This should NOT be run in a transaction; it starts its own for the
+     * recount. The marks are read before it starts and cleared after it's
+     * committed, so any change the recount might have missed will have
+     * bumped its mark, leaving it dirty for next time.
+     */
+    public int refreshRollups(int batchSize) {
+        List<Long> eids = new ArrayList<>();
+        List<Integer> versions = new ArrayList<>();
+        sql.query(
+                "SELECT exhibit, version FROM survey_rollups_dirty LIMIT :limit",
+                new MapSqlParameterSource("limit", batchSize),
+                rs -> {
+                    eids.add(rs.getLong("exhibit"));
+                    versions.add(rs.getInt("version"));
+                }
+        );
+        if (eids.isEmpty()) {
+            return 0;
+        }
+        LOG.info("Recounting survey rollups of {} exhibits", eids.size());
+
+        MapSqlParameterSource params = new MapSqlParameterSource()
+                .addValue("eids", eids.stream().mapToLong(Long::longValue).toArray())
+                .addValue("versions", versions.stream().mapToInt(Integer::intValue).toArray());
+        try (TransactionWrapper.Transaction t = transactions.start()) {
+            sql.update("DELETE FROM survey_rollups WHERE exhibit = ANY(CAST(:eids AS BIGINT[]))", params);
+            sql.update(
+                    "INSERT INTO survey_rollups (exhibit, day, " + String.join(", ", SurveyCounts.COLUMNS) + ") " +
+                    "SELECT s.exhibit, " + DAY + ", " + SurveyCounts.AGGREGATE_COLUMNS + " " +
+                    "FROM supports s " +
+                    "WHERE s.exhibit = ANY(CAST(:eids AS BIGINT[])) " +
+                    "GROUP BY s.exhibit, " + DAY,
+                    params
+            );
+            t.commit();
+        }
+        sql.update(
+                "DELETE FROM survey_rollups_dirty d " +
+                "USING UNNEST(CAST(:eids AS BIGINT[]), CAST(:versions AS INTEGER[])) v(exhibit, version) " +
+                "WHERE d.exhibit = v.exhibit AND d.version = v.version",
+                params
+        );
+        return eids.size();
+    }
+
+    /**
+     * Adds up the rollups by tag, author, or across everything, and by day
+     * if {@code byDay}. Only days from {@code from} up to and including
+     * {@code to} are counted; either can be null to leave that end open.
+     * 
+     * An exhibit with several tags is counted in each of them. Exhibits
+     * without supports (in the range) don't show up at all.
+     */
+    public List<SurveyRollup> getRollups(Grouping grouping, boolean byDay, LocalDate from, LocalDate to) {
+        LOG.info("Getting survey rollups by {}, by day: {}, from {} to {}", grouping, byDay, from, to);
+        MapSqlParameterSource params = new MapSqlParameterSource();
+        StringBuilder query = new StringBuilder("SELECT ");
+        List<String> groupBy = new ArrayList<>();
+        switch (grouping) {
+            case ALL:
+                query.append("NULL grp, ");
+                break;
+            case TAG:
+                query.append("tag grp, ");
+                groupBy.add("tag");
+                break;
+            case AUTHOR:
+                query.append("e.author grp, ");
+                groupBy.add("e.author");
+                break;
+        }
+        if (byDay) {
+            query.append("r.day, ");
+            groupBy.add("r.day");
+        } else {
+            query.append("NULL day, ");
+        }
+        query.append(SurveyCounts.COLUMNS.stream()
+                .map(column -> "SUM(r." + column + ") " + column)
+                .collect(Collectors.joining(", ")));
+        query.append(" FROM survey_rollups r ");
+        if (grouping != Grouping.ALL) {
+            query.append("JOIN exhibits e ON e.eid = r.exhibit ");
+        }
+        if (grouping == Grouping.TAG) {
+            query.append("CROSS JOIN LATERAL UNNEST(e.tags) tag ");
+        }
+        query.append("WHERE TRUE ");
+        if (from != null) {
+            query.append("AND r.day >= :from ");
+            params.addValue("from", Date.valueOf(from));
+        }
+        if (to != null) {
+            query.append("AND r.day <= :to ");
+            params.addValue("to", Date.valueOf(to));
+        }
+        if (!groupBy.isEmpty()) {
+            String columns = String.join(", ", groupBy);
+            query.append("GROUP BY ").append(columns).append(" ORDER BY ").append(columns);
+        }
+        return sql.query(
+                query.toString(),
+                params,
+                (rs, rowNum) -> new SurveyRollup(
+                        rs.getString("grp"),
+                        rs.getDate("day") == null ? null : rs.getDate("day").toLocalDate().toString(),
+                        SurveyCounts.fromRow(rs).toAggregate()
+                )
+        );
+    }
+}
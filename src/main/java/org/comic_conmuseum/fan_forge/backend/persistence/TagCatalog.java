@@ -0,0 +1,229 @@
+package org.comic_conmuseum.fan_forge.backend.persistence;
+
+import org.comic_conmuseum.fan_forge.backend.persistence.events.ExhibitEvent;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jdbc.core.namedparam.MapSqlParameterSource;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.event.TransactionalEventListener;
+
+import java.util.*;
+import java.util.function.UnaryOperator;
+
+/**
+ * An in-memory inverted index of tags: for every tag, the sorted IDs of the
+ * exhibits that have it (its posting list). That's enough to list every
+ * tag in use and to count tag-filtered feeds without touching the DB.
+ *
+ * Like FeedIndex, readers get an immutable snapshot and writers swap in a
+ * new one, so reads never block. It's loaded at startup and kept up to date
+ * by ExhibitEvents.
+ */
+@Component
+public class TagCatalog {
+    private static final Logger LOG = LoggerFactory.getLogger("persist.tag_catalog");
+
+    private final NamedParameterJdbcTemplate sql;
+
+    private final Object writeLock = new Object();
+    /** Tag to posting list; never modified once published. Null until the first load */
+    private volatile SortedMap<String, long[]> postings;
+    /** Non-null while rebuilding; holds the writes to replay on top of the rebuilt catalog */
+    private List<UnaryOperator<SortedMap<String, long[]>>> pending;
+
+    @Autowired
+    public TagCatalog(NamedParameterJdbcTemplate sql) {
+        this.sql = sql;
+    }
+
+    public boolean isLoaded() {
+        return postings != null;
+    }
+
+    /**
+     * (Re)loads the catalog from the DB. Writes that come in while this is
+     * running are applied to both the old catalog and the new one.
+     */
+    public void rebuild() {
+        synchronized (writeLock) {
+            if (pending != null) {
+                LOG.info("Tag catalog is already being rebuilt");
+                return;
+            }
+            pending = new ArrayList<>();
+        }
+        LOG.info("Rebuilding tag catalog");
+        SortedMap<String, long[]> fresh;
+        try {
+            fresh = load();
+        } catch (RuntimeException e) {
+            synchronized (writeLock) {
+                pending = null;
+            }
+            throw e;
+        }
+        synchronized (writeLock) {
+            // anything that was committed while we were loading has to be applied on top
+            for (UnaryOperator<SortedMap<String, long[]>> write : pending) {
+                fresh = write.apply(fresh);
+            }
+            pending = null;
+            postings = fresh;
+        }
+        LOG.info("Tag catalog rebuilt with {} tags", fresh.size());
+    }
+
+    private SortedMap<String, long[]> load() {
+        SortedMap<String, long[]> loaded = new TreeMap<>();
+        sql.query(
+                "SELECT tag, ARRAY_AGG(eid::BIGINT ORDER BY eid) eids " +
+                "FROM exhibits, UNNEST(tags) tag " +
+                "GROUP BY tag",
+                new MapSqlParameterSource(),
+                rs -> {
+                    Long[] eids = (Long[]) rs.getArray("eids").getArray();
+                    loaded.put(rs.getString("tag"), Arrays.stream(eids).mapToLong(Long::longValue).toArray());
+                }
+        );
+        return Collections.unmodifiableSortedMap(loaded);
+    }
+
+    /** Every tag on at least one exhibit, in order */
+    public List<String> getAllTags() {
+        return new ArrayList<>(postings.keySet());
+    }
+
+    /** How many exhibits have each tag */
+    public Map<String, Integer> getTagCounts() {
+        Map<String, Integer> counts = new LinkedHashMap<>();
+        postings.forEach((tag, eids) -> counts.put(tag, eids.length));
+        return counts;
+    }
+
+    /**
+     * The sorted IDs of the exhibits with all (or any) of the tags. With no
+     * tags, that's nothing.
+     */
+    public long[] matching(List<String> tags, boolean matchAll) {
+        SortedMap<String, long[]> p = postings;
+        List<long[]> lists = new ArrayList<>(tags.size());
+        for (String tag : tags) {
+            long[] list = p.get(tag);
+            if (list != null) {
+                lists.add(list);
+            } else if (matchAll) {
+                return new long[0];
+            }
+        }
+        if (lists.isEmpty()) {
+            return new long[0];
+        }
+        return matchAll ? intersect(lists) : union(lists);
+    }
+
+    public long count(List<String> tags, boolean matchAll) {
+        if (tags.size() == 1) {
+            long[] list = postings.get(tags.get(0));
+            return list == null ? 0 : list.length;
+        }
+        return matching(tags, matchAll).length;
+    }
+
+    private static long[] intersect(List<long[]> lists) {
+        // start from the shortest list, so it's the most we ever have to check
+        lists.sort(Comparator.comparingInt(list -> list.length));
+        long[] result = lists.get(0);
+        for (int i = 1; i < lists.size() && result.length > 0; ++i) {
+            long[] other = lists.get(i);
+            long[] kept = new long[result.length];
+            int n = 0;
+            for (long eid : result) {
+                if (Arrays.binarySearch(other, eid) >= 0) {
+                    kept[n++] = eid;
+                }
+            }
+            result = Arrays.copyOf(kept, n);
+        }
+        return result;
+    }
+
+    private static long[] union(List<long[]> lists) {
+        return lists.stream()
+                .flatMapToLong(Arrays::stream)
+                .sorted()
+                .distinct()
+                .toArray();
+    }
+
+    @TransactionalEventListener(fallbackExecution = true)
+    public void exhibitChanged(ExhibitEvent event) {
+        Set<String> removed = new HashSet<>();
+        Set<String> added = new HashSet<>();
+        if (event.kind != ExhibitEvent.Kind.CREATED) {
+            removed.addAll(Arrays.asList(event.previousTags));
+        }
+        if (event.kind != ExhibitEvent.Kind.DELETED) {
+            added.addAll(Arrays.asList(event.tags));
+        }
+        // tags that are kept don't need to be touched
+        Set<String> kept = new HashSet<>(removed);
+        kept.retainAll(added);
+        removed.removeAll(kept);
+        added.removeAll(kept);
+        if (removed.isEmpty() && added.isEmpty()) {
+            return;
+        }
+        write(p -> {
+            SortedMap<String, long[]> updated = new TreeMap<>(p);
+            for (String tag : removed) {
+                long[] list = without(updated.getOrDefault(tag, new long[0]), event.eid);
+                if (list.length == 0) {
+                    updated.remove(tag);
+                } else {
+                    updated.put(tag, list);
+                }
+            }
+            for (String tag : added) {
+                updated.put(tag, with(updated.getOrDefault(tag, new long[0]), event.eid));
+            }
+            return Collections.unmodifiableSortedMap(updated);
+        });
+    }
+
+    private void write(UnaryOperator<SortedMap<String, long[]>> write) {
+        synchronized (writeLock) {
+            if (pending != null) {
+                pending.add(write);
+            }
+            if (postings != null) {
+                postings = write.apply(postings);
+            }
+        }
+    }
+
+    private static long[] with(long[] list, long eid) {
+        int idx = Arrays.binarySearch(list, eid);
+        if (idx >= 0) {
+            return list;
+        }
+        int at = -idx - 1;
+        long[] added = new long[list.length + 1];
+        System.arraycopy(list, 0, added, 0, at);
+        added[at] = eid;
+        System.arraycopy(list, at, added, at + 1, list.length - at);
+        return added;
+    }
+
+    private static long[] without(long[] list, long eid) {
+        int at = Arrays.binarySearch(list, eid);
+        if (at < 0) {
+            return list;
+        }
+        long[] removed = new long[list.length - 1];
+        System.arraycopy(list, 0, removed, 0, at);
+        System.arraycopy(list, at + 1, removed, at, list.length - at - 1);
+        return removed;
+    }
+}
@@ -11,7 +11,10 @@ import org.springframework.transaction.support.DefaultTransactionDefinition;
 
 import java.io.Closeable;
 
-// TODO Add support for S3 "transactions" (rollback on failure)
+/**
+ * DB transactions only. Images uploaded alongside one go through
+ * ImageUploads, so that they're only kept if the transaction commits.
+ */
 @Service
 public class TransactionWrapper {
     private static final Logger LOG = LoggerFactory.getLogger("transaction");
@@ -0,0 +1,19 @@
+package org.comic_conmuseum.fan_forge.backend.persistence.events;
+
+/**
+ * Published by ArtifactQueryBean whenever artifacts are written. Mostly
+ * useful because the cover artifact shows up in the feeds. See
+ * {@link ExhibitEvent} for how to listen for it.
+ */
+public class ArtifactEvent {
+    public enum Kind { CREATED, UPDATED, DELETED }
+
+    public final Kind kind;
+    /** The exhibit the artifact belongs to */
+    public final long eid;
+
+    public ArtifactEvent(Kind kind, long eid) {
+        this.kind = kind;
+        this.eid = eid;
+    }
+}
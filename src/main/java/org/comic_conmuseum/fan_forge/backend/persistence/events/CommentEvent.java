@@ -0,0 +1,20 @@
+package org.comic_conmuseum.fan_forge.backend.persistence.events;
+
+/**
+ * Published by CommentQueryBean whenever a comment is written. See
+ * {@link ExhibitEvent} for how to listen for it.
+ */
+public class CommentEvent {
+    public enum Kind { CREATED, UPDATED, DELETED }
+
+    public final Kind kind;
+    /** The exhibit the comment is on */
+    public final long eid;
+    public final long cid;
+
+    public CommentEvent(Kind kind, long eid, long cid) {
+        this.kind = kind;
+        this.eid = eid;
+        this.cid = cid;
+    }
+}
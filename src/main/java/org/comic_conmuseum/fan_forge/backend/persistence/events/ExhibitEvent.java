@@ -0,0 +1,70 @@
+package org.comic_conmuseum.fan_forge.backend.persistence.events;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.Instant;
+
+/**
+ * Published by ExhibitQueryBean whenever an exhibit is written. It carries
+ * the exhibit's state after the write (or just before it, for deletes), so
+ * listeners don't need to go back to the DB.
+ *
+ * Listeners should use {@code @TransactionalEventListener(fallbackExecution = true)},
+ * so they only see writes that were actually committed.
+ */
+public class ExhibitEvent {
+    public enum Kind { CREATED, UPDATED, DELETED }
+
+    public final Kind kind;
+    public final long eid;
+    public final String author;
+    public final Instant created;
+    public final boolean featured;
+    public final String[] tags;
+    /** The tags before the write; the same as {@link #tags} unless this is an update that changed them */
+    public final String[] previousTags;
+
+    public ExhibitEvent(Kind kind, long eid, String author, Instant created, boolean featured, String[] tags) {
+        this(kind, eid, author, created, featured, tags, tags);
+    }
+
+    public ExhibitEvent(Kind kind, long eid, String author, Instant created, boolean featured, String[] tags,
+                        String[] previousTags) {
+        this.kind = kind;
+        this.eid = eid;
+        this.author = author;
+        this.created = created;
+        this.featured = featured;
+        this.tags = tags == null ? new String[0] : tags;
+        this.previousTags = previousTags == null ? new String[0] : previousTags;
+    }
+
+    /** Reads the event from a row with (at least) the exhibit's eid, author, created, featured and tags */
+    public static ExhibitEvent fromRow(Kind kind, ResultSet rs) throws SQLException {
+        return new ExhibitEvent(
+                kind,
+                rs.getLong("eid"),
+                rs.getString("author"),
+                rs.getTimestamp("created").toInstant(),
+                rs.getBoolean("featured"),
+                tagsOf(rs, "tags")
+        );
+    }
+
+    /** Like {@link #fromRow}, but also reads the tags from before the update from `previous_tags` */
+    public static ExhibitEvent fromUpdatedRow(ResultSet rs) throws SQLException {
+        return new ExhibitEvent(
+                Kind.UPDATED,
+                rs.getLong("eid"),
+                rs.getString("author"),
+                rs.getTimestamp("created").toInstant(),
+                rs.getBoolean("featured"),
+                tagsOf(rs, "tags"),
+                tagsOf(rs, "previous_tags")
+        );
+    }
+
+    private static String[] tagsOf(ResultSet rs, String column) throws SQLException {
+        return rs.getArray(column) == null ? null : (String[]) rs.getArray(column).getArray();
+    }
+}
@@ -0,0 +1,13 @@
+package org.comic_conmuseum.fan_forge.backend.persistence.events;
+
+/**
+ * Published by S3Bean whenever an image is uploaded (or replaced). See
+ * {@link ExhibitEvent} for how to listen for it.
+ */
+public class ImageEvent {
+    public final long id;
+
+    public ImageEvent(long id) {
+        this.id = id;
+    }
+}
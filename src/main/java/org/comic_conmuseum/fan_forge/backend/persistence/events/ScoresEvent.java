@@ -0,0 +1,17 @@
+package org.comic_conmuseum.fan_forge.backend.persistence.events;
+
+import java.util.List;
+
+/**
+ * Published by ScoreQueryBean after it refreshes the trending and
+ * discussion scores of some exhibits. See {@link ExhibitEvent} for how to
+ * listen for it.
+ */
+public class ScoresEvent {
+    /** The exhibits whose scores were refreshed */
+    public final List<Long> eids;
+
+    public ScoresEvent(List<Long> eids) {
+        this.eids = eids;
+    }
+}
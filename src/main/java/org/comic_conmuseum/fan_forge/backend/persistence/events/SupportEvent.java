@@ -0,0 +1,44 @@
+package org.comic_conmuseum.fan_forge.backend.persistence.events;
+
+import org.comic_conmuseum.fan_forge.backend.models.Survey;
+
+/**
+ * Published by SupportQueryBean whenever a support is written. See
+ * {@link ExhibitEvent} for how to listen for it.
+ */
+public class SupportEvent {
+    public enum Kind { CREATED, UPDATED, DELETED }
+
+    public final Kind kind;
+    public final long eid;
+    public final String supporter;
+    /** The exhibit's support count after the write, or null if it didn't change */
+    public final Integer supportCount;
+    /**
+     * The exhibit's version after the write, or null if the count didn't
+     * change. Versions only go up, so of two counts the one with the higher
+     * version is the newer, whatever order their events arrive in.
+     */
+    public final Long exhibitVersion;
+    /** The supported exhibit's author, or null if the count didn't change */
+    public final String exhibitAuthor;
+    /** The supported exhibit's tags, or null if the count didn't change */
+    public final String[] exhibitTags;
+    /** The survey after the write, or null if it was deleted */
+    public final Survey survey;
+    /** The survey before the write, or null if it was just created */
+    public final Survey previousSurvey;
+
+    public SupportEvent(Kind kind, long eid, String supporter, Integer supportCount, Long exhibitVersion,
+                        String exhibitAuthor, String[] exhibitTags, Survey survey, Survey previousSurvey) {
+        this.kind = kind;
+        this.eid = eid;
+        this.supporter = supporter;
+        this.supportCount = supportCount;
+        this.exhibitVersion = exhibitVersion;
+        this.exhibitAuthor = exhibitAuthor;
+        this.exhibitTags = exhibitTags;
+        this.survey = survey;
+        this.previousSurvey = previousSurvey;
+    }
+}
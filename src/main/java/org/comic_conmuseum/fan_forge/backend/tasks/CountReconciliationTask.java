@@ -0,0 +1,52 @@
+package org.comic_conmuseum.fan_forge.backend.tasks;
+
+import org.comic_conmuseum.fan_forge.backend.cache.ExhibitCache;
+import org.comic_conmuseum.fan_forge.backend.persistence.ExhibitQueryBean;
+import org.comic_conmuseum.fan_forge.backend.persistence.TransactionWrapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.dao.DataAccessException;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+/**
+ * Periodically repairs the denormalized support and comment counts on
+ * exhibits. The writes keep them exact, so this should almost never find
+ * anything, but it's a cheap safety net against bugs and manual DB edits.
+ */
+@Component
+public class CountReconciliationTask {
+    private static final Logger LOG = LoggerFactory.getLogger("tasks.reconcile_counts");
+
+    private final ExhibitQueryBean exhibits;
+    private final TransactionWrapper transactions;
+    private final ExhibitCache exhibitCache;
+
+    @Autowired
+    public CountReconciliationTask(ExhibitQueryBean exhibits, TransactionWrapper transactions,
+                                   ExhibitCache exhibitCache) {
+        this.exhibits = exhibits;
+        this.transactions = transactions;
+        this.exhibitCache = exhibitCache;
+    }
+
+    @Scheduled(initialDelayString = "${ff.reconcile-counts-every-ms}",
+               fixedDelayString = "${ff.reconcile-counts-every-ms}")
+    public void reconcile() {
+        try (TransactionWrapper.Transaction t = transactions.start()) {
+            int fixed = exhibits.reconcileCounts();
+            t.commit();
+            if (fixed > 0) {
+                LOG.warn("Fixed drifted counts on {} exhibits", fixed);
+                // the fix doesn't publish events, so the cached counts have to go some other way
+                exhibitCache.invalidateAll();
+            } else {
+                LOG.info("No drifted counts found");
+            }
+        } catch (DataAccessException e) {
+            // most likely a serialization failure from a concurrent write; the next run will get it
+            LOG.warn("Failed to reconcile counts; will try again next run", e);
+        }
+    }
+}
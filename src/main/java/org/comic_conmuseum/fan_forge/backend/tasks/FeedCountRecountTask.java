@@ -0,0 +1,56 @@
+package org.comic_conmuseum.fan_forge.backend.tasks;
+
+import org.comic_conmuseum.fan_forge.backend.cache.FeedCountCache;
+import org.comic_conmuseum.fan_forge.backend.persistence.ExhibitQueryBean;
+import org.comic_conmuseum.fan_forge.backend.persistence.FeedFilter;
+import org.comic_conmuseum.fan_forge.backend.persistence.TransactionWrapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.dao.DataAccessException;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+/**
+ * Periodically recounts every filter in the feed count cache from scratch.
+ * Creates and deletes keep the counts right on their own; this is for
+ * anything that changes exhibits without going through ExhibitQueryBean.
+ */
+@Component
+public class FeedCountRecountTask {
+    private static final Logger LOG = LoggerFactory.getLogger("tasks.recount_feeds");
+
+    private final ExhibitQueryBean exhibits;
+    private final FeedCountCache counts;
+    private final TransactionWrapper transactions;
+
+    @Autowired
+    public FeedCountRecountTask(ExhibitQueryBean exhibits, FeedCountCache counts, TransactionWrapper transactions) {
+        this.exhibits = exhibits;
+        this.counts = counts;
+        this.transactions = transactions;
+    }
+
+    @Scheduled(initialDelayString = "${ff.count-cache.recount-every-ms}",
+               fixedDelayString = "${ff.count-cache.recount-every-ms}")
+    public void recount() {
+        int fixed = 0;
+        for (FeedFilter filter : counts.filters()) {
+            // one transaction per filter, so a long recount doesn't hold one snapshot open
+            long stamp = counts.stamp();
+            try (TransactionWrapper.Transaction t = transactions.start()) {
+                long count = exhibits.countExhibits(filter);
+                t.commit();
+                Long cached = counts.get(filter);
+                if (cached != null && cached != count) {
+                    LOG.warn("Count for {} had drifted: cached {}, actually {}", filter, cached, count);
+                    ++fixed;
+                }
+                counts.put(filter, count, stamp);
+            } catch (DataAccessException e) {
+                LOG.warn("Failed to recount {}; will try again next run", filter, e);
+            }
+        }
+        LOG.info("Recounted feed counts; {} had drifted", fixed);
+    }
+}
@@ -0,0 +1,40 @@
+package org.comic_conmuseum.fan_forge.backend.tasks;
+
+import org.comic_conmuseum.fan_forge.backend.persistence.FeedIndex;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.dao.DataAccessException;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+/**
+ * Periodically reloads the feed index from scratch. Writes keep it up to
+ * date on their own, but things like count reconciliation and manual DB
+ * edits don't publish events, so this catches those up.
+ */
+@Component
+public class FeedIndexRebuildTask {
+    private static final Logger LOG = LoggerFactory.getLogger("tasks.rebuild_feed_index");
+
+    private final FeedIndex index;
+
+    @Autowired
+    public FeedIndexRebuildTask(FeedIndex index) {
+        this.index = index;
+    }
+
+    @Scheduled(initialDelayString = "${ff.feed-index.rebuild-every-ms}",
+               fixedDelayString = "${ff.feed-index.rebuild-every-ms}")
+    public void rebuild() {
+        if (!index.isEnabled()) {
+            return;
+        }
+        try {
+            index.rebuild();
+        } catch (DataAccessException e) {
+            // the old snapshot is still there and still being kept up to date
+            LOG.warn("Failed to rebuild feed index; will try again next run", e);
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package org.comic_conmuseum.fan_forge.backend.tasks;
+
+import org.comic_conmuseum.fan_forge.backend.persistence.ScoreQueryBean;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DataAccessException;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+/**
+ * Periodically rescores the exhibits that have had supports or comments
+ * since they were last scored, for the trending and comments feeds.
+ */
+@Component
+public class ScoreRefreshTask {
+    private static final Logger LOG = LoggerFactory.getLogger("tasks.refresh_scores");
+
+    private final ScoreQueryBean scores;
+    private final int batchSize;
+
+    @Autowired
+    public ScoreRefreshTask(ScoreQueryBean scores, @Value("${ff.scores.batch-size}") int batchSize) {
+        this.scores = scores;
+        this.batchSize = batchSize;
+    }
+
+    @Scheduled(fixedDelayString = "${ff.scores.refresh-every-ms}")
+    public void refresh() {
+        // no transaction on purpose; see ScoreQueryBean.refreshScores
+        int total = 0;
+        try {
+            int done;
+            do {
+                done = scores.refreshScores(batchSize);
+                total += done;
+            } while (done == batchSize);
+        } catch (DataAccessException e) {
+            LOG.warn("Failed to refresh scores after {} exhibits; will try again next run", total, e);
+            return;
+        }
+        if (total > 0) {
+            LOG.info("Rescored {} exhibits", total);
+        }
+    }
+}
@@ -0,0 +1,45 @@
+package org.comic_conmuseum.fan_forge.backend.tasks;
+
+import com.amazonaws.SdkClientException;
+import org.comic_conmuseum.fan_forge.backend.persistence.S3Bean;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.util.Date;
+
+/**
+ * Periodically deletes staged images that were never promoted or thrown
+ * away. See ImageUploads.
+ */
+@Component
+public class StagedImageCleanupTask {
+    private static final Logger LOG = LoggerFactory.getLogger("tasks.cleanup_staged_images");
+
+    private final S3Bean s3;
+    private final long maxAgeMs;
+
+    @Autowired
+    public StagedImageCleanupTask(S3Bean s3, @Value("${ff.uploads.staging-max-age-ms}") long maxAgeMs) {
+        this.s3 = s3;
+        this.maxAgeMs = maxAgeMs;
+    }
+
+    @Scheduled(fixedDelayString = "${ff.uploads.staging-cleanup-every-ms}")
+    public void cleanup() {
+        int deleted;
+        try {
+            // anything this old isn't part of a request that's still running
+            deleted = s3.deleteStagedBefore(new Date(System.currentTimeMillis() - maxAgeMs));
+        } catch (SdkClientException e) {
+            LOG.warn("Failed to clean up staged images; will try again next run", e);
+            return;
+        }
+        if (deleted > 0) {
+            LOG.info("Deleted {} abandoned staged images", deleted);
+        }
+    }
+}
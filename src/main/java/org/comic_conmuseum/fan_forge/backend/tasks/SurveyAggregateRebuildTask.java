@@ -0,0 +1,37 @@
+package org.comic_conmuseum.fan_forge.backend.tasks;
+
+import org.comic_conmuseum.fan_forge.backend.persistence.SupportQueryBean;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.dao.DataAccessException;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+/**
+ * Periodically reloads the in-memory survey counts from scratch, to catch
+ * up on anything that changed supports without going through
+ * SupportQueryBean (or raced with another write to the same support).
+ */
+@Component
+public class SurveyAggregateRebuildTask {
+    private static final Logger LOG = LoggerFactory.getLogger("tasks.rebuild_survey_aggregates");
+
+    private final SupportQueryBean supports;
+
+    @Autowired
+    public SurveyAggregateRebuildTask(SupportQueryBean supports) {
+        this.supports = supports;
+    }
+
+    @Scheduled(initialDelayString = "${ff.survey-aggregates.rebuild-every-ms}",
+               fixedDelayString = "${ff.survey-aggregates.rebuild-every-ms}")
+    public void rebuild() {
+        try {
+            supports.rebuildSurveyAggregates();
+        } catch (DataAccessException e) {
+            // the old counts are still there and still being kept up to date
+            LOG.warn("Failed to rebuild survey aggregates; will try again next run", e);
+        }
+    }
+}
@@ -0,0 +1,48 @@
+package org.comic_conmuseum.fan_forge.backend.tasks;
+
+import org.comic_conmuseum.fan_forge.backend.persistence.SurveyRollupQueryBean;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DataAccessException;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+/**
+ * Periodically recounts the survey rollups of the exhibits whose supports
+ * have changed since they were last counted.
+ */
+@Component
+public class SurveyRollupRefreshTask {
+    private static final Logger LOG = LoggerFactory.getLogger("tasks.refresh_survey_rollups");
+
+    private final SurveyRollupQueryBean rollups;
+    private final int batchSize;
+
+    @Autowired
+    public SurveyRollupRefreshTask(SurveyRollupQueryBean rollups,
+                                   @Value("${ff.survey-rollups.batch-size}") int batchSize) {
+        this.rollups = rollups;
+        this.batchSize = batchSize;
+    }
+
+    @Scheduled(fixedDelayString = "${ff.survey-rollups.refresh-every-ms}")
+    public void refresh() {
+        // no transaction on purpose; see SurveyRollupQueryBean.refreshRollups
+        int total = 0;
+        try {
+            int done;
+            do {
+                done = rollups.refreshRollups(batchSize);
+                total += done;
+            } while (done == batchSize);
+        } catch (DataAccessException e) {
+            LOG.warn("Failed to refresh survey rollups after {} exhibits; will try again next run", total, e);
+            return;
+        }
+        if (total > 0) {
+            LOG.info("Recounted survey rollups of {} exhibits", total);
+        }
+    }
+}
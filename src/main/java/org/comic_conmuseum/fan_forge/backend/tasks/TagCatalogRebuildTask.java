@@ -0,0 +1,36 @@
+package org.comic_conmuseum.fan_forge.backend.tasks;
+
+import org.comic_conmuseum.fan_forge.backend.persistence.TagCatalog;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.dao.DataAccessException;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+/**
+ * Periodically reloads the tag catalog from scratch, to catch up on
+ * anything that changed tags without going through ExhibitQueryBean.
+ */
+@Component
+public class TagCatalogRebuildTask {
+    private static final Logger LOG = LoggerFactory.getLogger("tasks.rebuild_tag_catalog");
+
+    private final TagCatalog catalog;
+
+    @Autowired
+    public TagCatalogRebuildTask(TagCatalog catalog) {
+        this.catalog = catalog;
+    }
+
+    @Scheduled(initialDelayString = "${ff.tag-catalog.rebuild-every-ms}",
+               fixedDelayString = "${ff.tag-catalog.rebuild-every-ms}")
+    public void rebuild() {
+        try {
+            catalog.rebuild();
+        } catch (DataAccessException e) {
+            // the old catalog is still there and still being kept up to date
+            LOG.warn("Failed to rebuild tag catalog; will try again next run", e);
+        }
+    }
+}
@@ -0,0 +1,146 @@
+package org.comic_conmuseum.fan_forge.backend.cache;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class BoundedCacheTest {
+    /** Each value weighs its length */
+    private static BoundedCache<String, String> cache(long maxWeight) {
+        return new BoundedCache<>(maxWeight, 0, String::length);
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsedOverWeight() {
+        BoundedCache<String, String> cache = cache(10);
+        cache.put("a", "aaaa");
+        cache.put("b", "bbbb");
+        // `a` is now more recently used than `b`
+        assertEquals("aaaa", cache.get("a"));
+        cache.put("c", "cccc");
+
+        assertNull(cache.get("b"));
+        assertEquals("aaaa", cache.get("a"));
+        assertEquals("cccc", cache.get("c"));
+        BoundedCache.Stats stats = cache.stats();
+        assertEquals(1, stats.evictions);
+        assertEquals(2, stats.entries);
+        assertEquals(8, stats.weight);
+    }
+
+    @Test
+    public void evictsAsManyAsItTakes() {
+        BoundedCache<String, String> cache = cache(10);
+        cache.put("a", "aaa");
+        cache.put("b", "bbb");
+        cache.put("c", "ccc");
+        cache.put("d", "dddddddd");
+
+        assertEquals(Collections.singletonList("d"), cache.keys());
+        assertEquals(3, cache.stats().evictions);
+        assertEquals(8, cache.stats().weight);
+    }
+
+    @Test
+    public void neverCachesValuesHeavierThanTheWholeCache() {
+        BoundedCache<String, String> cache = cache(4);
+        cache.put("a", "aa");
+
+        assertFalse(cache.put("b", "bbbbb"));
+        assertNull(cache.get("b"));
+        // and nothing was evicted to try to make room for it
+        assertEquals("aa", cache.get("a"));
+        assertTrue(cache.put("c", "cc"));
+    }
+
+    @Test
+    public void replacingAValueReweighsIt() {
+        BoundedCache<String, String> cache = cache(10);
+        cache.put("a", "aaaa");
+        cache.put("a", "aaaaaaaa");
+
+        assertEquals(1, cache.stats().entries);
+        assertEquals(8, cache.stats().weight);
+        assertEquals(0, cache.stats().evictions);
+    }
+
+    @Test
+    public void updatesReweighAndEvict() {
+        BoundedCache<String, String> cache = cache(10);
+        cache.put("a", "aa");
+        cache.put("b", "bb");
+
+        assertTrue(cache.update("b", value -> value + "bbbbbbb"));
+        assertFalse(cache.update("missing", value -> value));
+        // `a` was least recently used, so it's the one to go
+        assertEquals(Collections.singletonList("b"), cache.keys());
+        assertEquals(9, cache.stats().weight);
+
+        cache.updateAll((key, value) -> value.substring(0, 1));
+        assertEquals("b", cache.get("b"));
+        assertEquals(1, cache.stats().weight);
+
+        cache.updateAll((key, value) -> null);
+        assertEquals(0, cache.stats().entries);
+        assertEquals(0, cache.stats().weight);
+    }
+
+    @Test
+    public void invalidatesByKeyAndPredicate() {
+        BoundedCache<String, String> cache = cache(100);
+        cache.put("a", "a");
+        cache.put("b", "bb");
+        cache.put("c", "ccc");
+
+        cache.invalidate("a");
+        assertEquals(1, cache.invalidateIf((key, value) -> value.length() > 2));
+        assertEquals(Collections.singletonList("b"), cache.keys());
+        assertEquals(2, cache.stats().invalidations);
+        assertEquals(2, cache.stats().weight);
+    }
+
+    @Test
+    public void tellsTheOwnerAboutEverythingThatLeaves() {
+        List<String> removed = new ArrayList<>();
+        BoundedCache<String, String> cache = new BoundedCache<>(6, 0, String::length,
+                (key, value) -> removed.add(value));
+        cache.put("a", "a1");
+        cache.put("a", "a2"); // replaced
+        cache.put("b", "b1");
+        cache.put("c", "c1");
+        cache.put("d", "d1"); // evicts a2
+        cache.invalidate("b");
+        cache.clear();
+
+        assertEquals(Arrays.asList("a1", "a2", "b1", "c1", "d1"), removed);
+    }
+
+    @Test
+    public void expiresAfterTheTtl() throws InterruptedException {
+        BoundedCache<String, String> cache = new BoundedCache<>(100, 1, String::length);
+        cache.put("a", "aaaa");
+        Thread.sleep(20);
+
+        assertNull(cache.get("a"));
+        assertEquals(0, cache.stats().weight);
+        assertEquals(1, cache.stats().misses);
+    }
+
+    @Test
+    public void countsHitsAndMisses() {
+        BoundedCache<String, String> cache = cache(100);
+        cache.put("a", "a");
+        cache.get("a");
+        cache.get("a");
+        cache.get("b");
+
+        assertEquals(2, cache.stats().hits);
+        assertEquals(1, cache.stats().misses);
+        assertEquals(2.0 / 3, cache.stats().getHitRate(), 1e-9);
+    }
+}
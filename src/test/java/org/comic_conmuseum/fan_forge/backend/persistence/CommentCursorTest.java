@@ -0,0 +1,34 @@
+package org.comic_conmuseum.fan_forge.backend.persistence;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.Base64;
+
+import static org.junit.Assert.*;
+
+public class CommentCursorTest {
+    private static String encodeRaw(String raw) {
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(raw.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void roundTrips() {
+        // microseconds, like Postgres timestamps
+        Instant created = Instant.parse("2018-09-01T12:00:00.123456Z");
+        CommentCursor decoded = CommentCursor.decode(new CommentCursor(created, 99).encode());
+        assertNotNull(decoded);
+        assertEquals(created, decoded.getCreated());
+        assertEquals(99, decoded.getCid());
+    }
+
+    @Test
+    public void rejectsMalformedCursors() {
+        assertNull(CommentCursor.decode("not base64!"));
+        assertNull(CommentCursor.decode(encodeRaw("2018-09-01T12:00:00Z")));
+        assertNull(CommentCursor.decode(encodeRaw("2018-09-01T12:00:00Z\n1\n2")));
+        assertNull(CommentCursor.decode(encodeRaw("yesterday\n1")));
+        assertNull(CommentCursor.decode(encodeRaw("2018-09-01T12:00:00Z\none")));
+    }
+}
@@ -0,0 +1,50 @@
+package org.comic_conmuseum.fan_forge.backend.persistence;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+import static org.junit.Assert.*;
+
+public class FeedCursorTest {
+    private static String encodeRaw(String raw) {
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(raw.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static void assertRoundTrips(FeedCursor cursor) {
+        String encoded = cursor.encode();
+        // it goes in a query parameter as-is
+        assertTrue(encoded, encoded.matches("[A-Za-z0-9_-]+"));
+        FeedCursor decoded = FeedCursor.decode(encoded);
+        assertNotNull(decoded);
+        assertEquals(cursor.getType(), decoded.getType());
+        assertEquals(cursor.getKey(), decoded.getKey());
+        assertEquals(cursor.getEid(), decoded.getEid());
+    }
+
+    @Test
+    public void roundTripsEveryFeed() {
+        assertRoundTrips(new FeedCursor(ExhibitQueryBean.FeedType.recent, "2018-09-01T12:00:00.123456Z", 42));
+        assertRoundTrips(new FeedCursor(ExhibitQueryBean.FeedType.popular, "17", 3));
+        assertRoundTrips(new FeedCursor(ExhibitQueryBean.FeedType.trending, "0.0123", 7));
+        assertRoundTrips(new FeedCursor(ExhibitQueryBean.FeedType.comments, "12.5", Long.MAX_VALUE));
+    }
+
+    @Test
+    public void rejectsMalformedCursors() {
+        assertNull(FeedCursor.decode("not base64!"));
+        assertNull(FeedCursor.decode(""));
+        assertNull(FeedCursor.decode(encodeRaw("popular\n17")));
+        assertNull(FeedCursor.decode(encodeRaw("popular\n17\n3\nextra")));
+        assertNull(FeedCursor.decode(encodeRaw("nonsense\n17\n3")));
+        assertNull(FeedCursor.decode(encodeRaw("popular\n17\nthree")));
+    }
+
+    @Test
+    public void rejectsKeysThatDontFitTheFeed() {
+        assertNull(FeedCursor.decode(encodeRaw("popular\nyesterday\n3")));
+        assertNull(FeedCursor.decode(encodeRaw("recent\n17\n3")));
+        assertNotNull(FeedCursor.decode(encodeRaw("recent\n2018-09-01T12:00:00Z\n3")));
+    }
+}
@@ -0,0 +1,237 @@
+package org.comic_conmuseum.fan_forge.backend.persistence;
+
+import org.comic_conmuseum.fan_forge.backend.persistence.events.ExhibitEvent;
+import org.comic_conmuseum.fan_forge.backend.persistence.events.SupportEvent;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowMapper;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+import org.springframework.jdbc.core.namedparam.SqlParameterSource;
+
+import java.time.Instant;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class FeedIndexTest {
+    private static final ExhibitQueryBean.FeedType RECENT = ExhibitQueryBean.FeedType.recent;
+    private static final ExhibitQueryBean.FeedType POPULAR = ExhibitQueryBean.FeedType.popular;
+    private static final Instant START = Instant.parse("2018-09-01T12:00:00.123456Z");
+
+    /** Hands back canned rows instead of going to the DB, and lets writes sneak in while it's "loading" */
+    private static class FakeDb extends NamedParameterJdbcTemplate {
+        final List<Object[]> rows = new ArrayList<>();
+        Runnable duringLoad = () -> { };
+
+        FakeDb() {
+            super(new JdbcTemplate());
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public <T> List<T> query(String sql, SqlParameterSource params, RowMapper<T> rowMapper) {
+            List<T> loaded = (List<T>) new ArrayList<>(rows);
+            duringLoad.run();
+            return loaded;
+        }
+
+        /** Adds an exhibit at version 1 */
+        void add(long eid, String author, int supports, String... tags) {
+            rows.add(new Object[] { created(eid, author, tags), supports, 1L });
+        }
+    }
+
+    private FakeDb db;
+    private FeedIndex index;
+
+    @Before
+    public void setUp() {
+        db = new FakeDb();
+        index = new FeedIndex(db, true);
+    }
+
+    private static ExhibitEvent created(long eid, String author, String... tags) {
+        // later eids are newer
+        return new ExhibitEvent(ExhibitEvent.Kind.CREATED, eid, author, START.plusSeconds(eid), false, tags);
+    }
+
+    private static SupportEvent supported(long eid, int count, long version) {
+        return new SupportEvent(SupportEvent.Kind.CREATED, eid, "someone", count, version, null, null, null, null);
+    }
+
+    private static FeedFilter filter(String... params) {
+        Map<String, String> map = new HashMap<>();
+        for (int i = 0; i < params.length; i += 2) {
+            map.put(params[i], params[i + 1]);
+        }
+        return FeedFilter.of(map);
+    }
+
+    private FeedIndex.Page page(ExhibitQueryBean.FeedType type, FeedCursor after, int size, FeedFilter filter) {
+        return index.page(type, after, 0, size, filter);
+    }
+
+    @Test
+    public void pagesThroughRecentWithCursors() {
+        for (long eid = 1; eid <= 5; ++eid) {
+            db.add(eid, "alice", 0);
+        }
+        index.rebuild();
+
+        FeedIndex.Page first = page(RECENT, null, 2, FeedFilter.NONE);
+        assertEquals(Arrays.asList(5L, 4L), first.eids);
+        // the same way a client would pass it back
+        FeedCursor cursor = FeedCursor.decode(first.next.encode());
+        FeedIndex.Page second = page(RECENT, cursor, 2, FeedFilter.NONE);
+        assertEquals(Arrays.asList(3L, 2L), second.eids);
+        FeedIndex.Page last = page(RECENT, second.next, 2, FeedFilter.NONE);
+        assertEquals(Collections.singletonList(1L), last.eids);
+        assertNull(last.next);
+    }
+
+    @Test
+    public void cursorsDontShiftWhenExhibitsAreAdded() {
+        for (long eid = 1; eid <= 4; ++eid) {
+            db.add(eid, "alice", 0);
+        }
+        index.rebuild();
+
+        FeedIndex.Page first = page(RECENT, null, 2, FeedFilter.NONE);
+        index.exhibitChanged(created(9, "bob"));
+        FeedIndex.Page second = page(RECENT, first.next, 2, FeedFilter.NONE);
+        assertEquals(Arrays.asList(2L, 1L), second.eids);
+    }
+
+    @Test
+    public void ordersPopularBySupportsThenNewest() {
+        db.add(1, "alice", 3);
+        db.add(2, "alice", 5);
+        db.add(3, "alice", 3);
+        db.add(4, "alice", 0);
+        index.rebuild();
+
+        assertEquals(Arrays.asList(2L, 3L, 1L, 4L), page(POPULAR, null, 10, FeedFilter.NONE).eids);
+        FeedIndex.Page first = page(POPULAR, null, 2, FeedFilter.NONE);
+        assertEquals(Arrays.asList(1L, 4L), page(POPULAR, first.next, 2, FeedFilter.NONE).eids);
+    }
+
+    @Test
+    public void filtersPagesAndCounts() {
+        db.add(1, "alice", 0, "batman");
+        db.add(2, "bob", 0, "batman", "1960s");
+        db.add(3, "alice", 0, "1960s");
+        db.add(4, "alice", 0, "batman", "1960s");
+        db.add(5, "bob", 0);
+        index.rebuild();
+
+        FeedFilter batman = filter("tag", "batman");
+        assertEquals(3, index.count(batman));
+        assertEquals(Arrays.asList(4L, 2L, 1L), page(RECENT, null, 10, batman).eids);
+        // startIdx counts only the exhibits that match
+        assertEquals(Arrays.asList(2L, 1L), index.page(RECENT, null, 1, 10, batman).eids);
+
+        FeedFilter both = filter("tags", "batman,1960s");
+        assertEquals(Arrays.asList(4L, 2L), page(RECENT, null, 10, both).eids);
+        FeedFilter either = filter("tags", "batman,1960s", "match", "any");
+        assertEquals(4, index.count(either));
+
+        FeedFilter alicesBatman = filter("tag", "batman", "author", "alice");
+        assertEquals(Arrays.asList(4L, 1L), page(RECENT, null, 10, alicesBatman).eids);
+        assertEquals(5, index.count(FeedFilter.NONE));
+    }
+
+    @Test
+    public void filtersWithUnknownNamesMatchNothing() {
+        db.add(1, "alice", 0, "batman");
+        index.rebuild();
+
+        assertEquals(0, index.count(filter("tag", "superman")));
+        assertEquals(0, index.count(filter("author", "nobody")));
+        assertTrue(page(RECENT, null, 10, filter("tag", "superman")).eids.isEmpty());
+        // with `any`, the tags it does know still count
+        assertEquals(1, index.count(filter("tags", "batman,superman", "match", "any")));
+    }
+
+    @Test
+    public void appliesWrites() {
+        db.add(1, "alice", 1, "batman");
+        db.add(2, "alice", 2);
+        index.rebuild();
+
+        index.exhibitChanged(created(3, "bob", "batman"));
+        assertEquals(Arrays.asList(3L, 2L, 1L), page(RECENT, null, 10, FeedFilter.NONE).eids);
+        assertEquals(2, index.count(filter("tag", "batman")));
+
+        index.supportChanged(supported(1, 5, 2));
+        assertEquals(Arrays.asList(1L, 2L, 3L), page(POPULAR, null, 10, FeedFilter.NONE).eids);
+
+        // retagging keeps the support count
+        index.exhibitChanged(new ExhibitEvent(ExhibitEvent.Kind.UPDATED, 1, "alice", START.plusSeconds(1), false,
+                new String[0], new String[] { "batman" }));
+        assertEquals(1, index.count(filter("tag", "batman")));
+        assertEquals(1L, (long) page(POPULAR, null, 1, FeedFilter.NONE).eids.get(0));
+
+        index.exhibitChanged(new ExhibitEvent(ExhibitEvent.Kind.DELETED, 2, "alice", START.plusSeconds(2), false,
+                new String[0]));
+        assertEquals(Arrays.asList(3L, 1L), page(RECENT, null, 10, FeedFilter.NONE).eids);
+        assertEquals(2, index.count(FeedFilter.NONE));
+    }
+
+    @Test
+    public void ignoresSupportCountsOlderThanItHas() {
+        db.add(1, "alice", 0);
+        db.add(2, "alice", 1);
+        index.rebuild();
+
+        // two supports on 1 commit as versions 2 and 3, but their events arrive the other way round
+        index.supportChanged(supported(1, 2, 3));
+        index.supportChanged(supported(1, 1, 2));
+        assertEquals(Arrays.asList(1L, 2L), page(POPULAR, null, 10, FeedFilter.NONE).eids);
+        index.supportChanged(supported(1, 0, 1));
+        assertEquals(Arrays.asList(1L, 2L), page(POPULAR, null, 10, FeedFilter.NONE).eids);
+
+        // and an update to the exhibit itself doesn't forget which version the count is from
+        index.exhibitChanged(new ExhibitEvent(ExhibitEvent.Kind.UPDATED, 1, "alice", START.plusSeconds(1), false,
+                new String[] { "batman" }, new String[0]));
+        index.supportChanged(supported(1, 1, 2));
+        assertEquals(Arrays.asList(1L, 2L), page(POPULAR, null, 10, FeedFilter.NONE).eids);
+        index.supportChanged(supported(1, 0, 4));
+        assertEquals(Arrays.asList(2L, 1L), page(POPULAR, null, 10, FeedFilter.NONE).eids);
+    }
+
+    @Test
+    public void replaysWritesMadeDuringTheFirstLoad() {
+        db.add(1, "alice", 0);
+        db.add(2, "alice", 0);
+        db.duringLoad = () -> {
+            index.exhibitChanged(created(3, "bob"));
+            index.supportChanged(supported(1, 4, 2));
+        };
+        index.rebuild();
+
+        assertEquals(Arrays.asList(3L, 2L, 1L), page(RECENT, null, 10, FeedFilter.NONE).eids);
+        assertEquals(Arrays.asList(1L, 3L, 2L), page(POPULAR, null, 10, FeedFilter.NONE).eids);
+    }
+
+    @Test
+    public void replaysWritesMadeDuringARebuild() {
+        db.add(1, "alice", 0);
+        db.add(2, "alice", 0);
+        index.rebuild();
+
+        // the rows the rebuild sees already have 3, and it's written again while it's loading
+        db.add(3, "bob", 0);
+        db.duringLoad = () -> {
+            index.exhibitChanged(created(3, "bob"));
+            index.exhibitChanged(new ExhibitEvent(ExhibitEvent.Kind.DELETED, 2, "alice", START.plusSeconds(2),
+                    false, new String[0]));
+            index.supportChanged(supported(3, 2, 2));
+        };
+        index.rebuild();
+
+        assertEquals(Arrays.asList(3L, 1L), page(RECENT, null, 10, FeedFilter.NONE).eids);
+        assertEquals(Arrays.asList(3L, 1L), page(POPULAR, null, 10, FeedFilter.NONE).eids);
+        assertEquals(2, index.count(FeedFilter.NONE));
+    }
+}
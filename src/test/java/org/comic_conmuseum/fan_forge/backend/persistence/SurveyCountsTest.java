@@ -0,0 +1,79 @@
+package org.comic_conmuseum.fan_forge.backend.persistence;
+
+import org.comic_conmuseum.fan_forge.backend.endpoints.responses.SurveyAggregate;
+import org.comic_conmuseum.fan_forge.backend.models.Survey;
+import org.junit.Test;
+
+import java.util.EnumSet;
+
+import static org.junit.Assert.*;
+
+public class SurveyCountsTest {
+    private static Survey survey(int visits, int rating, Survey.Population... populations) {
+        EnumSet<Survey.Population> pops = EnumSet.noneOf(Survey.Population.class);
+        for (Survey.Population pop : populations) {
+            pops.add(pop);
+        }
+        return new Survey(visits, pops, rating, "someone");
+    }
+
+    @Test
+    public void emptyIsAllZeroes() {
+        SurveyAggregate aggregate = new SurveyCounts().toAggregate();
+        assertEquals(0, aggregate.total);
+        assertEquals(0, aggregate.nps);
+        for (double expected : aggregate.visitsExpected) {
+            assertEquals(0, expected, 0);
+        }
+        for (Survey.Population pop : Survey.Population.values()) {
+            assertEquals(0, aggregate.populationsExpected.get(pop.display()), 0);
+        }
+    }
+
+    @Test
+    public void countsSurveysIn() {
+        SurveyCounts counts = new SurveyCounts();
+        counts.add(survey(1, 10, Survey.Population.KIDS), 1); // promoter
+        counts.add(survey(1, 9, Survey.Population.KIDS, Survey.Population.ADULTS), 1); // promoter
+        counts.add(survey(3, 7), 1); // passive
+        counts.add(survey(10, 2, Survey.Population.ADULTS), 1); // detractor
+
+        SurveyAggregate aggregate = counts.toAggregate();
+        assertEquals(4, aggregate.total);
+        assertEquals(25, aggregate.nps); // (2 - 1) / 4
+        assertEquals(0.5, aggregate.visitsExpected[0], 1e-9);
+        assertEquals(0.25, aggregate.visitsExpected[2], 1e-9);
+        assertEquals(0.25, aggregate.visitsExpected[SurveyCounts.MAX_VISITS - SurveyCounts.MIN_VISITS], 1e-9);
+        assertEquals(0.5f, aggregate.populationsExpected.get(Survey.Population.KIDS.display()), 1e-6);
+        assertEquals(0.5f, aggregate.populationsExpected.get(Survey.Population.ADULTS.display()), 1e-6);
+        assertEquals(0f, aggregate.populationsExpected.get(Survey.Population.TEENAGERS.display()), 1e-6);
+    }
+
+    @Test
+    public void countingOutUndoesCountingIn() {
+        SurveyCounts counts = new SurveyCounts();
+        Survey kept = survey(2, 10, Survey.Population.MALE);
+        Survey before = survey(5, 3, Survey.Population.FEMALE);
+        Survey after = survey(6, 9, Survey.Population.FEMALE, Survey.Population.TEENAGERS);
+        counts.add(kept, 1);
+        counts.add(before, 1);
+        // an update is the old survey out and the new one in
+        counts.add(before, -1);
+        counts.add(after, 1);
+
+        SurveyCounts expected = new SurveyCounts();
+        expected.add(kept, 1);
+        expected.add(after, 1);
+        SurveyAggregate actual = counts.toAggregate();
+        SurveyAggregate wanted = expected.toAggregate();
+        assertEquals(wanted.total, actual.total);
+        assertEquals(100, actual.nps);
+        assertArrayEquals(wanted.visitsExpected, actual.visitsExpected, 1e-9);
+        assertEquals(wanted.populationsExpected, actual.populationsExpected);
+
+        counts.add(kept, -1);
+        counts.add(after, -1);
+        assertEquals(0, counts.toAggregate().total);
+        assertEquals(0, counts.toAggregate().nps);
+    }
+}